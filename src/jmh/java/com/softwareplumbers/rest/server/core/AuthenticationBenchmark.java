@@ -0,0 +1,143 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.authz.AuthorizationService;
+import com.softwareplumbers.authz.AuthorizationServiceFactory;
+import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import java.lang.reflect.Proxy;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks for the per-request authentication path.
+ *
+ * Covers token validation through AuthenticationFilter with CookieRequestValidationService, token minting,
+ * and user metadata lookup through UserMetadataFilter against a stub authorization service which answers
+ * immediately, with and without the user metadata cache. Each benchmark is run single threaded (SingleThread)
+ * and with four threads (Contended) so that contention regressions show up as a divergence between the two.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AuthenticationBenchmark {
+
+    private static final String REPOSITORY = "tmp";
+    private static final String USER = "jonathan.essex@softwareplumbers.com";
+    private static final JsonObject METADATA = Json.createObjectBuilder().add("role", "admin").add("team", "core").build();
+
+    @Threads(1)
+    public static class SingleThread extends AuthenticationBenchmark {
+    }
+
+    @Threads(4)
+    public static class Contended extends AuthenticationBenchmark {
+    }
+
+    private Path file;
+    private Path folder;
+    private CookieRequestValidationService cookieService;
+    private AuthenticationFilter authenticationFilter;
+    private UserMetadataFilter userMetadataFilter;
+    private UserMetadataFilter cachedUserMetadataFilter;
+    private Cookie cookie;
+
+    @SuppressWarnings("unchecked")
+    private static AuthorizationServiceFactory<?,?,?> authorizationServiceFactory() {
+        AuthorizationService<?,?,?> authzService = (AuthorizationService<?,?,?>)Proxy.newProxyInstance(
+            AuthenticationBenchmark.class.getClassLoader(),
+            new Class<?>[] { AuthorizationService.class },
+            (self, method, args) -> {
+                if (method.getName().equals("getUserMetadata")) return METADATA;
+                throw new UnsupportedOperationException(method.getName());
+            }
+        );
+        return (AuthorizationServiceFactory<?,?,?>)Proxy.newProxyInstance(
+            AuthenticationBenchmark.class.getClassLoader(),
+            new Class<?>[] { AuthorizationServiceFactory.class },
+            (self, method, args) -> {
+                if (method.getName().equals("getService")) return authzService;
+                throw new UnsupportedOperationException(method.getName());
+            }
+        );
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        String tmpDir = System.getProperty("java.io.tmpdir");
+        file = FileSystems.getDefault().getPath(tmpDir, "Doctane_AUTH_BENCHMARK.keystore");
+        folder = FileSystems.getDefault().getPath(tmpDir, "Doctane_AUTH_BENCHMARK_exports");
+        Files.createDirectories(folder);
+        KeyManager<SystemSecretKeys,SystemKeyPairs> keyManager = new KeyManager<>(file.toString(), folder.toString(), "password", SystemSecretKeys.class, SystemKeyPairs.class);
+        cookieService = new CookieRequestValidationService(keyManager, REPOSITORY);
+        AuthenticationService authService = new AuthenticationService();
+        authService.setRequestValidationService(cookieService);
+        AuthenticationServiceFactory authServiceFactory = new AuthenticationServiceRegistry(name -> REPOSITORY.equals(name) ? authService : null);
+        authenticationFilter = new AuthenticationFilter();
+        authenticationFilter.setRepositoryServiceFactory(authServiceFactory);
+        userMetadataFilter = new UserMetadataFilter();
+        userMetadataFilter.setRepositoryServiceFactory(authorizationServiceFactory());
+        userMetadataFilter.setAuthenticationServiceFactory(authServiceFactory);
+        cachedUserMetadataFilter = new UserMetadataFilter();
+        cachedUserMetadataFilter.setRepositoryServiceFactory(authorizationServiceFactory());
+        cachedUserMetadataFilter.setAuthenticationServiceFactory(authServiceFactory);
+        cachedUserMetadataFilter.setUserMetadataCache(new UserMetadataCache());
+        cookie = cookieService.sendIdentityToken(Response.ok(), USER).build().getCookies().get("DoctaneUserToken/" + REPOSITORY);
+        if (filterCookie().getProperty("aborted") != null) throw new IllegalStateException("token not accepted");
+    }
+
+    @TearDown
+    public void cleanup() throws Exception {
+        file.toFile().delete();
+        Files.list(folder).forEach(path -> path.toFile().delete());
+        folder.toFile().delete();
+    }
+
+    @Benchmark
+    public ContainerRequestContext filterCookie() throws Exception {
+        ContainerRequestContext request = BenchmarkRequests.request(REPOSITORY, cookie, null);
+        authenticationFilter.filter(request);
+        return request;
+    }
+
+    @Benchmark
+    public String generateCookie() {
+        return cookieService.generateCookie(USER);
+    }
+
+    @Benchmark
+    public Object filterUserMetadata() throws Exception {
+        ContainerRequestContext request = BenchmarkRequests.request(REPOSITORY, null, USER);
+        userMetadataFilter.filter(request);
+        return request.getProperty("userMetadata");
+    }
+
+    @Benchmark
+    public Object filterUserMetadataCached() throws Exception {
+        ContainerRequestContext request = BenchmarkRequests.request(REPOSITORY, null, USER);
+        cachedUserMetadataFilter.filter(request);
+        return request.getProperty("userMetadata");
+    }
+}
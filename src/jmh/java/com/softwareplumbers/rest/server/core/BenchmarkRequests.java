@@ -0,0 +1,67 @@
+package com.softwareplumbers.rest.server.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+
+/** Lightweight request contexts for benchmarking filters without a JAX-RS runtime.
+ *
+ * Only the methods used by the authentication filters are implemented; anything else throws
+ * UnsupportedOperationException so that a benchmark cannot silently measure the wrong thing.
+ *
+ * @author jonat
+ */
+public class BenchmarkRequests {
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T)Proxy.newProxyInstance(BenchmarkRequests.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static SecurityContext securityContext(Principal user) {
+        return proxy(SecurityContext.class, (self, method, args) -> {
+            if (method.getName().equals("getUserPrincipal")) return user;
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    /** Create a request for a repository.
+     *
+     * @param repository value of the repository path parameter
+     * @param cookie cookie sent with the request, or null
+     * @param user authenticated user, or null
+     * @return A request context
+     */
+    public static ContainerRequestContext request(String repository, Cookie cookie, String user) {
+        Map<String, Object> properties = new HashMap<>();
+        SecurityContext[] securityContext = { user == null ? null : securityContext(() -> user) };
+        MultivaluedHashMap<String, String> pathParameters = new MultivaluedHashMap<>();
+        pathParameters.add("repository", repository);
+        UriInfo uriInfo = proxy(UriInfo.class, (self, method, args) -> {
+            if (method.getName().equals("getPathParameters")) return pathParameters;
+            throw new UnsupportedOperationException(method.getName());
+        });
+        Map<String, Cookie> cookies = cookie == null ? Collections.emptyMap() : Collections.singletonMap(cookie.getName(), cookie);
+        return proxy(ContainerRequestContext.class, (self, method, args) -> {
+            switch (method.getName()) {
+                case "getUriInfo": return uriInfo;
+                case "getCookies": return cookies;
+                case "getSecurityContext": return securityContext[0];
+                case "setSecurityContext": securityContext[0] = (SecurityContext)args[0]; return null;
+                case "getProperty": return properties.get((String)args[0]);
+                case "setProperty": properties.put((String)args[0], args[1]); return null;
+                case "removeProperty": properties.remove((String)args[0]); return null;
+                case "abortWith": properties.put("aborted", args[0]); return null;
+                default: throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
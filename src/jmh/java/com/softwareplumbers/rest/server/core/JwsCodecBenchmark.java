@@ -0,0 +1,66 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.HS256JwsCodec;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import java.security.Key;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compare the generic jjwt token path with HS256JwsCodec.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwsCodecBenchmark {
+
+    private Key key;
+    private HS256JwsCodec codec;
+    private Date expiration;
+    private String token;
+
+    @Setup
+    public void setup() {
+        key = Keys.secretKeyFor(SignatureAlgorithm.HS256);
+        codec = new HS256JwsCodec(key);
+        expiration = new Date(System.currentTimeMillis() + 86400000L);
+        token = codec.sign("jonathan.essex@softwareplumbers.com", expiration, null);
+    }
+
+    @Benchmark
+    public String signJjwt() {
+        return Jwts.builder().setSubject("jonathan.essex@softwareplumbers.com").setExpiration(expiration).signWith(key).compact();
+    }
+
+    @Benchmark
+    public String signCodec() {
+        return codec.sign("jonathan.essex@softwareplumbers.com", expiration, null);
+    }
+
+    @Benchmark
+    public Claims verifyJjwt() {
+        return Jwts.parser().setSigningKey(key).parseClaimsJws(token).getBody();
+    }
+
+    @Benchmark
+    public Claims verifyCodec() {
+        return codec.verify(token, System.currentTimeMillis());
+    }
+}
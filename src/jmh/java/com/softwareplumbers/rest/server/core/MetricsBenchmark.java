@@ -0,0 +1,45 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.Metrics;
+import com.softwareplumbers.rest.server.util.Metrics.Outcome;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Cost of recording a timer value; gc.alloc.rate.norm should be zero.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class MetricsBenchmark {
+
+    private static final Metrics.Timer<Outcome> TIMER = Metrics.timer("benchmark_seconds", "Benchmark timer", Outcome.class);
+
+    @Threads(1)
+    public static class SingleThread extends MetricsBenchmark {
+    }
+
+    @Threads(4)
+    public static class Contended extends MetricsBenchmark {
+    }
+
+    private final String repository = "tmp";
+
+    @Benchmark
+    public void recordSince() {
+        TIMER.recordSince(repository, Outcome.SUCCESS, System.nanoTime() - 1_000_000L);
+    }
+}
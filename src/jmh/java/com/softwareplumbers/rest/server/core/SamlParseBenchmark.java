@@ -0,0 +1,108 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import com.softwareplumbers.rest.server.util.FormReader;
+import java.io.ByteArrayInputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.UnmarshallerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/** Compare SAML response parsing with and without the pooled parser and streaming decode.
+ *
+ * parseUnpooled reproduces the original path: the whole response is Base64 decoded into
+ * a byte array and parsed with a new DocumentBuilder for every request. formUnstreamed reproduces
+ * the original form handling, in which the form is decoded into strings before the response is parsed.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SamlParseBenchmark {
+
+    @Param({"5", "200"})
+    public int attributes;
+
+    private SAMLProtocolHandlerService service;
+    private DocumentBuilderFactory documentBuilderFactory;
+    private UnmarshallerFactory unmarshallerFactory;
+    private String samlResponse;
+    private byte[] form;
+
+    private static String response(int attributes) {
+        StringBuilder xml = new StringBuilder()
+            .append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+            .append(" ID=\"_response\" Version=\"2.0\" IssueInstant=\"2020-01-01T00:00:00Z\">")
+            .append("<saml:Issuer>https://auth.softwareplumbers.com/auth/realms/doctane-test</saml:Issuer>")
+            .append("<saml:Assertion ID=\"_assertion\" Version=\"2.0\" IssueInstant=\"2020-01-01T00:00:00Z\">")
+            .append("<saml:Issuer>https://auth.softwareplumbers.com/auth/realms/doctane-test</saml:Issuer>")
+            .append("<saml:Subject><saml:NameID>jonathan</saml:NameID></saml:Subject>")
+            .append("<saml:AttributeStatement>");
+        for (int i = 0; i < attributes; i++) {
+            xml.append("<saml:Attribute Name=\"attribute").append(i).append("\">")
+                .append("<saml:AttributeValue>value of attribute ").append(i).append("</saml:AttributeValue>")
+                .append("</saml:Attribute>");
+        }
+        return xml.append("</saml:AttributeStatement></saml:Assertion></samlp:Response>").toString();
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        service = new SAMLProtocolHandlerService();
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
+        samlResponse = Base64.getMimeEncoder().encodeToString(response(attributes).getBytes(StandardCharsets.UTF_8));
+        form = ("SAMLResponse=" + URLEncoder.encode(samlResponse, "UTF-8") + "&RelayState=" + URLEncoder.encode("https://client/page", "UTF-8")).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public Object parseUnpooled() throws Exception {
+        ByteArrayInputStream is = new ByteArrayInputStream(Base64.getMimeDecoder().decode(samlResponse));
+        Document document = documentBuilderFactory.newDocumentBuilder().parse(is);
+        Element element = document.getDocumentElement();
+        return unmarshallerFactory.getUnmarshaller(element).unmarshall(element);
+    }
+
+    @Benchmark
+    public Object parsePooled() throws Exception {
+        return service.parseSamlResponse(samlResponse);
+    }
+
+    @Benchmark
+    public Object formUnstreamed() throws Exception {
+        String body = new String(form, StandardCharsets.US_ASCII);
+        String encoded = body.substring("SAMLResponse=".length(), body.indexOf('&'));
+        return service.parseSamlResponse(URLDecoder.decode(encoded, "UTF-8"));
+    }
+
+    @Benchmark
+    public Object formStreamed() throws Exception {
+        FormReader reader = new FormReader(new ByteArrayInputStream(form), Long.MAX_VALUE);
+        reader.nextField();
+        return service.parseSamlResponse(reader.getValue());
+    }
+}
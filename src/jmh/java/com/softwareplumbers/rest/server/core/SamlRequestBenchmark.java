@@ -0,0 +1,53 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compare formatting SAML sign-on requests by marshalling and from a template.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SamlRequestBenchmark {
+
+    private static final String ACS_URL = "https://api.doctane.com/auth/tmp/saml";
+    private static final Optional<String> ISSUER = Optional.of("doctane-api-saml2");
+
+    private SAMLProtocolHandlerService marshalled;
+    private SAMLProtocolHandlerService templated;
+
+    @Setup
+    public void setup() throws Exception {
+        marshalled = new SAMLProtocolHandlerService();
+        templated = new SAMLProtocolHandlerService();
+        templated.setTemplateRequests(true);
+    }
+
+    @Benchmark
+    public String formatMarshalled() throws Exception {
+        return marshalled.formatRequest(ACS_URL, ISSUER);
+    }
+
+    @Benchmark
+    public String formatTemplated() throws Exception {
+        return templated.formatRequest(ACS_URL, ISSUER);
+    }
+}
@@ -0,0 +1,134 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.impl.IssuerBuilder;
+import org.opensaml.saml.saml2.core.impl.ResponseBuilder;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.impl.SignatureBuilder;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.Signer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.w3c.dom.Element;
+
+/** Benchmark SAML response signature validation.
+ *
+ * Generates a signing key and certificate, publishes them in IdP metadata derived from the
+ * bundled idp-metadata.xml, and signs a response with them.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class SamlSignatureBenchmark {
+
+    private static final String ENTITY_ID = "https://auth.softwareplumbers.com/auth/realms/doctane-test";
+
+    @Threads(1)
+    public static class SingleThread extends SamlSignatureBenchmark {
+    }
+
+    @Threads(4)
+    public static class Contended extends SamlSignatureBenchmark {
+    }
+
+    private SAMLProtocolHandlerService service;
+    private String samlResponse;
+    private Response response;
+
+    private static X509Certificate certificate(KeyPair keyPair) throws Exception {
+        X500Name name = new X500Name("CN=doctane-benchmark");
+        Date now = new Date();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE, now, new Date(now.getTime() + 86400000L), name, keyPair.getPublic());
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X509Certificate certificate = certificate(keyPair);
+
+        String metadata;
+        try (InputStream is = new ClassPathResource("/config/idp-metadata.xml").getInputStream()) {
+            metadata = IOUtils.toString(is, StandardCharsets.UTF_8)
+                .replaceAll("<dsig:X509Certificate>[^<]*</dsig:X509Certificate>",
+                    "<dsig:X509Certificate>" + Base64.getEncoder().encodeToString(certificate.getEncoded()) + "</dsig:X509Certificate>");
+        }
+        service = new SAMLProtocolHandlerService(ENTITY_ID, new ByteArrayResource(metadata.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public long lastModified() {
+                return 0;
+            }
+        });
+
+        Response unsigned = new ResponseBuilder().buildObject();
+        unsigned.setID("_" + SAMLProtocolHandlerService.generateId());
+        unsigned.setIssueInstant(DateTime.now());
+        Issuer issuer = new IssuerBuilder().buildObject();
+        issuer.setValue(ENTITY_ID);
+        unsigned.setIssuer(issuer);
+        Signature signature = new SignatureBuilder().buildObject();
+        signature.setSigningCredential(new BasicX509Credential(certificate, keyPair.getPrivate()));
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        unsigned.setSignature(signature);
+        Element element = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(unsigned).marshall(unsigned);
+        Signer.signObject(signature);
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(element), new StreamResult(xml));
+        samlResponse = Base64.getEncoder().encodeToString(xml.toByteArray());
+
+        response = service.parseSamlResponse(samlResponse);
+        if (!service.validateSignature(response)) throw new IllegalStateException("signature not valid");
+    }
+
+    @Benchmark
+    public boolean validateSignature() {
+        return service.validateSignature(response);
+    }
+
+    @Benchmark
+    public boolean parseAndValidateSignature() throws Exception {
+        return service.validateSignature(service.parseSamlResponse(samlResponse));
+    }
+}
@@ -0,0 +1,91 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.model.SignedRequestValidationService;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compare signed service request verification with and without cached keys and verifiers.
+ *
+ * verifyUncached reproduces the original path: a key manager lookup, a provider lookup and
+ * initVerify for every request.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SignedRequestBenchmark {
+
+    private static final String ACCOUNT = SystemKeyPairs.DEFAULT_SERVICE_ACCOUNT.name();
+
+    private Path file;
+    private Path folder;
+    private KeyManager<SystemSecretKeys,SystemKeyPairs> keyManager;
+    private SignedRequestValidationService service;
+    private byte[] request;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws Exception {
+        String tmpDir = System.getProperty("java.io.tmpdir");
+        file = FileSystems.getDefault().getPath(tmpDir, "Doctane_BENCHMARK.keystore");
+        folder = FileSystems.getDefault().getPath(tmpDir, "Doctane_BENCHMARK_exports");
+        Files.createDirectories(folder);
+        keyManager = new KeyManager<>(file.toString(), folder.toString(), "password", SystemSecretKeys.class, SystemKeyPairs.class);
+        service = new SignedRequestValidationService(keyManager);
+        request = ("{\"account\":\"" + ACCOUNT + "\",\"instant\":" + System.currentTimeMillis() + "}").getBytes(StandardCharsets.UTF_8);
+        Signature signer = Signature.getInstance(KeyManager.PUBLIC_KEY_SIGNATURE_ALGORITHM, "SUN");
+        signer.initSign(keyManager.getKeyPair(SystemKeyPairs.DEFAULT_SERVICE_ACCOUNT).getPrivate());
+        signer.update(request);
+        signature = signer.sign();
+    }
+
+    @TearDown
+    public void cleanup() throws Exception {
+        file.toFile().delete();
+        Files.list(folder).forEach(path -> path.toFile().delete());
+        folder.toFile().delete();
+    }
+
+    @Benchmark
+    public boolean verifyUncached() throws Exception {
+        Key key = keyManager.getKey(ACCOUNT);
+        Signature sig = Signature.getInstance(KeyManager.PUBLIC_KEY_SIGNATURE_ALGORITHM, "SUN");
+        sig.initVerify((PublicKey)key);
+        sig.update(request);
+        return sig.verify(signature);
+    }
+
+    @Benchmark
+    public boolean verifyCached() throws Exception {
+        return service.validateSignature(request, signature, ACCOUNT);
+    }
+
+    @Benchmark
+    public boolean verifyUnknownAccount() throws Exception {
+        return service.validateSignature(request, signature, "unknown");
+    }
+}
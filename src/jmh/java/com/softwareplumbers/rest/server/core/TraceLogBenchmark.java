@@ -0,0 +1,93 @@
+package com.softwareplumbers.rest.server.core;
+
+import ch.qos.logback.classic.Level;
+import com.softwareplumbers.rest.server.util.TraceLog;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Cost of entry and exit tracing with TRACE disabled.
+ *
+ * Compares a method with no tracing against the same method traced through TraceLog and directly
+ * through XLogger. With TRACE off the TraceLog variants should match the untraced baseline in time and
+ * show no allocation (gc.alloc.rate.norm of zero), whereas calling XLogger directly boxes primitive
+ * arguments and results, and allocates a varargs array unless the JIT can eliminate it.
+ * AuthenticationBenchmark.filterCookie measures the same for the whole token validation path.
+ *
+ * @author jonat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceLogBenchmark {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(TraceLogBenchmark.class);
+
+    private String repository;
+    private String user;
+    private Object request;
+    private long instant;
+
+    @Setup
+    public void setup() {
+        ((ch.qos.logback.classic.Logger)LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        if (LOG.isTraceEnabled()) throw new IllegalStateException("TRACE is enabled");
+        repository = "tmp";
+        user = "jonathan.essex@softwareplumbers.com";
+        request = new Object();
+        instant = System.currentTimeMillis();
+    }
+
+    private boolean validate(String repository, String user, Object request) {
+        return repository.length() + user.length() > request.hashCode();
+    }
+
+    @Benchmark
+    public boolean untraced() {
+        return validate(repository, user, request);
+    }
+
+    @Benchmark
+    public boolean traceLog() {
+        TraceLog.entry(LOG, repository, user, request);
+        return TraceLog.exit(LOG, validate(repository, user, request));
+    }
+
+    @Benchmark
+    public boolean xlogger() {
+        LOG.entry(repository, user, request);
+        return LOG.exit(validate(repository, user, request));
+    }
+
+    @Benchmark
+    public long untracedPrimitive() {
+        return instant + 1;
+    }
+
+    @Benchmark
+    public long traceLogPrimitive() {
+        TraceLog.entry(LOG, instant);
+        return TraceLog.exit(LOG, instant + 1);
+    }
+
+    @Benchmark
+    public long xloggerPrimitive() {
+        LOG.entry(instant);
+        return LOG.exit(instant + 1);
+    }
+}
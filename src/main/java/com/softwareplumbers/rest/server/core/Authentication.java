@@ -2,48 +2,78 @@ package com.softwareplumbers.rest.server.core;
 
 //import com.softwareplumbers.dms.rest.server.core.Error;
 import com.drew.lang.Charsets;
+import com.softwareplumbers.authz.AuthorizationService;
+import com.softwareplumbers.authz.AuthorizationServiceFactory;
 import com.softwareplumbers.rest.server.model.AuthenticationService;
 import com.softwareplumbers.rest.server.model.CoreExceptions;
 import com.softwareplumbers.rest.server.model.CoreExceptions.AuthenticationError;
 import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
 import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService.SAMLParsingError;
 import com.softwareplumbers.rest.server.model.SignedRequestValidationService.RequestValidationError;
+import com.softwareplumbers.rest.server.util.FormReader;
+import com.softwareplumbers.rest.server.util.Metrics;
+import com.softwareplumbers.rest.server.util.Metrics.Outcome;
+import com.softwareplumbers.rest.server.util.Span;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Singleton;
 import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
 import javax.ws.rs.Consumes;
-import javax.ws.rs.FormParam;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.NewCookie;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.SecurityContext;
 
 import org.springframework.stereotype.Component;
 
+import com.softwareplumbers.rest.server.util.TraceLog;
 import org.slf4j.ext.XLogger;
 import java.util.Optional;
 import javax.ws.rs.PathParam;
 import org.slf4j.ext.XLoggerFactory;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.annotation.Autowired;
 
 /** Handle authentication operations
  * 
  * The main rest endpoints use a JWT token to authenticate the caller. The Authentication methods
  * provide different ways to obtain a token. 
  * 
+ * If embedUserMetadata is set for the repository, user metadata is retrieved from the repository's
+ * authorization service when a token is issued, and embedded in the token.
+ * 
  * @author Jonathan Essex
  *
  */
@@ -53,12 +83,37 @@ import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 public class Authentication {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(Authentication.class);
+    private static final Metrics.Timer<Outcome> SAML_PARSE_TIMER = Metrics.timer("doctane_saml_parse_seconds", "Time taken to read and parse a SAML response", Outcome.class);
+    private static final Metrics.Timer<Outcome> SAML_SIGNATURE_TIMER = Metrics.timer("doctane_saml_signature_seconds", "Time taken to validate the signature of a SAML response", Outcome.class);
+    private static final Metrics.Timer<Outcome> SIGNED_REQUEST_TIMER = Metrics.timer("doctane_signed_request_seconds", "Time taken to validate a signed service request", Outcome.class);
+    
+    /** Maximum number of requests accepted by the batch service authentication endpoint */
+    public static final int MAX_BATCH_SIZE = 1000;
+    public static final int MAX_RELAY_STATE_LENGTH = 8192;
+    
+    /** Bounded pool used to verify batched service requests; callers run tasks themselves when it is saturated */
+    private static final ExecutorService BATCH_EXECUTOR = batchExecutor();
+    
+    private static ExecutorService batchExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_BATCH_SIZE), runnable -> {
+            Thread thread = new Thread(runnable, "auth-batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
     
     private final AuthenticationServiceFactory authenticationServiceFactory;
+    private AuthorizationServiceFactory<?,?,?> authorizationServiceFactory;
     
     private  AuthenticationService getAuthenticationService(String repository) throws CoreExceptions.InvalidService {
         try {
-            return authenticationServiceFactory.getService(repository);
+            AuthenticationService service = authenticationServiceFactory.getService(repository);
+            if (service == null) throw new CoreExceptions.InvalidService(repository);
+            return service;
         } catch (NoSuchBeanDefinitionException e) {
             throw new CoreExceptions.InvalidService(repository);
         }
@@ -73,6 +128,38 @@ public class Authentication {
     ) {
         this.authenticationServiceFactory = authenticationServiceFactory;
     }
+    
+    /**
+     * Use by Spring to inject a service factory for retrieval of a named authorization service.
+     * 
+     * Required only if user metadata is to be embedded in tokens.
+     *
+     * @param authorizationServiceFactory A factory for retrieving named services
+     */
+    @Autowired(required = false)
+    public void setAuthorizationServiceFactory(AuthorizationServiceFactory<?,?,?> authorizationServiceFactory) {
+        this.authorizationServiceFactory = authorizationServiceFactory;
+    }
+    
+    /** Add an identity token to a response, embedding user metadata if so configured.
+     * 
+     * If user metadata cannot be retrieved, a token is issued without it.
+     */
+    private Response.ResponseBuilder sendIdentityToken(String repository, AuthenticationService authService, Response.ResponseBuilder response, String userId) {
+        if (authService.isEmbedUserMetadata() && authorizationServiceFactory != null) {
+            try {
+                AuthorizationService<?,?,?> authzService = authorizationServiceFactory.getService(repository);
+                if (authzService != null) {
+                    Date retrieved = new Date();
+                    JsonObject userMetadata = authzService.getUserMetadata(userId);
+                    return authService.getRequestValidationService().sendIdentityToken(response, userId, null, userMetadata, retrieved);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Could not retrieve user metadata for {}: {}", userId, e.getMessage());
+            }
+        }
+        return authService.getRequestValidationService().sendIdentityToken(response, userId);
+    }
      
     /** Check to see if a token is valid and, if so, how long for.
      * 
@@ -89,7 +176,7 @@ public class Authentication {
     @GET
     @Produces({MediaType.APPLICATION_JSON})
     public Response getTokenValidity(@PathParam("repository") String repository, @Context ContainerRequestContext context) {
-        LOG.entry(repository, context);
+        TraceLog.entry(LOG, repository, context);
         SecurityContext secContext = context.getSecurityContext();
         JsonObjectBuilder builder = Json.createObjectBuilder();
         builder.add("user", secContext.getUserPrincipal().getName());
@@ -97,7 +184,7 @@ public class Authentication {
         Date validUntil = (Date)context.getProperty("validUntil");
         if (validFrom != null) builder.add("validFrom", DateTimeFormatter.ISO_INSTANT.format(validFrom.toInstant()));
         if (validUntil != null) builder.add("validUntil", DateTimeFormatter.ISO_INSTANT.format(validUntil.toInstant()));
-        return LOG.exit(Response.ok(MediaType.APPLICATION_JSON_TYPE).entity(builder.build()).build());      
+        return TraceLog.exit(LOG, Response.ok(MediaType.APPLICATION_JSON_TYPE).entity(builder.build()).build());      
     }
 
     /** Handle a SAML2 response
@@ -105,9 +192,15 @@ public class Authentication {
      * Doctane handles a SAML2 authentication flow with this method. Takes a SAML response (passed here from
      * the IDP via the client), validate it, and if OK passes a JWT token back to the client with a redirect.
      * 
+     * The posted form contains a SAMLResponse field (the SAML response signed by the IDP containing authenticated 
+     * user details) and a RelayState field (the client URI for redirect). The form is read as a stream, and the 
+     * SAML response is URL decoded, Base64 decoded and parsed as it is read. Forms larger than the maxSamlResponseSize
+     * of the SAML protocol handler are rejected with REQUEST ENTITY TOO LARGE.
+     * 
      * @param repository Repository to authorize
-     * @param samlResponse SAML response signed by IDP containing authenticated user details
-     * @param relayStateBase64 client URI for redirect encoded in Base64
+     * @param contentLength Length of the posted form, or -1 if not known
+     * @param form URL encoded form containing SAMLResponse and RelayState fields
+     * @param context request context, used for tracing
      * @return A SEE OTHER response redirecting to the URI specified in relayState
      * @throws CoreExceptions.InvalidService if repository is invalid
      * @throws CoreExceptions.AuthenticationError is request cannot be validated
@@ -118,34 +211,80 @@ public class Authentication {
     @Consumes({ MediaType.APPLICATION_FORM_URLENCODED })
     public Response handleSamlResponse(
         @PathParam("repository") String repository,     
-        @FormParam("SAMLResponse") String samlResponse,
-        @FormParam("RelayState") String relayState
-        
+        @HeaderParam(HttpHeaders.CONTENT_LENGTH) @DefaultValue("-1") long contentLength,
+        InputStream form,
+        @Context ContainerRequestContext context
     ) throws CoreExceptions.InvalidService, CoreExceptions.AuthenticationError
     {
-        LOG.entry(repository, "<SAMLResponse redacted>", relayState);
+        TraceLog.entry(LOG, repository, contentLength);
         // this was a desperate effort to just stop the SAML process messing with the relay state by decoding it.
+        Span span = Span.of(context).child("saml processing").setAttribute("repository", repository);
                 
         try {     
             AuthenticationService authService = getAuthenticationService(repository);
             SAMLProtocolHandlerService samlResponseHandler = authService.getSAMLResponseHandlerService();
-    
-            org.opensaml.saml.saml2.core.Response response = samlResponseHandler.parseSamlResponse(samlResponse);
+            
+            long maxSize = samlResponseHandler.getMaxSamlResponseSize();
+            if (contentLength > maxSize) return TraceLog.exit(LOG, Response.status(Status.REQUEST_ENTITY_TOO_LARGE).build());
+            
+            FormReader reader = new FormReader(form, maxSize);
+            org.opensaml.saml.saml2.core.Response response = null;
+            String relayState = null;
+            String field;
+            while ((field = reader.nextField()) != null) {
+                if (field.equals("SAMLResponse") && response == null) {
+                    long start = System.nanoTime();
+                    Outcome outcome = Outcome.ERROR;
+                    Span parseSpan = span.child("saml parse");
+                    try {
+                        response = samlResponseHandler.parseSamlResponse(reader.getValue());
+                        outcome = Outcome.SUCCESS;
+                    } finally {
+                        SAML_PARSE_TIMER.recordSince(repository, outcome, start);
+                        parseSpan.setAttribute("outcome", outcome.name()).end();
+                    }
+                } else if (field.equals("RelayState")) {
+                    relayState = reader.getValueAsString(MAX_RELAY_STATE_LENGTH);
+                }
+            }
+            if (response == null || relayState == null) return TraceLog.exit(LOG, Response.status(Status.NOT_ACCEPTABLE).build());
+            
+            if (samlResponseHandler.isReplayed(response)) {
+                LOG.debug("Rejecting replayed SAML response");
+                return TraceLog.exit(LOG, Response.status(Status.FORBIDDEN).build());
+            }
+        
+            long start = System.nanoTime();
+            Span signatureSpan = span.child("saml signature validation");
+            boolean validSignature = samlResponseHandler.validateSignature(response);
+            SAML_SIGNATURE_TIMER.recordSince(repository, validSignature ? Outcome.SUCCESS : Outcome.FAILURE, start);
+            signatureSpan.setAttribute("valid", Boolean.toString(validSignature)).end();
         
-            if (samlResponseHandler.validateSignature(response) && samlResponseHandler.hasDocumentViewerRole(response)) {
+            if (validSignature 
+                && samlResponseHandler.useAssertions(response) 
+                && samlResponseHandler.hasDocumentViewerRole(response)) {
                 URI location = new URI(relayState);
-                return LOG.exit( 
-                    authService.getRequestValidationService().sendIdentityToken(
+                return TraceLog.exit(LOG, sendIdentityToken(
+                            repository,
+                            authService,
                             Response.seeOther(location), 
                             samlResponseHandler.getName(response)
                     ).build()
                 );
             } else {
-                return LOG.exit(Response.status(Status.FORBIDDEN).build());
+                return TraceLog.exit(LOG, Response.status(Status.FORBIDDEN).build());
             }
-        } catch(SAMLParsingError | URISyntaxException e) {
+        } catch(SAMLParsingError | URISyntaxException | IOException e) {
+            if (isTooLarge(e)) return TraceLog.exit(LOG, Response.status(Status.REQUEST_ENTITY_TOO_LARGE).build());
             throw LOG.throwing(new CoreExceptions.AuthenticationError(e));
-        }         
+        } finally {
+            span.end();
+        }
+    }
+    
+    private static boolean isTooLarge(Throwable e) {
+        for (; e != null; e = e.getCause()) if (e instanceof FormReader.TooLarge) return true;
+        return false;
     }
     
     /**  Handle service authentication request (i.e.authentication via public key)
@@ -153,6 +292,10 @@ public class Authentication {
      * The request is made in the form of a JSON object { account: X, instant: Y }. The account is the alias of the 
      * public key stored in the server's key store, which will be used to validate the signature. Instant is a 
      * timestamp, which must be within 60 seconds of the current system time.
+     * 
+     * Each request is accepted only once, so a second request identical to the first is refused as a replay. 
+     * A client which may send more than one request in the same millisecond must make each request unique,
+     * for example by adding a nonce field: { account: X, instant: Y, nonce: Z }. Other fields are ignored.
      *
      * @param repository Repository to authenticate to
      * @param request Request for access to the API (a base 64 encoded JSON object)
@@ -169,7 +312,7 @@ public class Authentication {
         @QueryParam("signature") String signature
     ) throws CoreExceptions.InvalidService, CoreExceptions.AuthenticationError
     {
-        LOG.entry(repository, request, signature);
+        TraceLog.entry(LOG, repository, request, signature);
         
         try {
             AuthenticationService authService = getAuthenticationService(repository);
@@ -177,17 +320,107 @@ public class Authentication {
             if (request == null) return Response.status(Status.NOT_ACCEPTABLE).build();
             if (signature == null) return Response.status(Status.NOT_ACCEPTABLE).build();
         
-            Optional<String> account = authService.getSignedRequestValidationService().validateSignature(request, signature);
+            Optional<String> account = validateSignedRequest(repository, authService, request, signature);
             if (account.isPresent()) {
-                return LOG.exit(authService.getRequestValidationService().sendIdentityToken(Response.ok(), account.get()).build());
+                return TraceLog.exit(LOG, sendIdentityToken(repository, authService, Response.ok(), account.get()).build());
             } else {
-                return LOG.exit(Response.status(Status.FORBIDDEN).build());
+                return TraceLog.exit(LOG, Response.status(Status.FORBIDDEN).build());
             }
         } catch(RequestValidationError e) {
             throw LOG.throwing(new AuthenticationError(e));
         } 
     }
     
+    /** Validate a signed service request, recording the time taken.
+     * 
+     * @return The account which signed the request, if the signature is valid
+     */
+    private static Optional<String> validateSignedRequest(String repository, AuthenticationService authService, String request, String signature) throws RequestValidationError {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            Optional<String> account = authService.getSignedRequestValidationService().validateSignature(request, signature);
+            outcome = account.isPresent() ? Outcome.SUCCESS : Outcome.FAILURE;
+            return account;
+        } finally {
+            SIGNED_REQUEST_TIMER.recordSince(repository, outcome, start);
+        }
+    }
+    
+    /** Authenticate a single item of a batch service authentication request.
+     * 
+     * @return A result object with the same status as would be returned by handleServiceRequest
+     */
+    private JsonObject handleBatchItem(String repository, AuthenticationService authService, JsonObject item) {
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        String request = item.getString("request", null);
+        String signature = item.getString("signature", null);
+        if (request == null || signature == null) 
+            return result.add("status", Status.NOT_ACCEPTABLE.getStatusCode()).build();
+        try {
+            Optional<String> account = validateSignedRequest(repository, authService, request, signature);
+            if (!account.isPresent()) 
+                return result.add("status", Status.FORBIDDEN.getStatusCode()).build();
+            Response identity = sendIdentityToken(repository, authService, Response.ok(), account.get()).build();
+            result.add("status", Status.OK.getStatusCode()).add("account", account.get());
+            for (NewCookie cookie : identity.getCookies().values()) {
+                result.add("cookie", cookie.getName()).add("token", cookie.getValue());
+            }
+            return result.build();
+        } catch (RequestValidationError e) {
+            return result.add("status", Status.INTERNAL_SERVER_ERROR.getStatusCode()).add("error", new AuthenticationError(e).toJson()).build();
+        } catch (IllegalArgumentException e) {
+            return result.add("status", Status.BAD_REQUEST.getStatusCode()).build();
+        }
+    }
+    
+    /** Handle a batch of service authentication requests.
+     * 
+     * Takes a JSON array of objects { request: X, signature: Y }, where request and signature are as for
+     * handleServiceRequest. The signatures are verified in parallel, and a JSON array returned with one 
+     * result per item, in the same order. Each result has a status which is the HTTP status that
+     * handleServiceRequest would return for that item; a successful result also includes the account,
+     * and the name and value of the token cookie. An item repeating an earlier item of the batch is
+     * refused as a replay.
+     *
+     * @param repository Repository to authenticate to
+     * @param requests Array of signed requests
+     * @return An array of results
+     * @throws CoreExceptions.InvalidService is repository is invalid
+     */
+    @Path("{repository}/service/batch")
+    @POST
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response handleServiceRequestBatch(
+        @PathParam("repository") String repository,
+        JsonArray requests
+    ) throws CoreExceptions.InvalidService
+    {
+        TraceLog.entry(LOG, repository, requests == null ? null : requests.size());
+        AuthenticationService authService = getAuthenticationService(repository);
+        if (requests == null) return TraceLog.exit(LOG, Response.status(Status.BAD_REQUEST).build());
+        if (requests.size() > MAX_BATCH_SIZE) return TraceLog.exit(LOG, Response.status(Status.REQUEST_ENTITY_TOO_LARGE).build());
+        
+        // A repeated request would be refused as a replay by whichever copy is validated second; refusing
+        // duplicates up front makes the first occurrence the one that succeeds.
+        Set<String> seen = new HashSet<>();
+        List<CompletableFuture<JsonObject>> results = new ArrayList<>(requests.size());
+        for (JsonValue item : requests) {
+            if (!(item instanceof JsonObject)) {
+                results.add(CompletableFuture.completedFuture(Json.createObjectBuilder().add("status", Status.BAD_REQUEST.getStatusCode()).build()));
+            } else if (!seen.add(((JsonObject)item).getString("request", "") + "." + ((JsonObject)item).getString("signature", ""))) {
+                results.add(CompletableFuture.completedFuture(Json.createObjectBuilder().add("status", Status.FORBIDDEN.getStatusCode()).build()));
+            } else {
+                results.add(CompletableFuture.supplyAsync(() -> handleBatchItem(repository, authService, (JsonObject)item), BATCH_EXECUTOR));
+            }
+        }
+        
+        JsonArrayBuilder response = Json.createArrayBuilder();
+        results.forEach(result -> response.add(result.join()));
+        return TraceLog.exit(LOG, Response.ok(MediaType.APPLICATION_JSON_TYPE).entity(response.build()).build());
+    }
+    
     /** Redirect the requestor to the preferred authentication service for the given repository 
      *
      * @param repository Repository we want a sign-on for
@@ -202,9 +435,9 @@ public class Authentication {
         @QueryParam("relayState") String relayState
     ) throws CoreExceptions.InvalidService 
     {
-        LOG.entry(repository, relayState);
+        TraceLog.entry(LOG, repository, relayState);
         AuthenticationService authService = getAuthenticationService(repository);
-        return LOG.exit(authService.getSignonService().redirect(relayState));
+        return TraceLog.exit(LOG, authService.getSignonService().redirect(relayState));
     }
 
 }
@@ -1,5 +1,6 @@
 package com.softwareplumbers.rest.server.core;
 
+import com.softwareplumbers.rest.server.util.TraceLog;
 import org.slf4j.ext.XLogger;
 import java.io.IOException;
 
@@ -12,9 +13,16 @@ import org.springframework.stereotype.Component;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
 import org.springframework.beans.factory.annotation.Autowired;
+import com.softwareplumbers.rest.server.model.AuthenticationService;
 import com.softwareplumbers.rest.server.model.RequestValidationService;
+import com.softwareplumbers.rest.server.util.Metrics;
+import com.softwareplumbers.rest.server.util.Metrics.Outcome;
+import com.softwareplumbers.rest.server.util.Span;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.Priority;
-import org.apache.log4j.MDC;
+import org.slf4j.MDC;
 import org.slf4j.ext.XLoggerFactory;
 
 /** Authentication filter.
@@ -31,8 +39,26 @@ import org.slf4j.ext.XLoggerFactory;
 public class AuthenticationFilter implements ContainerRequestFilter {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(AuthenticationFilter.class);
+    private static final Metrics.Timer<Outcome> FILTER_TIMER = Metrics.timer("doctane_authentication_filter_seconds", "Time taken to authenticate a request", Outcome.class);
+    
+    /** Counts of authentication attempts for a repository. */
+    public static class Statistics {
+        private final LongAdder authentications = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        
+        /** @return number of requests validated */
+        public long getAuthentications() { return authentications.sum(); }
+        /** @return number of requests which failed validation */
+        public long getFailures() { return failures.sum(); }
+        
+        @Override
+        public String toString() {
+            return "authentications: " + getAuthentications() + " failures: " + getFailures();
+        }
+    }
     
     private AuthenticationServiceFactory authServiceFactory;
+    private final Map<String, Statistics> statistics = new ConcurrentHashMap<>();
         
     /**
      * Use by Spring to inject a service factory for retrieval of a named authentication service.
@@ -56,25 +82,48 @@ public class AuthenticationFilter implements ContainerRequestFilter {
     @Override
     public void filter(ContainerRequestContext requestContext) throws IOException {       
         String repository = requestContext.getUriInfo().getPathParameters().getFirst("repository");
-        LOG.entry(repository);
+        TraceLog.entry(LOG, repository);
  
         
         boolean authenticated = false;
+        String metricsRepository = repository == null ? null : Metrics.UNKNOWN_REPOSITORY;
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        Span span = Span.of(requestContext).child("token validation");
         
-        if (repository != null) {
-            RequestValidationService validationService = authServiceFactory.getService(repository).getRequestValidationService();
-            if (validationService != null) {
-                authenticated = validationService.validateRequest(requestContext);
-            } 
-        } else {
-            LOG.warn("Could not find repository path parameter");
+        try {
+            if (repository != null) {
+                AuthenticationService authService = authServiceFactory.getService(repository);
+                if (authService != null) metricsRepository = repository;
+                RequestValidationService validationService = authService == null ? null : authService.getRequestValidationService();
+                if (validationService != null) {
+                    authenticated = validationService.validateRequest(requestContext);
+                    Statistics stats = statistics.get(repository);
+                    if (stats == null) stats = statistics.computeIfAbsent(repository, k -> new Statistics());
+                    stats.authentications.increment();
+                    if (!authenticated) stats.failures.increment();
+                } 
+            } else {
+                LOG.warn("Could not find repository path parameter");
+            }
+            outcome = authenticated ? Outcome.SUCCESS : Outcome.FAILURE;
+        } finally {
+            FILTER_TIMER.recordSince(metricsRepository, outcome, start);
+            span.setAttribute("repository", repository).setAttribute("outcome", outcome.name()).end();
         }
         
         if (authenticated) {
-            MDC.put("user", requestContext.getSecurityContext().getUserPrincipal().getName());
+            MDC.put(LoggingContextFilter.USER, requestContext.getSecurityContext().getUserPrincipal().getName());
         } 
         else requestContext.abortWith(Response.status(Status.UNAUTHORIZED).build());
-        LOG.exit();
+        TraceLog.exit(LOG);
+    }
+    
+    /** Get counts of authentication attempts for each repository with a request validation service.
+     * 
+     * @return map of repository name to statistics
+     */
+    public Map<String, Statistics> getStatistics() {
+        return statistics;
     }
-
 }
@@ -0,0 +1,120 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.util.ExpiringCache;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/** Caching registry of Authentication Services.
+ *
+ * Sits in front of the AuthenticationServiceFactory service locator defined in services.xml, so that
+ * repository names are resolved through Spring only once. Names which do not resolve to a service
+ * are remembered in a bounded negative cache for negativeCacheMillis, so that requests for unknown
+ * repositories do not each cost a NoSuchBeanDefinitionException. Both caches are flushed whenever
+ * the application context is refreshed.
+ *
+ * Unlike the underlying service locator, getService returns null for an unknown repository.
+ *
+ * To use, define the registry as the primary AuthenticationServiceFactory:
+ *
+ * <pre>
+ * {@code
+ * <bean id="AuthenticationServiceRegistry" class="com.softwareplumbers.rest.server.core.AuthenticationServiceRegistry" primary="true">
+ *     <constructor-arg index="0" ref="AuthenticationServiceFactory"/>
+ * </bean>
+ * }
+ * </pre>
+ *
+ * @author jonathan.local
+ */
+public class AuthenticationServiceRegistry implements AuthenticationServiceFactory, ApplicationListener<ContextRefreshedEvent> {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(AuthenticationServiceRegistry.class);
+
+    public static final int DEFAULT_NEGATIVE_CACHE_SIZE = 1000;
+    public static final long DEFAULT_NEGATIVE_CACHE_MILLIS = 60000L;
+
+    private final AuthenticationServiceFactory serviceLocator;
+    private final ConcurrentHashMap<String, AuthenticationService> services = new ConcurrentHashMap<>();
+    private final ExpiringCache<String, Boolean> unknown = new ExpiringCache<>(DEFAULT_NEGATIVE_CACHE_SIZE);
+    private final LongAdder lookups = new LongAdder();
+    private long negativeCacheMillis = DEFAULT_NEGATIVE_CACHE_MILLIS;
+
+    /** Create a registry.
+     *
+     * @param serviceLocator underlying service locator
+     */
+    public AuthenticationServiceRegistry(AuthenticationServiceFactory serviceLocator) {
+        this.serviceLocator = serviceLocator;
+    }
+
+    /** Set the maximum number of unknown repository names remembered.
+     *
+     * @param negativeCacheSize maximum number of names
+     */
+    public void setNegativeCacheSize(int negativeCacheSize) {
+        unknown.setCapacity(negativeCacheSize);
+    }
+
+    /** Set the time for which an unknown repository name is remembered.
+     *
+     * @param negativeCacheMillis time in milliseconds
+     */
+    public void setNegativeCacheMillis(long negativeCacheMillis) {
+        this.negativeCacheMillis = negativeCacheMillis;
+    }
+
+    /** Get the authentication service for the given repository.
+     *
+     * @param name repository name
+     * @return An authentication service, or null if there is no service for the repository
+     */
+    @Override
+    public AuthenticationService getService(String name) {
+        if (name == null) return null;
+        AuthenticationService service = services.get(name);
+        if (service != null) return service;
+        long now = System.currentTimeMillis();
+        if (unknown.get(name, now) != null) return null;
+        lookups.increment();
+        try {
+            service = serviceLocator.getService(name);
+        } catch (NoSuchBeanDefinitionException e) {
+            service = null;
+        }
+        if (service == null) {
+            LOG.debug("No authentication service for repository {}", name);
+            unknown.put(name, Boolean.TRUE, now + negativeCacheMillis, now);
+            return null;
+        }
+        AuthenticationService existing = services.putIfAbsent(name, service);
+        return existing == null ? service : existing;
+    }
+
+    /** Forget all resolved and unknown repositories. */
+    public void flush() {
+        LOG.entry();
+        services.clear();
+        unknown.clear();
+        LOG.exit();
+    }
+
+    /** Flush the registry when the application context is refreshed.
+     *
+     * @param event context refresh event
+     */
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        flush();
+    }
+
+    @Override
+    public String toString() {
+        return "services: " + services.size() + " lookups: " + lookups.sum() + " unknown: " + unknown;
+    }
+}
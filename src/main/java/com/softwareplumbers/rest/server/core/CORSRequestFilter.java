@@ -1,30 +1,93 @@
 package com.softwareplumbers.rest.server.core;
 
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.model.CORSPolicy;
 import java.io.IOException;
 
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.ext.Provider;
 
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
 
-
+/** Answers CORS preflight requests.
+ * 
+ * A preflight request (an OPTIONS request with Origin and Access-Control-Request-Method headers) is
+ * answered immediately, without reaching the resource. If the origin is allowed by the CORS policy for
+ * the request's repository, CORSResponseFilter adds the policy's preflight headers to the response;
+ * otherwise the preflight is refused with status FORBIDDEN.
+ * 
+ * The policy for a repository is the one set on its AuthenticationService; requests for repositories
+ * without a policy, and requests which are not for a repository, use the default policy. If there is no
+ * default policy bean, any origin is allowed.
+ * 
+ * @author SWPNET\jonessex
+ */
 @Provider
+@Component
 public class CORSRequestFilter implements ContainerRequestFilter {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(CORSRequestFilter.class);
     
-	// TODO: improve, may not need on every request
+    /** Request property set on preflight requests which have been allowed */
+    static final String PREFLIGHT_PROPERTY = "corsPreflight";
+    
+    private AuthenticationServiceFactory authServiceFactory;
+    private CORSPolicy defaultPolicy = new CORSPolicy();
+    
+    /**
+     * Use by Spring to inject a service factory for retrieval of a named authentication service.
+     * 
+     * @param authServiceFactory A factory for retrieving named services
+     */
+    @Autowired
+    public void setRepositoryServiceFactory(AuthenticationServiceFactory authServiceFactory) {
+        this.authServiceFactory = authServiceFactory;
+    }
+    
+    /** Used by Spring to inject the default CORS policy, from the bean named corsPolicy.
+     * 
+     * @param defaultPolicy policy for requests with no repository-specific policy
+     */
+    @Autowired(required = false)
+    public void setDefaultPolicy(@Qualifier("corsPolicy") CORSPolicy defaultPolicy) {
+        this.defaultPolicy = defaultPolicy;
+    }
+    
+    /** Get the CORS policy which applies to a request.
+     * 
+     * @param authServiceFactory factory for repository authentication services, or null
+     * @param defaultPolicy policy to use if the repository has none
+     * @param request the request
+     * @return the repository's CORS policy, or defaultPolicy
+     */
+    static CORSPolicy getPolicy(AuthenticationServiceFactory authServiceFactory, CORSPolicy defaultPolicy, ContainerRequestContext request) {
+        String repository = request.getUriInfo().getPathParameters().getFirst("repository");
+        if (repository == null || authServiceFactory == null) return defaultPolicy;
+        AuthenticationService authService = authServiceFactory.getService(repository);
+        CORSPolicy policy = authService == null ? null : authService.getCorsPolicy();
+        return policy == null ? defaultPolicy : policy;
+    }
+    
     @Override
     public void filter(ContainerRequestContext request) throws IOException {
         String origin = request.getHeaderString("Origin");
-        if (request.getMethod().equals("OPTIONS") && origin != null) {
-            LOG.debug("Handling CORS preflight for {}", origin);
-            Response optionsResponse = Response.ok()
-                    .build();
-            request.abortWith(optionsResponse);
+        if (origin != null && request.getMethod().equals("OPTIONS") && request.getHeaderString("Access-Control-Request-Method") != null) {
+            CORSPolicy policy = getPolicy(authServiceFactory, defaultPolicy, request);
+            if (policy.isAllowed(origin)) {
+                LOG.debug("Handling CORS preflight for {}", origin);
+                request.setProperty(PREFLIGHT_PROPERTY, policy);
+                request.abortWith(Response.ok().build());
+            } else {
+                LOG.debug("Refusing CORS preflight for {}", origin);
+                request.abortWith(Response.status(Status.FORBIDDEN).build());
+            }
         }
     }
-}
\ No newline at end of file
+}
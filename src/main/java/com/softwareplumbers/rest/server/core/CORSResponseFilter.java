@@ -1,28 +1,61 @@
 package com.softwareplumbers.rest.server.core;
 
+import com.softwareplumbers.rest.server.model.CORSPolicy;
 import java.io.IOException;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerResponseContext;
 import javax.ws.rs.container.ContainerResponseFilter;
-import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.Provider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
 
+/** Adds CORS headers to responses.
+ * 
+ * Headers are only added to responses to requests which carry an Origin header allowed by the CORS
+ * policy for the request's repository (see CORSRequestFilter). Preflight responses get the policy's
+ * preflight headers, and other responses its actual response headers. Other responses are only marked
+ * as varying by Origin, unless the policy's varyOrigin is turned off.
+ * 
+ * @author SWPNET\jonessex
+ */
 @Provider
+@Component
 public class CORSResponseFilter implements ContainerResponseFilter {
     
-    private void addHeaders(MultivaluedMap<String,Object> headers, String origin) {
-        headers.add("Access-Control-Allow-Origin", origin);
-        headers.add("Access-Control-Allow-Headers", "origin, content-type, accept, authorization");
-        headers.add("Access-Control-Allow-Credentials", "true");
-        headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD");
-        headers.add("Access-Control-Max-Age", "600");
+    private AuthenticationServiceFactory authServiceFactory;
+    private CORSPolicy defaultPolicy = new CORSPolicy();
+    
+    /**
+     * Use by Spring to inject a service factory for retrieval of a named authentication service.
+     * 
+     * @param authServiceFactory A factory for retrieving named services
+     */
+    @Autowired
+    public void setRepositoryServiceFactory(AuthenticationServiceFactory authServiceFactory) {
+        this.authServiceFactory = authServiceFactory;
+    }
+    
+    /** Used by Spring to inject the default CORS policy, from the bean named corsPolicy.
+     * 
+     * @param defaultPolicy policy for requests with no repository-specific policy
+     */
+    @Autowired(required = false)
+    public void setDefaultPolicy(@Qualifier("corsPolicy") CORSPolicy defaultPolicy) {
+        this.defaultPolicy = defaultPolicy;
     }
 
-    // TODO: implement origin whitelist
     @Override
     public void filter(ContainerRequestContext request,
             ContainerResponseContext response) throws IOException {
-            String origin = request.getHeaderString("Origin");
-            addHeaders(response.getHeaders(), origin);
+        String origin = request.getHeaderString("Origin");
+        Object preflight = request.getProperty(CORSRequestFilter.PREFLIGHT_PROPERTY);
+        if (origin != null && preflight instanceof CORSPolicy) {
+            ((CORSPolicy)preflight).addPreflightHeaders(response.getHeaders(), origin);
+        } else {
+            CORSPolicy policy = CORSRequestFilter.getPolicy(authServiceFactory, defaultPolicy, request);
+            if (policy.isAllowed(origin)) policy.addResponseHeaders(response.getHeaders(), origin);
+            else policy.addVaryHeader(response.getHeaders());
+        }
     }
-}
\ No newline at end of file
+}
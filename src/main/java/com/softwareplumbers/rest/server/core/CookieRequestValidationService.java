@@ -1,20 +1,32 @@
 package com.softwareplumbers.rest.server.core;
 
-import java.security.Key;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.NewCookie;
 
+import com.softwareplumbers.rest.server.util.ExpiringCache;
+import com.softwareplumbers.rest.server.util.HS256JwsCodec;
 import com.softwareplumbers.rest.server.util.JWTSecurityContext;
+import com.softwareplumbers.rest.server.util.Metrics;
+import com.softwareplumbers.rest.server.util.Metrics.Outcome;
 import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.util.TraceLog;
 import org.slf4j.ext.XLogger;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.JwtException;
 import io.jsonwebtoken.Jwts;
 import javax.ws.rs.core.Response.ResponseBuilder;
@@ -23,6 +35,28 @@ import org.slf4j.ext.XLoggerFactory;
 import org.springframework.http.HttpHeaders;
 
 /** Cookie-based Authentication Service.
+ * 
+ * Verified tokens are cached, keyed by a digest of the compact JWS, until the token expires. Tokens
+ * which fail verification are also cached for a short time so that repeated bad cookies are rejected 
+ * cheaply; they are held in a separate, smaller cache, so that a flood of bad cookies cannot evict 
+ * verified tokens. The caches can be disabled or resized through the bean properties tokenCacheEnabled,
+ * tokenCacheSize and invalidTokenCacheSize.
+ * 
+ * Tokens carry the time at which they were issued and the time at which the user originally
+ * authenticated (the auth_time claim), so that a session can be extended by re-issuing a token 
+ * without losing track of the session's absolute age. These are exposed to later filters as
+ * the request properties validFrom and authTime.
+ * 
+ * A snapshot of user metadata may be embedded in a token when it is issued, provided its JSON
+ * text is no longer than maxUserMetadataClaimLength. The snapshot and the time at which it was
+ * retrieved are exposed as the request properties userMetadataSnapshot and userMetadataTime.
+ * 
+ * Tokens are signed with the current key of a JwtKeyRing and carry its key id in the kid header, so that
+ * the signing key can be rotated (see reloadKeys) without invalidating tokens already issued. Retired keys
+ * remain valid for keyGracePeriodMillis, by default the token lifetime.
+ * 
+ * Where the signing key permits, tokens are minted and verified with the specialised HS256JwsCodec
+ * rather than the generic jjwt builder and parser; tokens the codec cannot handle fall back to jjwt.
  * 
  * @author SWPNET\jonessex
  *
@@ -30,16 +64,94 @@ import org.springframework.http.HttpHeaders;
 public class CookieRequestValidationService implements RequestValidationService {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(CookieRequestValidationService.class);
+    private static final Metrics.Timer<Outcome> VERIFY_TIMER = Metrics.timer("doctane_jwt_verify_seconds", "Time taken to verify a token, including token cache lookup", Outcome.class);
 
     // SameSite not supported by the version of javax/ws I am using at the moment.
     enum SameSite { None, Lax, Strict };
     
-    private final Key jwtSigningKey;
+    public static final long DEFAULT_TOKEN_LIFETIME_MILLIS = 86400000L;
+    public static final int DEFAULT_TOKEN_CACHE_SIZE = 10000;
+    public static final long DEFAULT_INVALID_TOKEN_CACHE_MILLIS = 30000L;
+    public static final int DEFAULT_INVALID_TOKEN_CACHE_SIZE = 1000;
+    /** Cache lifetime of a valid token which carries no expiration date */
+    public static final long DEFAULT_VALID_TOKEN_CACHE_MILLIS = 3600000L;
+    public static final int DEFAULT_MAX_USER_METADATA_CLAIM_LENGTH = 2048;
+    
+    /** Result of verifying a JWS; a null security context indicates an invalid token */
+    private static class VerifiedToken {
+        public final JWTSecurityContext securityContext;
+        public final Date validUntil;
+        public final Date validFrom;
+        public final Date authTime;
+        public final JsonObject userMetadata;
+        public final Date userMetadataTime;
+        
+        /** Id of the key which signed the token */
+        public final String keyId;
+        /** Time after which the key which signed the token is no longer accepted */
+        public final long keyValidUntil;
+        
+        public VerifiedToken(Claims claims, JwtKeyRing.SigningKey signingKey) {
+            this.securityContext = new JWTSecurityContext(claims);
+            this.keyId = signingKey.keyId;
+            this.keyValidUntil = signingKey.validUntil;
+            this.validUntil = claims.getExpiration();
+            this.validFrom = claims.getNotBefore() != null ? claims.getNotBefore() : claims.getIssuedAt();
+            Object authTimeClaim = claims.get(HS256JwsCodec.AUTH_TIME);
+            this.authTime = authTimeClaim instanceof Number ? new Date(((Number)authTimeClaim).longValue() * 1000) : validFrom;
+            Object userMetadataTimeClaim = claims.get(HS256JwsCodec.USER_METADATA_TIME);
+            Object userMetadataClaim = claims.get(HS256JwsCodec.USER_METADATA);
+            JsonObject snapshot = null;
+            if (userMetadataTimeClaim instanceof Number && userMetadataClaim instanceof String) {
+                try (JsonReader reader = Json.createReader(new StringReader((String)userMetadataClaim))) {
+                    snapshot = reader.readObject();
+                } catch (JsonException e) {
+                    LOG.debug("Ignoring malformed user metadata claim: {}", e.getMessage());
+                }
+            }
+            this.userMetadata = snapshot;
+            this.userMetadataTime = snapshot == null ? null : new Date(((Number)userMetadataTimeClaim).longValue() * 1000);
+        }
+        
+        private VerifiedToken() {
+            this.securityContext = null;
+            this.keyId = null;
+            this.keyValidUntil = 0;
+            this.validUntil = null;
+            this.validFrom = null;
+            this.authTime = null;
+            this.userMetadata = null;
+            this.userMetadataTime = null;
+        }
+        
+        public boolean isValid() {
+            return securityContext != null;
+        }
+    }
+    
+    private static final VerifiedToken INVALID_TOKEN = new VerifiedToken();
+    
+    private static final ThreadLocal<MessageDigest> TOKEN_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    
+    private final JwtKeyRing keyRing;
+    private long keyGracePeriodMillis = -1;
     private final String repository;
     private SameSite sameSite;
+    private final ExpiringCache<ByteBuffer, VerifiedToken> tokenCache = new ExpiringCache<>(DEFAULT_TOKEN_CACHE_SIZE);
+    private final ExpiringCache<ByteBuffer, VerifiedToken> invalidTokenCache = new ExpiringCache<>(DEFAULT_INVALID_TOKEN_CACHE_SIZE);
+    private boolean tokenCacheEnabled = true;
+    private long invalidTokenCacheMillis = DEFAULT_INVALID_TOKEN_CACHE_MILLIS;
+    private long tokenLifetimeMillis = DEFAULT_TOKEN_LIFETIME_MILLIS;
+    private int maxUserMetadataClaimLength = DEFAULT_MAX_USER_METADATA_CLAIM_LENGTH;
 
     public CookieRequestValidationService(KeyManager<SystemSecretKeys, SystemKeyPairs> keyManager, String repository, SameSite sameSite) {
-        jwtSigningKey = keyManager.getKey(SystemSecretKeys.JWT_SIGNING_KEY);
+        keyRing = new JwtKeyRing(keyManager, DEFAULT_TOKEN_LIFETIME_MILLIS);
         this.repository = repository;
         this.sameSite = sameSite;
     }
@@ -48,21 +160,187 @@ public class CookieRequestValidationService implements RequestValidationService
         this(keyManager, repository, SameSite.Lax);
     }
     
+    /** Set the lifetime of issued tokens.
+     * 
+     * @param tokenLifetimeMillis lifetime in milliseconds (default one day)
+     */
+    public void setTokenLifetimeMillis(long tokenLifetimeMillis) {
+        this.tokenLifetimeMillis = tokenLifetimeMillis;
+        if (keyGracePeriodMillis < 0) keyRing.setGracePeriodMillis(tokenLifetimeMillis);
+    }
+    
+    public long getTokenLifetimeMillis() {
+        return tokenLifetimeMillis;
+    }
+    
+    /** Set the time for which tokens signed with a retired key remain valid.
+     * 
+     * @param keyGracePeriodMillis time in milliseconds (default the token lifetime)
+     */
+    public void setKeyGracePeriodMillis(long keyGracePeriodMillis) {
+        this.keyGracePeriodMillis = keyGracePeriodMillis;
+        keyRing.setGracePeriodMillis(keyGracePeriodMillis);
+    }
+    
+    public long getKeyGracePeriodMillis() {
+        return keyRing.getGracePeriodMillis();
+    }
+    
+    /** Get the keys with which tokens are signed and verified.
+     * 
+     * @return the key ring
+     */
+    public JwtKeyRing getKeyRing() {
+        return keyRing;
+    }
+    
+    /** Re-read signing keys from the key manager.
+     * 
+     * If JWT_SIGNING_KEY has changed, new tokens are signed with the new key, and tokens signed with the
+     * old key remain valid for the key grace period. The token caches are cleared, so that no token is
+     * accepted on the strength of a key which is no longer in the ring, and none signed with a new key
+     * is still refused.
+     */
+    public synchronized void reloadKeys() {
+        keyRing.reload();
+        clearTokenCaches();
+    }
+    
+    /** Set the maximum length of user metadata which will be embedded in a token.
+     * 
+     * User metadata whose JSON text is longer than this is left out of the token, so that 
+     * the cookie stays within the limits imposed by browsers.
+     * 
+     * @param maxUserMetadataClaimLength maximum length in characters; zero disables embedding (default 2048)
+     */
+    public void setMaxUserMetadataClaimLength(int maxUserMetadataClaimLength) {
+        this.maxUserMetadataClaimLength = maxUserMetadataClaimLength;
+    }
+    
+    public int getMaxUserMetadataClaimLength() {
+        return maxUserMetadataClaimLength;
+    }
+    
+    /** Enable or disable caching of verified tokens.
+     * 
+     * @param tokenCacheEnabled false to verify every token presented
+     */
+    public void setTokenCacheEnabled(boolean tokenCacheEnabled) {
+        this.tokenCacheEnabled = tokenCacheEnabled;
+        if (!tokenCacheEnabled) clearTokenCaches();
+    }
+    
+    public boolean isTokenCacheEnabled() {
+        return tokenCacheEnabled;
+    }
+    
+    /** Set the maximum number of tokens held in the verified token cache.
+     * 
+     * @param tokenCacheSize maximum number of cached tokens
+     */
+    public void setTokenCacheSize(int tokenCacheSize) {
+        tokenCache.setCapacity(tokenCacheSize);
+    }
+    
+    /** Set the maximum number of tokens held in the invalid token cache.
+     * 
+     * @param invalidTokenCacheSize maximum number of cached tokens which failed verification (default 1000)
+     */
+    public void setInvalidTokenCacheSize(int invalidTokenCacheSize) {
+        invalidTokenCache.setCapacity(invalidTokenCacheSize);
+    }
+    
+    /** Set the time for which a token which fails verification will be remembered.
+     * 
+     * @param invalidTokenCacheMillis time in milliseconds
+     */
+    public void setInvalidTokenCacheMillis(long invalidTokenCacheMillis) {
+        this.invalidTokenCacheMillis = invalidTokenCacheMillis;
+    }
+    
+    /** Get the verified token cache, for statistics and management.
+     * 
+     * @return the verified token cache
+     */
+    public ExpiringCache<?,?> getTokenCache() {
+        return tokenCache;
+    }
+    
+    /** Get the cache of tokens which failed verification, for statistics and management.
+     * 
+     * @return the invalid token cache
+     */
+    public ExpiringCache<?,?> getInvalidTokenCache() {
+        return invalidTokenCache;
+    }
+    
+    /** Remove all entries from the verified and invalid token caches. */
+    public void clearTokenCaches() {
+        tokenCache.clear();
+        invalidTokenCache.clear();
+    }
+    
+    public String getRepository() {
+        return repository;
+    }
+    
     public String generateCookie(String uid) {
-        LOG.entry(uid);
-        ZonedDateTime expirationDate = LocalDateTime.now().plusDays(1).atZone(ZoneId.systemDefault());
-        Date expirationDateAsDate = Date.from(expirationDate.toInstant());
-        String jwt = Jwts.builder()
-            .setSubject(uid)
-            .setExpiration(expirationDateAsDate)
-            .signWith(jwtSigningKey)
-            .compact();
+        return generateCookie(uid, null);
+    }
+    
+    /** Generate a cookie string for the provided User Id.
+     * 
+     * @param uid User Id
+     * @param authTime Time at which the user originally authenticated, or null for a new session
+     * @return a Set-Cookie header value
+     */
+    public String generateCookie(String uid, Date authTime) {
+        return generateCookie(uid, authTime, null, null);
+    }
+    
+    /** Generate a cookie string for the provided User Id.
+     * 
+     * @param uid User Id
+     * @param authTime Time at which the user originally authenticated, or null for a new session
+     * @param userMetadata User metadata to embed in the token, or null
+     * @param userMetadataTime Time at which the user metadata was retrieved
+     * @return a Set-Cookie header value
+     */
+    public String generateCookie(String uid, Date authTime, JsonObject userMetadata, Date userMetadataTime) {
+        TraceLog.entry(LOG, uid, authTime, userMetadata, userMetadataTime);
+        Date issuedAt = new Date();
+        Date expirationDateAsDate = new Date(issuedAt.getTime() + tokenLifetimeMillis);
+        if (authTime == null) authTime = issuedAt;
+        String snapshot = null;
+        if (userMetadata != null && userMetadataTime != null) {
+            snapshot = userMetadata.toString();
+            if (snapshot.length() > maxUserMetadataClaimLength) {
+                LOG.debug("User metadata for {} too large to embed in token ({} characters)", uid, snapshot.length());
+                snapshot = null;
+            }
+        }
+        String jwt;
+        JwtKeyRing.SigningKey signingKey = keyRing.getCurrent();
+        if (signingKey.codec != null) {
+            jwt = signingKey.codec.sign(uid, expirationDateAsDate, null, issuedAt, authTime, snapshot, snapshot == null ? null : userMetadataTime);
+        } else {
+            JwtBuilder builder = Jwts.builder()
+                .setHeaderParam(JwsHeader.KEY_ID, signingKey.keyId)
+                .setSubject(uid)
+                .setExpiration(expirationDateAsDate)
+                .setIssuedAt(issuedAt)
+                .claim(HS256JwsCodec.AUTH_TIME, authTime.getTime() / 1000);
+            if (snapshot != null) builder
+                .claim(HS256JwsCodec.USER_METADATA_TIME, userMetadataTime.getTime() / 1000)
+                .claim(HS256JwsCodec.USER_METADATA, snapshot);
+            jwt = builder.signWith(signingKey.key).compact();
+        }
         Cookie cookie = new NewCookie(
              "DoctaneUserToken/"+repository, jwt, 
              "/", null, Cookie.DEFAULT_VERSION, "Doctane User Token", 
              NewCookie.DEFAULT_MAX_AGE, expirationDateAsDate, sameSite == SameSite.None, false);
         String cookieString = cookie.toString() + "; SameSite=" + sameSite; // Yuk. No support for SameSite in NewCookie yet. Vomit Vomit Vomit.
-        return LOG.exit(cookieString);    
+        return TraceLog.exit(LOG, cookieString);    
     }
     
     /** Generate a cookie for the provided User Id.
@@ -73,8 +351,36 @@ public class CookieRequestValidationService implements RequestValidationService
      */
     @Override
     public ResponseBuilder sendIdentityToken(ResponseBuilder response, String uid) {
-        LOG.entry(uid);
-        return LOG.exit(response.header(HttpHeaders.SET_COOKIE, generateCookie(uid)));
+        TraceLog.entry(LOG, uid);
+        return TraceLog.exit(LOG, response.header(HttpHeaders.SET_COOKIE, generateCookie(uid)));
+    }
+    
+    /** Generate a renewed cookie for the provided User Id.
+     * 
+     * @param response Response to which we add user cookie
+     * @param uid User Id
+     * @param authTime Time at which the user originally authenticated
+     * @return modified response
+     */
+    @Override
+    public ResponseBuilder sendIdentityToken(ResponseBuilder response, String uid, Date authTime) {
+        TraceLog.entry(LOG, uid, authTime);
+        return TraceLog.exit(LOG, response.header(HttpHeaders.SET_COOKIE, generateCookie(uid, authTime)));
+    }
+    
+    /** Generate a cookie for the provided User Id which carries a snapshot of user metadata.
+     * 
+     * @param response Response to which we add user cookie
+     * @param uid User Id
+     * @param authTime Time at which the user originally authenticated, or null for a new session
+     * @param userMetadata User metadata to embed in the token
+     * @param userMetadataTime Time at which the user metadata was retrieved
+     * @return modified response
+     */
+    @Override
+    public ResponseBuilder sendIdentityToken(ResponseBuilder response, String uid, Date authTime, JsonObject userMetadata, Date userMetadataTime) {
+        TraceLog.entry(LOG, uid, authTime, userMetadata, userMetadataTime);
+        return TraceLog.exit(LOG, response.header(HttpHeaders.SET_COOKIE, generateCookie(uid, authTime, userMetadata, userMetadataTime)));
     }
     
     /** Validate that request is authenticated and generate an appropriate security context
@@ -84,23 +390,71 @@ public class CookieRequestValidationService implements RequestValidationService
      */
     @Override
     public boolean validateRequest(ContainerRequestContext requestContext) {
-        LOG.entry(requestContext);
+        TraceLog.entry(LOG, requestContext);
         Cookie cookie = requestContext.getCookies().get("DoctaneUserToken/"+repository);
         LOG.debug("DoctaneUserToken Cookie: {}", cookie);
         if (cookie != null) {
-            String jws = cookie.getValue();
-            try {
-                Claims claims = Jwts.parser().setSigningKey(jwtSigningKey).parseClaimsJws(jws).getBody();
-                requestContext.setSecurityContext(new JWTSecurityContext(claims));
-                requestContext.setProperty("validUntil", claims.getExpiration());
-                requestContext.setProperty("validFrom", claims.getNotBefore());
-                return LOG.exit(true);
-            } catch (JwtException exp) {
-                return LOG.exit(false);
+            long start = System.nanoTime();
+            VerifiedToken token = tokenCacheEnabled ? getCachedToken(cookie.getValue()) : verifyToken(cookie.getValue());
+            VERIFY_TIMER.recordSince(repository, token.isValid() ? Outcome.SUCCESS : Outcome.FAILURE, start);
+            if (token.isValid()) {
+                requestContext.setSecurityContext(token.securityContext);
+                requestContext.setProperty("validUntil", token.validUntil);
+                requestContext.setProperty("validFrom", token.validFrom);
+                requestContext.setProperty("authTime", token.authTime);
+                if (token.userMetadata != null) {
+                    requestContext.setProperty("userMetadataSnapshot", token.userMetadata);
+                    requestContext.setProperty("userMetadataTime", token.userMetadataTime);
+                }
+                return TraceLog.exit(LOG, true);
+            } else {
+                return TraceLog.exit(LOG, false);
             }
         } else {
-            return LOG.exit(false);
+            return TraceLog.exit(LOG, false);
+        }
+    }
+    
+    private VerifiedToken verifyToken(String jws) {
+        try {
+            long now = System.currentTimeMillis();
+            JwtKeyRing.SigningKey signingKey = keyRing.resolve(jws, now);
+            Claims claims = signingKey.codec == null ? null : signingKey.codec.verify(jws, now);
+            if (claims == null) claims = Jwts.parser().setSigningKey(signingKey.key).parseClaimsJws(jws).getBody();
+            return new VerifiedToken(claims, signingKey);
+        } catch (JwtException exp) {
+            LOG.debug("Token verification failed: {}", exp.getMessage());
+            return INVALID_TOKEN;
+        }
+    }
+    
+    private static ByteBuffer digest(String jws) {
+        return ByteBuffer.wrap(TOKEN_DIGEST.get().digest(jws.getBytes(StandardCharsets.US_ASCII)));
+    }
+    
+    /** Get a verified token from the cache, verifying and caching it if not already present.
+     * 
+     * Valid tokens are cached until they expire or the grace period of a retired signing key ends; invalid 
+     * tokens, in the invalid token cache, for invalidTokenCacheMillis. A cached valid token is re-verified if
+     * the key ring no longer accepts its signing key.
+     */
+    private VerifiedToken getCachedToken(String jws) {
+        long now = System.currentTimeMillis();
+        ByteBuffer key = digest(jws);
+        VerifiedToken token = tokenCache.get(key, now);
+        // The key may have been retired or dropped since the token was cached
+        if (token != null && !keyRing.isValid(token.keyId, now)) token = null;
+        if (token == null) token = invalidTokenCache.get(key, now);
+        if (token == null) {
+            token = verifyToken(jws);
+            if (!token.isValid()) {
+                invalidTokenCache.put(key, token, now + invalidTokenCacheMillis, now);
+            } else {
+                long expires = token.validUntil != null ? token.validUntil.getTime() : now + DEFAULT_VALID_TOKEN_CACHE_MILLIS;
+                tokenCache.put(key, token, Math.min(expires, token.keyValidUntil), now);
+            }
         }
+        return token;
     }
 
 }
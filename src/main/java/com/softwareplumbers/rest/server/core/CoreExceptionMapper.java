@@ -6,24 +6,63 @@
 package com.softwareplumbers.rest.server.core;
 
 import com.softwareplumbers.rest.server.model.CoreExceptions;
+import com.softwareplumbers.rest.server.util.Metrics;
+import com.softwareplumbers.rest.server.util.TraceLog;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.ExceptionMapper;
 import javax.ws.rs.ext.Provider;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
 
 /**
  *
  * @author jonathan
  */
 @Provider
+@Component
 public class CoreExceptionMapper implements ExceptionMapper<CoreExceptions.BaseException> {
 
     private static final XLogger LOG = XLoggerFactory.getXLogger(CoreExceptionMapper.class);
+    private static final Metrics.Counter<CoreExceptions.Type> EXCEPTIONS = Metrics.counter("doctane_exceptions_total", "Exceptions mapped to error responses", CoreExceptions.Type.class);
+    
+    @Context
+    private UriInfo uriInfo;
+    
+    private AuthenticationServiceFactory authServiceFactory;
+    
+    /** Used by Spring to inject a service factory, used to check that a repository exists.
+     * 
+     * @param authServiceFactory A factory for retrieving named services
+     */
+    @Autowired(required = false)
+    public void setRepositoryServiceFactory(AuthenticationServiceFactory authServiceFactory) {
+        this.authServiceFactory = authServiceFactory;
+    }
+    
+    /** Get the repository tag for an exception.
+     * 
+     * An invalid service exception means the repository is not configured, so it is always tagged
+     * UNKNOWN_REPOSITORY without consulting the factory.
+     * 
+     * @param authServiceFactory factory for repository authentication services, or null
+     * @param repository repository path parameter, or null
+     * @param type type of the exception
+     * @return the repository if it is configured, null if there is none, otherwise UNKNOWN_REPOSITORY
+     */
+    static String getRepositoryTag(AuthenticationServiceFactory authServiceFactory, String repository, CoreExceptions.Type type) {
+        if (repository != null && type == CoreExceptions.Type.INVALID_SERVICE) return Metrics.UNKNOWN_REPOSITORY;
+        return RequestMetricsFilter.getRepositoryTag(authServiceFactory, repository);
+    }
 
     @Override
     public Response toResponse(CoreExceptions.BaseException error) {
-        LOG.entry(error);
+        TraceLog.entry(LOG, error);
+        String repository = uriInfo == null ? null : uriInfo.getPathParameters().getFirst("repository");
+        EXCEPTIONS.increment(getRepositoryTag(authServiceFactory, repository, error.type), error.type);
         Response.ResponseBuilder builder = Response.status(Response.Status.INTERNAL_SERVER_ERROR);
         switch (error.type) {
             case INVALID_SERVICE:
@@ -37,6 +76,6 @@ public class CoreExceptionMapper implements ExceptionMapper<CoreExceptions.BaseE
                 break;
         }
         builder.entity(error.toJson());
-        return LOG.exit(builder.build());        
+        return TraceLog.exit(LOG, builder.build());        
     }    
 }
@@ -6,61 +6,363 @@
 package com.softwareplumbers.rest.server.core;
 
 import com.softwareplumbers.common.resourcepath.ResourcePath;
-import com.softwareplumbers.keymanager.BadKeyException;
-import com.softwareplumbers.keymanager.InitializationFailure;
 import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import com.softwareplumbers.rest.server.model.SignedRequestValidationService;
+import com.softwareplumbers.rest.server.util.ExpiringCache;
+import com.softwareplumbers.rest.server.util.Tracer;
 import java.security.Key;
 import java.security.KeyPair;
-import java.security.KeyStoreException;
 import java.security.cert.Certificate;
+import java.time.Instant;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggerConfiguration;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
-/**
+/** Management interface for a running server.
+ *
+ * Registered with JMX as com.softwareplumbers.rest.server:type=CoreServer. Provides the server status and
+ * per-repository counters as attributes, and operations to flush and resize caches, reload identity provider
+ * metadata and keys, and turn tracing on and off, so that a node can be tuned without restarting it.
+ *
+ * The key manager section of the status, which computes a digest of every key, is computed once and then
+ * only when reloadKeys is called; the remainder of the status reads live counters.
  *
  * @author Jonathan Essex
  */
+@ManagedResource(objectName = "com.softwareplumbers.rest.server:type=CoreServer", description = "Doctane core server")
 public class CoreServerMBean {
 
+    private static final XLogger LOG = XLoggerFactory.getXLogger(CoreServerMBean.class);
+
+    /** Loggers whose level is changed by setTraceLogging */
+    public static final String[] TRACE_LOGGERS = { "com.softwareplumbers.rest.server.core", "com.softwareplumbers.rest.server.model", "com.softwareplumbers.rest.server.util" };
+
     @Autowired(required = false)
     ResourcePath resourcePath;
     @Autowired(required = false)
     KeyManager keyManager;
     @Autowired(required = false)
-    CookieRequestValidationService cookieRequestValidationService;
-    
-    String getStatus() throws InitializationFailure, BadKeyException, KeyStoreException {
+    List<CookieRequestValidationService> cookieRequestValidationServices;
+    @Autowired(required = false)
+    UserMetadataCache userMetadataCache;
+    @Autowired(required = false)
+    UserMetadataFilter userMetadataFilter;
+    @Autowired(required = false)
+    AuthenticationFilter authenticationFilter;
+    @Autowired(required = false)
+    AuthenticationServiceRegistry authenticationServiceRegistry;
+    @Autowired(required = false)
+    List<SignedRequestValidationService> signedRequestValidationServices;
+    @Autowired(required = false)
+    List<SAMLProtocolHandlerService> samlProtocolHandlerServices;
+    @Autowired(required = false)
+    Tracer tracer;
+
+    private volatile String keyStatus;
+    private volatile boolean traceLogging = false;
+    private final Map<String, LogLevel> configuredLevels = new TreeMap<>();
+
+    private String computeKeyStatus() {
         StringBuilder statusString = new StringBuilder();
         if (resourcePath != null) statusString.append("ResourcePath:").append(Stream.of(resourcePath.getLocations()).collect(Collectors.joining(","))).append("\n");
         statusString.append("Key Manager\n");
         if (keyManager != null) {
-            Iterator<String> secretKeys = keyManager.getSecretKeyNames();
-            while (secretKeys.hasNext()) {
-                String alias = secretKeys.next();
-                Key key = keyManager.getKey(alias);
-                statusString
-                    .append("\tPrivate Key: ").append(alias).append(" digest: ").append(KeyManager.keyDigest(key)).append("\n");
+            try {
+                Iterator<String> secretKeys = keyManager.getSecretKeyNames();
+                while (secretKeys.hasNext()) {
+                    String alias = secretKeys.next();
+                    Key key = keyManager.getKey(alias);
+                    statusString
+                        .append("\tPrivate Key: ").append(alias).append(" digest: ").append(KeyManager.keyDigest(key)).append("\n");
+                }
+                Iterator<String> privateKeys = keyManager.getPrivateKeyNames();
+                while (privateKeys.hasNext()) {
+                    String alias = privateKeys.next();
+                    KeyPair pair = keyManager.getKeyPair(alias);
+                    statusString.append("\tCertificate: ").append(alias).append(" public key digest: ").append(KeyManager.keyDigest(pair.getPublic())).append(" private key digest: ").append(KeyManager.keyDigest(pair.getPrivate())).append("\n");
+                }
+                Iterator<String> certificates = keyManager.getCertificateNames();
+                while (certificates.hasNext()) {
+                    String alias = certificates.next();
+                    Certificate cert = keyManager.getCertificate(alias);
+                    statusString.append("\tCertificate: ").append(alias).append(" public key digest: ").append(KeyManager.keyDigest(cert.getPublicKey())).append("\n");
+                }
+            } catch (Exception e) {
+                LOG.warn("Could not read key manager", e);
+                statusString.append("\tError: ").append(e).append("\n");
+            }
+        }
+        if (cookieRequestValidationServices != null) {
+            for (CookieRequestValidationService service : cookieRequestValidationServices) {
+                statusString.append("Token Signing Keys: ").append(service.getRepository()).append("\n");
+                for (JwtKeyRing.SigningKey key : service.getKeyRing().getKeys()) {
+                    statusString.append("\tkid: ").append(key.keyId)
+                        .append(key.isCurrent() ? " current" : " retired, valid until " + Instant.ofEpochMilli(key.validUntil)).append("\n");
+                }
+            }
+        }
+        return statusString.toString();
+    }
+
+    private String getKeyStatus() {
+        String result = keyStatus;
+        if (result == null) keyStatus = result = computeKeyStatus();
+        return result;
+    }
+
+    private static String hitRate(long hits, long misses) {
+        return hits + misses == 0 ? "n/a" : String.format("%.3f", (double)hits / (hits + misses));
+    }
+
+    private static String hitRate(ExpiringCache<?,?> cache) {
+        return hitRate(cache.getHits(), cache.getMisses());
+    }
+
+    @ManagedAttribute(description = "Server configuration and cache status")
+    public String getStatus() {
+        StringBuilder statusString = new StringBuilder(getKeyStatus());
+        if (cookieRequestValidationServices != null) {
+            for (CookieRequestValidationService cookieRequestValidationService : cookieRequestValidationServices) {
+                statusString.append("Token Cache (").append(cookieRequestValidationService.getRepository()).append(")\n");
+                if (cookieRequestValidationService.isTokenCacheEnabled())
+                    statusString.append("\t").append(cookieRequestValidationService.getTokenCache()).append("\n")
+                        .append("\tinvalid tokens ").append(cookieRequestValidationService.getInvalidTokenCache()).append("\n");
+                else
+                    statusString.append("\tdisabled\n");
             }
-            Iterator<String> privateKeys = keyManager.getPrivateKeyNames();
-            while (privateKeys.hasNext()) {
-                String alias = privateKeys.next();
-                KeyPair pair = keyManager.getKeyPair(alias);
-                statusString.append("\tCertificate: ").append(alias).append(" public key digest: ").append(KeyManager.keyDigest(pair.getPublic())).append(" private key digest: ").append(KeyManager.keyDigest(pair.getPrivate())).append("\n");
-            }            
-            Iterator<String> certificates = keyManager.getCertificateNames();
-            while (certificates.hasNext()) {
-                String alias = certificates.next();
-                Certificate cert = keyManager.getCertificate(alias);
-                statusString.append("\tCertificate: ").append(alias).append(" public key digest: ").append(KeyManager.keyDigest(cert.getPublicKey())).append("\n");
+        }
+        if (userMetadataCache != null) {
+            statusString.append("User Metadata Cache\n\t").append(userMetadataCache).append("\n");
+        }
+        if (signedRequestValidationServices != null) {
+            for (SignedRequestValidationService signedRequestValidationService : signedRequestValidationServices) {
+                statusString.append("Public Key Cache\n\t").append(signedRequestValidationService.getPublicKeyCache())
+                    .append(" verifications: ").append(signedRequestValidationService.getVerifications()).append("\n");
+                statusString.append("Replay Guard\n\t").append(signedRequestValidationService.getReplayGuard()).append("\n");
+            }
+        }
+        if (samlProtocolHandlerServices != null) {
+            for (SAMLProtocolHandlerService saml : samlProtocolHandlerServices) {
+                statusString.append("SAML Assertion Cache (").append(saml.getEntityId()).append(")\n\t").append(saml.getAssertionCache())
+                    .append(" expired: ").append(saml.getExpiredAssertions()).append("\n");
             }
         }
+        if (authenticationServiceRegistry != null) {
+            statusString.append("Authentication Service Registry\n\t").append(authenticationServiceRegistry).append("\n");
+        }
+        if (userMetadataFilter != null) {
+            statusString.append("User Metadata Lookups\n");
+            userMetadataFilter.getStatistics().forEach((repository, stats) -> statusString.append("\t").append(repository).append(": ").append(stats).append("\n"));
+        }
         return statusString.toString();
     }
-    
-    String getAccessToken(String uid) {
-        return cookieRequestValidationService.generateCookie(uid);
+
+    @ManagedAttribute(description = "Authentications, failures and cache hit rates for each repository")
+    public String getRepositoryStatistics() {
+        Map<String, StringBuilder> repositories = new TreeMap<>();
+        if (authenticationFilter != null) {
+            authenticationFilter.getStatistics().forEach((repository, stats) ->
+                repositories.computeIfAbsent(repository, k -> new StringBuilder()).append(" ").append(stats));
+        }
+        if (cookieRequestValidationServices != null) {
+            for (CookieRequestValidationService service : cookieRequestValidationServices) {
+                repositories.computeIfAbsent(service.getRepository(), k -> new StringBuilder())
+                    .append(" token cache hit rate: ").append(hitRate(service.getTokenCache()));
+            }
+        }
+        if (userMetadataFilter != null) {
+            userMetadataFilter.getStatistics().forEach((repository, stats) ->
+                repositories.computeIfAbsent(repository, k -> new StringBuilder()).append(" user metadata ").append(stats));
+        }
+        StringBuilder result = new StringBuilder();
+        repositories.forEach((repository, stats) -> result.append(repository).append(":").append(stats).append("\n"));
+        if (userMetadataCache != null) {
+            result.append("user metadata cache hit rate: ").append(hitRate(userMetadataCache.getCache().getHits(), userMetadataCache.getCache().getMisses())).append("\n");
+        }
+        if (signedRequestValidationServices != null) {
+            for (SignedRequestValidationService service : signedRequestValidationServices) {
+                result.append("public key cache hit rate: ").append(hitRate(service.getPublicKeyCache())).append("\n");
+            }
+        }
+        return result.toString();
+    }
+
+    /** Generate a token granting temporary access to a repository.
+     *
+     * Every call is logged, since the token is valid for any user id.
+     *
+     * @param repository repository whose signing key is used
+     * @param uid user id
+     * @return a Set-Cookie header value carrying the token
+     * @throws IllegalArgumentException if no cookie request validation service is configured for the repository
+     */
+    @ManagedOperation(description = "Generate a token granting temporary access to the REST api")
+    @ManagedOperationParameters({
+        @ManagedOperationParameter(name = "repository", description = "Repository name"),
+        @ManagedOperationParameter(name = "uid", description = "User id")
+    })
+    public String getAccessToken(String repository, String uid) {
+        LOG.info("Access token requested through management interface for user {} in repository {}", uid, repository);
+        if (cookieRequestValidationServices != null) {
+            for (CookieRequestValidationService service : cookieRequestValidationServices) {
+                if (service.getRepository().equals(repository)) return service.generateCookie(uid);
+            }
+        }
+        throw new IllegalArgumentException("No cookie request validation service configured for repository " + repository);
+    }
+
+    @ManagedOperation(description = "Remove all verified tokens from the token caches")
+    public void flushTokenCaches() {
+        LOG.entry();
+        if (cookieRequestValidationServices != null)
+            cookieRequestValidationServices.forEach(CookieRequestValidationService::clearTokenCaches);
+        LOG.exit();
+    }
+
+    @ManagedOperation(description = "Set the capacity of the token cache for a repository, or for all repositories if blank")
+    @ManagedOperationParameters({
+        @ManagedOperationParameter(name = "repository", description = "Repository name, or blank for all"),
+        @ManagedOperationParameter(name = "capacity", description = "Maximum number of cached tokens")
+    })
+    public void resizeTokenCache(String repository, int capacity) {
+        LOG.entry(repository, capacity);
+        if (cookieRequestValidationServices != null) {
+            for (CookieRequestValidationService service : cookieRequestValidationServices) {
+                if (repository == null || repository.isEmpty() || repository.equals(service.getRepository())) service.setTokenCacheSize(capacity);
+            }
+        }
+        LOG.exit();
+    }
+
+    @ManagedOperation(description = "Remove all entries from the user metadata cache")
+    public void flushUserMetadataCache() {
+        LOG.entry();
+        if (userMetadataCache != null) userMetadataCache.clear();
+        LOG.exit();
+    }
+
+    @ManagedAttribute(description = "Maximum number of entries in the user metadata cache")
+    public int getUserMetadataCacheCapacity() {
+        return userMetadataCache == null ? 0 : userMetadataCache.getCache().getCapacity();
+    }
+
+    @ManagedAttribute
+    public void setUserMetadataCacheCapacity(int capacity) {
+        LOG.entry(capacity);
+        if (userMetadataCache != null) userMetadataCache.setCapacity(capacity);
+        LOG.exit();
+    }
+
+    @ManagedOperation(description = "Remove all entries from the public key caches")
+    public void flushPublicKeyCaches() {
+        LOG.entry();
+        if (signedRequestValidationServices != null)
+            signedRequestValidationServices.forEach(service -> service.getPublicKeyCache().clear());
+        LOG.exit();
+    }
+
+    @ManagedOperation(description = "Set the capacity of the public key caches")
+    @ManagedOperationParameters({
+        @ManagedOperationParameter(name = "capacity", description = "Maximum number of cached keys")
+    })
+    public void resizePublicKeyCaches(int capacity) {
+        LOG.entry(capacity);
+        if (signedRequestValidationServices != null)
+            signedRequestValidationServices.forEach(service -> service.setPublicKeyCacheSize(capacity));
+        LOG.exit();
+    }
+
+    @ManagedOperation(description = "Forget resolved and unknown repositories")
+    public void flushAuthenticationServiceRegistry() {
+        LOG.entry();
+        if (authenticationServiceRegistry != null) authenticationServiceRegistry.flush();
+        LOG.exit();
+    }
+
+    @ManagedOperation(description = "Remove all entries from all caches")
+    public void flushAllCaches() {
+        flushTokenCaches();
+        flushUserMetadataCache();
+        flushPublicKeyCaches();
+        flushAuthenticationServiceRegistry();
+    }
+
+    @ManagedOperation(description = "Re-read identity provider metadata")
+    public String reloadIdpMetadata() {
+        LOG.entry();
+        StringBuilder result = new StringBuilder();
+        if (samlProtocolHandlerServices != null) {
+            for (SAMLProtocolHandlerService saml : samlProtocolHandlerServices) {
+                result.append(saml.getEntityId()).append(": ").append(saml.refreshMetadata() ? "reloaded" : "failed, previous metadata kept").append("\n");
+            }
+        }
+        return LOG.exit(result.toString());
+    }
+
+    @ManagedOperation(description = "Re-read keys from the key manager, including token signing keys")
+    public String reloadKeys() {
+        LOG.entry();
+        if (cookieRequestValidationServices != null)
+            cookieRequestValidationServices.forEach(CookieRequestValidationService::reloadKeys);
+        keyStatus = computeKeyStatus();
+        flushPublicKeyCaches();
+        flushTokenCaches();
+        return LOG.exit(keyStatus);
+    }
+
+    @ManagedAttribute(description = "Fraction of requests without a sampled traceparent which are traced")
+    public double getTraceSampleRate() {
+        return tracer == null ? 0 : tracer.getSampleRate();
+    }
+
+    @ManagedAttribute
+    public void setTraceSampleRate(double sampleRate) {
+        LOG.entry(sampleRate);
+        if (tracer == null) throw new IllegalStateException("No tracer configured");
+        tracer.setSampleRate(sampleRate);
+        LOG.exit();
+    }
+
+    @ManagedAttribute(description = "True if method entry and exit are logged at TRACE level")
+    public boolean isTraceLogging() {
+        return traceLogging;
+    }
+
+    /** Turn TRACE logging of the server packages on or off.
+     * 
+     * Turning it off restores the levels which were configured when it was turned on.
+     * 
+     * @param traceLogging true to log at TRACE level
+     */
+    @ManagedAttribute
+    public synchronized void setTraceLogging(boolean traceLogging) {
+        if (traceLogging == this.traceLogging) return;
+        LoggingSystem loggingSystem = LoggingSystem.get(getClass().getClassLoader());
+        for (String logger : TRACE_LOGGERS) {
+            if (traceLogging) {
+                LoggerConfiguration configuration = loggingSystem.getLoggerConfiguration(logger);
+                configuredLevels.put(logger, configuration == null ? null : configuration.getConfiguredLevel());
+                loggingSystem.setLogLevel(logger, LogLevel.TRACE);
+            } else {
+                loggingSystem.setLogLevel(logger, configuredLevels.remove(logger));
+            }
+        }
+        this.traceLogging = traceLogging;
+        LOG.info("Trace logging {}", traceLogging ? "enabled" : "disabled");
     }
-    
 }
@@ -6,6 +6,7 @@
 package com.softwareplumbers.rest.server.core;
 
 import com.softwareplumbers.rest.server.util.DummySecurityContext;
+import com.softwareplumbers.rest.server.util.TraceLog;
 import org.slf4j.ext.XLogger;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -34,7 +35,7 @@ public class DummyRequestValidationService implements RequestValidationService {
 
     @Override
     public boolean validateRequest(ContainerRequestContext requestContext) {
-        LOG.entry(requestContext);
+        TraceLog.entry(LOG, requestContext);
         Cookie cookie = requestContext.getCookies().get("DoctaneUserToken/"+repository);
         LOG.debug("DoctaneUserToken Cookie: {}", cookie);
         String user = "DummyUser";
@@ -45,21 +46,21 @@ public class DummyRequestValidationService implements RequestValidationService {
             ZonedDateTime fromDate = LocalDateTime.now().atZone(ZoneId.systemDefault());
             requestContext.setProperty("validUntil", Date.from(expirationDate.toInstant()));
             requestContext.setProperty("validFrom", Date.from(fromDate.toInstant()));
-            return LOG.exit(true);
+            return TraceLog.exit(LOG, true);
         } catch (Exception exp) {
-            return LOG.exit(false);
+            return TraceLog.exit(LOG, false);
         }   
     }
 
     @Override
     public Response.ResponseBuilder sendIdentityToken(Response.ResponseBuilder response, String userId) {
-        LOG.entry(response, userId);
+        TraceLog.entry(LOG, response, userId);
         ZonedDateTime expirationDate = LocalDateTime.now().plusDays(1).atZone(ZoneId.systemDefault());
         NewCookie cookie = new NewCookie(
              "DoctaneUserToken/"+repository , userId, 
              null, null, Cookie.DEFAULT_VERSION, "Dummy Doctane User Token", 
              NewCookie.DEFAULT_MAX_AGE, Date.from(expirationDate.toInstant()), false, false);
-        return LOG.exit(response.cookie(cookie));
+        return TraceLog.exit(LOG, response.cookie(cookie));
     }
     
 }
@@ -0,0 +1,50 @@
+package com.softwareplumbers.rest.server.core;
+
+import java.util.Collections;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/** Deep health check.
+ * 
+ * Unlike the heartbeat, reports whether the services this server depends on are working, as last
+ * checked in the background by the HealthMonitor. Responds with status OK if all components are UP,
+ * and SERVICE_UNAVAILABLE otherwise, so that a load balancer can stop routing to the server. The body
+ * gives the status of each component and the time it was checked.
+ * 
+ * If no HealthMonitor is configured, always responds OK with no components.
+ * 
+ * @author SWPNET\jonessex
+ */
+@Component
+@Path("/health")
+public class HealthCheck {
+    
+    private HealthMonitor healthMonitor;
+    
+    /** Used by Spring to inject an optional health monitor.
+     * 
+     * @param healthMonitor monitor which checks components in the background
+     */
+    @Autowired(required = false)
+    public void setHealthMonitor(HealthMonitor healthMonitor) {
+        this.healthMonitor = healthMonitor;
+    }
+    
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response get() {
+        HealthMonitor.Health health = healthMonitor == null 
+            ? new HealthMonitor.Health(System.currentTimeMillis(), Collections.emptyList()) 
+            : healthMonitor.getHealth();
+        return Response
+            .status(health.status == HealthMonitor.Status.UP ? Status.OK : Status.SERVICE_UNAVAILABLE)
+            .entity(health.toJson())
+            .build();
+    }
+}
@@ -0,0 +1,260 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.authz.AuthorizationService;
+import com.softwareplumbers.authz.AuthorizationServiceFactory;
+import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/** Checks the health of the services this server depends on, in the background.
+ *
+ * Every checkMillis, the key manager is checked for the JWT signing key and default service account,
+ * the provider data of each SAMLProtocolHandlerService is checked for an IdP endpoint and credential, and
+ * the authorization service of each configured repository is retrieved (and, if a probeUser is set, asked
+ * for that user's metadata). The results are kept as a single immutable snapshot, so that a health check
+ * is answered without calling any dependency.
+ *
+ * A snapshot older than staleMillis (by default three check intervals) means checks have stopped or hung,
+ * and is reported as DOWN.
+ *
+ * @author SWPNET\jonessex
+ */
+public class HealthMonitor {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(HealthMonitor.class);
+
+    public static final long DEFAULT_CHECK_MILLIS = 30000L;
+
+    private static final ScheduledThreadPoolExecutor HEALTH_CHECK = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "health-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        HEALTH_CHECK.setRemoveOnCancelPolicy(true);
+    }
+
+    public static enum Status { UP, DOWN }
+
+    /** Result of checking one component. */
+    public static class ComponentHealth {
+        public final String name;
+        public final Status status;
+        public final long checked;
+        public final long durationMillis;
+        public final String detail;
+
+        public ComponentHealth(String name, Status status, long checked, long durationMillis, String detail) {
+            this.name = name;
+            this.status = status;
+            this.checked = checked;
+            this.durationMillis = durationMillis;
+            this.detail = detail;
+        }
+
+        public JsonObject toJson() {
+            JsonObjectBuilder builder = Json.createObjectBuilder()
+                .add("status", status.name())
+                .add("checked", DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(checked)))
+                .add("durationMillis", durationMillis);
+            if (detail != null) builder.add("detail", detail);
+            return builder.build();
+        }
+    }
+
+    /** Immutable result of one round of checks. */
+    public static class Health {
+        public final Status status;
+        public final long checked;
+        public final List<ComponentHealth> components;
+        private final JsonObject json;
+
+        public Health(long checked, List<ComponentHealth> components) {
+            this.checked = checked;
+            this.components = Collections.unmodifiableList(new ArrayList<>(components));
+            this.status = components.stream().allMatch(component -> component.status == Status.UP) ? Status.UP : Status.DOWN;
+            JsonObjectBuilder componentsJson = Json.createObjectBuilder();
+            for (ComponentHealth component : components) componentsJson.add(component.name, component.toJson());
+            this.json = Json.createObjectBuilder()
+                .add("status", status.name())
+                .add("checked", DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(checked)))
+                .add("components", componentsJson)
+                .build();
+        }
+
+        public JsonObject toJson() {
+            return json;
+        }
+    }
+
+    @Autowired(required = false)
+    KeyManager<SystemSecretKeys, SystemKeyPairs> keyManager;
+    @Autowired(required = false)
+    List<SAMLProtocolHandlerService> samlProtocolHandlerServices;
+    @Autowired(required = false)
+    AuthorizationServiceFactory<?,?,?> authorizationServiceFactory;
+
+    private List<String> repositories = Collections.emptyList();
+    private String probeUser;
+    private volatile long checkMillis = DEFAULT_CHECK_MILLIS;
+    private long staleMillis = 0;
+    private ScheduledFuture<?> check;
+    private volatile Health health;
+
+    /** Set the repositories whose authorization services are checked.
+     *
+     * @param repositories repository names
+     */
+    public void setRepositories(List<String> repositories) {
+        this.repositories = Collections.unmodifiableList(new ArrayList<>(repositories));
+    }
+
+    public List<String> getRepositories() {
+        return repositories;
+    }
+
+    /** Set a user whose metadata is requested from each authorization service.
+     *
+     * If not set, authorization services are only retrieved, not called.
+     *
+     * @param probeUser user id, or null
+     */
+    public void setProbeUser(String probeUser) {
+        this.probeUser = probeUser;
+    }
+
+    /** Set the interval between checks.
+     *
+     * @param checkMillis interval in milliseconds (default 30 seconds)
+     */
+    public synchronized void setCheckMillis(long checkMillis) {
+        if (checkMillis <= 0) throw new IllegalArgumentException("checkMillis must be positive");
+        this.checkMillis = checkMillis;
+        if (check != null) start();
+    }
+
+    public long getCheckMillis() {
+        return checkMillis;
+    }
+
+    /** Set the age after which a snapshot is reported as DOWN.
+     *
+     * @param staleMillis age in milliseconds, or zero for three times checkMillis
+     */
+    public void setStaleMillis(long staleMillis) {
+        this.staleMillis = staleMillis;
+    }
+
+    /** Start checking in the background, with the first check made immediately. */
+    @PostConstruct
+    public synchronized void start() {
+        if (check != null) check.cancel(false);
+        check = HEALTH_CHECK.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                LOG.error("Health check failed", e);
+            }
+        }, 0, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop checking in the background. */
+    public synchronized void close() {
+        if (check != null) check.cancel(false);
+        check = null;
+    }
+
+    private static ComponentHealth probe(String name, Callable<String> probe) {
+        long start = System.currentTimeMillis();
+        Status status;
+        String detail;
+        try {
+            detail = probe.call();
+            status = Status.UP;
+        } catch (Exception e) {
+            LOG.warn("Health check of {} failed: {}", name, e.toString());
+            detail = e.toString();
+            status = Status.DOWN;
+        }
+        return new ComponentHealth(name, status, start, System.currentTimeMillis() - start, detail);
+    }
+
+    private String probeKeyManager() throws Exception {
+        if (keyManager.getKey(SystemSecretKeys.JWT_SIGNING_KEY.name()) == null)
+            throw new IllegalStateException("No key " + SystemSecretKeys.JWT_SIGNING_KEY);
+        if (keyManager.getKeyPair(SystemKeyPairs.DEFAULT_SERVICE_ACCOUNT.name()) == null)
+            throw new IllegalStateException("No key pair " + SystemKeyPairs.DEFAULT_SERVICE_ACCOUNT);
+        return null;
+    }
+
+    private static String probeSaml(SAMLProtocolHandlerService saml) {
+        if (saml.getIDPCredential() == null) throw new IllegalStateException("No IdP credential");
+        String endpoint = saml.getIDPEndpoint();
+        long failures = saml.getMetadataReloadFailures();
+        return failures == 0 ? endpoint : endpoint + " (metadata reload failures: " + failures + ")";
+    }
+
+    private String probeAuthorization(String repository) {
+        AuthorizationService<?,?,?> service = authorizationServiceFactory.getService(repository);
+        if (service == null) throw new IllegalStateException("No authorization service");
+        if (probeUser != null) service.getUserMetadata(probeUser);
+        return null;
+    }
+
+    /** Check all components now, and publish the result.
+     *
+     * @return the result
+     */
+    public Health check() {
+        LOG.entry();
+        List<ComponentHealth> components = new ArrayList<>();
+        if (keyManager != null) components.add(probe("keyManager", this::probeKeyManager));
+        if (samlProtocolHandlerServices != null) {
+            for (SAMLProtocolHandlerService saml : samlProtocolHandlerServices) {
+                components.add(probe("saml:" + saml.getEntityId(), () -> probeSaml(saml)));
+            }
+        }
+        if (authorizationServiceFactory != null) {
+            for (String repository : repositories) {
+                components.add(probe("authorization:" + repository, () -> probeAuthorization(repository)));
+            }
+        }
+        Health result = new Health(System.currentTimeMillis(), components);
+        health = result;
+        return LOG.exit(result);
+    }
+
+    /** Get the result of the most recent check.
+     *
+     * @return the most recent result, or a DOWN result if there is none or it is stale
+     */
+    public Health getHealth() {
+        Health current = health;
+        long now = System.currentTimeMillis();
+        if (current == null)
+            return new Health(now, Collections.singletonList(new ComponentHealth("monitor", Status.DOWN, now, 0, "Not yet checked")));
+        long maxAge = staleMillis > 0 ? staleMillis : 3 * getCheckMillis();
+        if (now - current.checked > maxAge) {
+            List<ComponentHealth> components = new ArrayList<>(current.components);
+            components.add(new ComponentHealth("monitor", Status.DOWN, now, 0, "Last check completed " + (now - current.checked) + "ms ago"));
+            return new Health(current.checked, components);
+        }
+        return current;
+    }
+}
@@ -13,11 +13,17 @@ public class JerseyConfig extends ResourceConfig {
 	public JerseyConfig() {
 		property(ServerProperties.RESPONSE_SET_STATUS_OVER_SEND_ERROR, "true");
 		register(Heartbeat.class);
+		register(HealthCheck.class);
+		register(MetricsResource.class);
+		register(RequestMetricsFilter.class);
+		register(LoggingContextFilter.class);
+		register(TraceContextFilter.class);
 		register(Authentication.class);
 		register(CORSRequestFilter.class);
         register(CORSResponseFilter.class);
 	    register(MultiPartFeature.class);
 	    register(AuthenticationFilter.class);
+	    register(SessionRenewalFilter.class);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.util.HS256JwsCodec;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.MalformedJwtException;
+import java.io.ByteArrayInputStream;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** The set of keys with which user tokens are signed and verified.
+ *
+ * The current key is the key manager's JWT_SIGNING_KEY. New tokens are signed with the current key, and
+ * carry its key id in the kid header parameter. The key id is derived from a digest of the key, so every
+ * server sharing a key store gives a key the same id.
+ *
+ * A key stays valid for verification for gracePeriodMillis after it is retired, so that tokens it signed
+ * can be used until they expire. A key is retired when reload finds that JWT_SIGNING_KEY has changed, or
+ * when it is held by the key manager under an alias starting with JWT_SIGNING_KEY. (such as
+ * JWT_SIGNING_KEY.2020-06); the latter allows retired keys to survive a restart, after which their grace
+ * period starts again. To rotate the signing key, copy the old key to a retired alias, store the new key
+ * as JWT_SIGNING_KEY, and call reload (for example through the reloadKeys operation of the management
+ * bean).
+ *
+ * The keys are held as an immutable snapshot, replaced as a whole on reload. A token's key is found by a
+ * hash lookup on the token's header segment, which for tokens signed by this server is fixed for each key;
+ * other headers are parsed to find the kid. Tokens without a kid, issued before key ids were introduced,
+ * are verified with the current key.
+ *
+ * @author SWPNET\jonessex
+ */
+public class JwtKeyRing {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(JwtKeyRing.class);
+
+    /** Prefix of key manager aliases holding retired signing keys */
+    public static final String RETIRED_KEY_PREFIX = SystemSecretKeys.JWT_SIGNING_KEY.name() + ".";
+
+    /** A signing key with its key id and, if the key permits, a specialised codec. */
+    public static class SigningKey {
+        public final String keyId;
+        public final Key key;
+        public final HS256JwsCodec codec;
+        /** Time at which the key was retired, or Long.MAX_VALUE for the current key */
+        public final long retiredAt;
+        /** Time after which tokens signed with this key are no longer accepted, or Long.MAX_VALUE */
+        public final long validUntil;
+
+        private SigningKey(String keyId, Key key, HS256JwsCodec codec, long retiredAt, long validUntil) {
+            this.keyId = keyId;
+            this.key = key;
+            this.codec = codec;
+            this.retiredAt = retiredAt;
+            this.validUntil = validUntil;
+        }
+
+        public SigningKey(String keyId, Key key) {
+            this(keyId, key, HS256JwsCodec.isSupported(key) ? new HS256JwsCodec(key, keyId) : null, Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+
+        /** Copy of this key retired at the given time; the codec is shared. */
+        private SigningKey retire(long retiredAt, long gracePeriodMillis) {
+            long expires = retiredAt == Long.MAX_VALUE || retiredAt > Long.MAX_VALUE - gracePeriodMillis ? Long.MAX_VALUE : retiredAt + gracePeriodMillis;
+            return new SigningKey(keyId, key, codec, retiredAt, expires);
+        }
+
+        public boolean isCurrent() {
+            return retiredAt == Long.MAX_VALUE;
+        }
+    }
+
+    /** Immutable view of the ring */
+    private static class Snapshot {
+        public final SigningKey current;
+        public final Map<String, SigningKey> byKeyId;
+        public final Map<String, SigningKey> byHeader;
+
+        public Snapshot(SigningKey current, Map<String, SigningKey> byKeyId) {
+            this.current = current;
+            this.byKeyId = Collections.unmodifiableMap(byKeyId);
+            Map<String, SigningKey> headers = new HashMap<>();
+            for (SigningKey key : byKeyId.values()) {
+                if (key.codec != null) headers.put(key.codec.getHeader(), key);
+            }
+            this.byHeader = Collections.unmodifiableMap(headers);
+        }
+    }
+
+    private final KeyManager<SystemSecretKeys, SystemKeyPairs> keyManager;
+    private long gracePeriodMillis;
+    private volatile Snapshot snapshot = new Snapshot(null, Collections.emptyMap());
+
+    /** Create a key ring and load it from the key manager.
+     *
+     * @param keyManager key manager holding JWT_SIGNING_KEY and any retired keys
+     * @param gracePeriodMillis time for which a retired key remains valid
+     */
+    public JwtKeyRing(KeyManager<SystemSecretKeys, SystemKeyPairs> keyManager, long gracePeriodMillis) {
+        this.keyManager = keyManager;
+        this.gracePeriodMillis = gracePeriodMillis;
+        reload();
+    }
+
+    /** Get the key id of a key.
+     *
+     * @param key a key
+     * @return The first 96 bits of the SHA-256 digest of the encoded key, in base64url
+     */
+    public static String keyId(Key key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(java.util.Arrays.copyOf(digest, 12));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static SigningKey previousOrNew(Snapshot previous, String keyId, Key key) {
+        SigningKey existing = previous.byKeyId.get(keyId);
+        return existing != null ? existing : new SigningKey(keyId, key);
+    }
+
+    /** Re-read keys from the key manager.
+     *
+     * If the key manager has no JWT_SIGNING_KEY, the ring is left unchanged.
+     */
+    public synchronized void reload() {
+        LOG.entry();
+        long now = System.currentTimeMillis();
+        Snapshot previous = snapshot;
+        Key currentKey = keyManager.getKey(SystemSecretKeys.JWT_SIGNING_KEY);
+        if (currentKey == null) {
+            LOG.warn("No {} in key manager; signing keys not reloaded", SystemSecretKeys.JWT_SIGNING_KEY);
+            LOG.exit();
+            return;
+        }
+        String currentKeyId = keyId(currentKey);
+        SigningKey existing = previous.byKeyId.get(currentKeyId);
+        SigningKey current = existing != null && existing.isCurrent() ? existing : new SigningKey(currentKeyId, currentKey);
+        Map<String, SigningKey> keys = new HashMap<>();
+        keys.put(currentKeyId, current);
+
+        try {
+            Iterator<String> aliases = keyManager.getSecretKeyNames();
+            while (aliases != null && aliases.hasNext()) {
+                String alias = aliases.next();
+                if (!alias.startsWith(RETIRED_KEY_PREFIX)) continue;
+                Key key = keyManager.getKey(alias);
+                if (key == null) continue;
+                String keyId = keyId(key);
+                if (keys.containsKey(keyId)) continue;
+                SigningKey retired = previousOrNew(previous, keyId, key);
+                keys.put(keyId, retired.retire(retired.isCurrent() ? now : retired.retiredAt, gracePeriodMillis));
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not read retired signing keys", e);
+        }
+
+        // Keys dropped from the key manager are kept until their grace period is over
+        for (SigningKey key : previous.byKeyId.values()) {
+            if (keys.containsKey(key.keyId)) continue;
+            SigningKey retired = key.retire(key.isCurrent() ? now : key.retiredAt, gracePeriodMillis);
+            if (retired.validUntil > now) keys.put(key.keyId, retired);
+        }
+
+        if (previous.current != null && !previous.current.keyId.equals(currentKeyId))
+            LOG.info("Signing key {} replaced by {}", previous.current.keyId, currentKeyId);
+        snapshot = new Snapshot(current, keys);
+        LOG.exit();
+    }
+
+    /** Set the time for which a retired key remains valid.
+     *
+     * @param gracePeriodMillis time in milliseconds; usually the lifetime of a token
+     */
+    public synchronized void setGracePeriodMillis(long gracePeriodMillis) {
+        this.gracePeriodMillis = gracePeriodMillis;
+        Snapshot previous = snapshot;
+        Map<String, SigningKey> keys = new HashMap<>();
+        for (SigningKey key : previous.byKeyId.values())
+            keys.put(key.keyId, key.isCurrent() ? key : key.retire(key.retiredAt, gracePeriodMillis));
+        snapshot = new Snapshot(previous.current, keys);
+    }
+
+    public synchronized long getGracePeriodMillis() {
+        return gracePeriodMillis;
+    }
+
+    /** Get the key with which new tokens are signed.
+     *
+     * @return the current signing key
+     * @throws IllegalStateException if the key manager has no JWT_SIGNING_KEY
+     */
+    public SigningKey getCurrent() {
+        SigningKey current = snapshot.current;
+        if (current == null) throw new IllegalStateException("No " + SystemSecretKeys.JWT_SIGNING_KEY + " in key manager");
+        return current;
+    }
+
+    /** Get the current and retired keys.
+     *
+     * @return keys in no particular order
+     */
+    public List<SigningKey> getKeys() {
+        return new ArrayList<>(snapshot.byKeyId.values());
+    }
+
+    private static String parseKeyId(String jws, int headerEnd) {
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(Base64.getUrlDecoder().decode(jws.substring(0, headerEnd))))) {
+            JsonObject header = reader.readObject();
+            return header.containsKey("kid") ? header.getString("kid") : null;
+        } catch (IllegalArgumentException | JsonException | ClassCastException e) {
+            throw new MalformedJwtException("Malformed header", e);
+        }
+    }
+
+    /** Check whether tokens signed with a key are still accepted.
+     *
+     * @param keyId id of the key
+     * @param now current time in milliseconds since the epoch
+     * @return true if the key is in the ring and its grace period, if any, is not over
+     */
+    public boolean isValid(String keyId, long now) {
+        SigningKey key = keyId == null ? null : snapshot.byKeyId.get(keyId);
+        return key != null && now < key.validUntil;
+    }
+
+    /** Find the key with which a token should be verified.
+     *
+     * Does not verify the token.
+     *
+     * @param jws compact JWS
+     * @param now current time in milliseconds since the epoch
+     * @return the key named by the token's kid, or the current key if it has no kid
+     * @throws JwtException if the key is unknown or its grace period is over
+     */
+    public SigningKey resolve(String jws, long now) throws JwtException {
+        int headerEnd = jws.indexOf('.');
+        if (headerEnd < 0) throw new MalformedJwtException("Malformed token");
+        Snapshot keys = snapshot;
+        SigningKey key = keys.byHeader.get(jws.substring(0, headerEnd));
+        if (key == null) {
+            String keyId = parseKeyId(jws, headerEnd);
+            key = keyId == null ? keys.current : keys.byKeyId.get(keyId);
+            if (key == null) throw new JwtException("Unknown signing key " + keyId);
+        }
+        if (now >= key.validUntil) throw new JwtException("Signing key " + key.keyId + " retired");
+        return key;
+    }
+}
@@ -0,0 +1,47 @@
+package com.softwareplumbers.rest.server.core;
+
+import java.io.IOException;
+import javax.annotation.Priority;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.ext.Provider;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+
+/** Clears the logging MDC at the start and end of each request.
+ *
+ * Filters put request details such as the authenticated user and the trace id in the MDC. Request
+ * threads are pooled, so without this a thread would log with the values left by its previous request.
+ * The filter has a lower priority than any other filter, so it runs before all other request filters
+ * and after all other response filters.
+ *
+ * @author SWPNET\jonessex
+ */
+@Provider
+@PreMatching
+@Priority(LoggingContextFilter.PRIORITY)
+@Component
+public class LoggingContextFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    public static final int PRIORITY = -1;
+
+    /** MDC key for the authenticated user */
+    public static final String USER = "user";
+    /** MDC key for the trace id of a sampled request */
+    public static final String TRACE_ID = "traceId";
+    /** MDC key for the span id of a sampled request */
+    public static final String SPAN_ID = "spanId";
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        MDC.clear();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        MDC.clear();
+    }
+}
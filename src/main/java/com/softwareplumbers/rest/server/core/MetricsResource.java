@@ -0,0 +1,70 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/** Publishes timers and counters in Prometheus text format.
+ * 
+ * The same text is available as the Text attribute of the Metrics management bean.
+ * 
+ * If a non-blank string bean named metricsAccessToken is configured, the endpoint requires it as a 
+ * bearer token (Authorization: Bearer &lt;token&gt;) and responds UNAUTHORIZED without it.
+ * 
+ * @author jonat
+ */
+@Component
+@Path("/metrics")
+@ManagedResource(objectName = "com.softwareplumbers.rest.server:type=Metrics", description = "Doctane request metrics")
+public class MetricsResource {
+    
+    private static final String BEARER = "Bearer ";
+    
+    private byte[] accessToken;
+    
+    /** Used by Spring to inject the token required to read metrics, from the bean named metricsAccessToken.
+     * 
+     * @param accessToken bearer token, or blank to allow unauthenticated access
+     */
+    @Autowired(required = false)
+    public void setAccessToken(@Qualifier("metricsAccessToken") String accessToken) {
+        this.accessToken = accessToken == null || accessToken.trim().isEmpty() ? null : accessToken.trim().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private boolean isAuthorized(String authorization) {
+        if (accessToken == null) return true;
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) return false;
+        return MessageDigest.isEqual(accessToken, authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @GET
+    @Produces(Metrics.CONTENT_TYPE)
+    public Response get(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization) {
+        if (!isAuthorized(authorization))
+            return Response.status(Status.UNAUTHORIZED).header(HttpHeaders.WWW_AUTHENTICATE, "Bearer realm=\"metrics\"").build();
+        return Response.ok(Metrics.scrape()).build();
+    }
+    
+    @ManagedAttribute(description = "All metrics in Prometheus text format")
+    public String getText() {
+        return Metrics.scrape();
+    }
+    
+    @ManagedOperation(description = "Discard all recorded values")
+    public void clear() {
+        Metrics.clear();
+    }
+}
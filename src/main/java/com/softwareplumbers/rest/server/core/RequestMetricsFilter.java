@@ -0,0 +1,93 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.Metrics;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Priority;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.Provider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/** Records the time taken to handle each request.
+ * 
+ * Time is measured from before the request is authenticated until the response filters run, and
+ * recorded in the doctane_resource_seconds timer, tagged with the resource method, the repository
+ * path parameter, and the family of the response status. A repository path parameter which does not
+ * name a configured repository is recorded as "unknown", so that requests for arbitrary names cannot
+ * crowd real repositories out of the metrics.
+ * 
+ * @author jonat
+ */
+@Provider
+@Priority(0)
+@Component
+public class RequestMetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+    
+    private static final String START_PROPERTY = "requestMetricsStart";
+    private static final Map<Method, Metrics.Timer<Status.Family>> TIMERS = new ConcurrentHashMap<>();
+    
+    @Context
+    private ResourceInfo resourceInfo;
+    
+    private AuthenticationServiceFactory authServiceFactory;
+    
+    /** Used by Spring to inject a service factory, used to check that a repository exists.
+     * 
+     * @param authServiceFactory A factory for retrieving named services
+     */
+    @Autowired(required = false)
+    public void setRepositoryServiceFactory(AuthenticationServiceFactory authServiceFactory) {
+        this.authServiceFactory = authServiceFactory;
+    }
+    
+    /** Get the repository tag for a request.
+     * 
+     * @param authServiceFactory factory for repository authentication services, or null
+     * @param repository repository path parameter, or null
+     * @return the repository if it is configured, null if there is none, otherwise UNKNOWN_REPOSITORY
+     */
+    static String getRepositoryTag(AuthenticationServiceFactory authServiceFactory, String repository) {
+        if (repository == null) return null;
+        if (authServiceFactory == null) return Metrics.UNKNOWN_REPOSITORY;
+        try {
+            return authServiceFactory.getService(repository) != null ? repository : Metrics.UNKNOWN_REPOSITORY;
+        } catch (RuntimeException e) {
+            return Metrics.UNKNOWN_REPOSITORY;
+        }
+    }
+    
+    private static Metrics.Timer<Status.Family> getTimer(Class<?> resource, Method method) {
+        Metrics.Timer<Status.Family> timer = TIMERS.get(method);
+        if (timer == null) {
+            timer = TIMERS.computeIfAbsent(method, key -> Metrics.timer(
+                "doctane_resource_seconds", "Time taken to handle a request", Status.Family.class, 
+                "method", resource.getSimpleName() + "." + method.getName()
+            ));
+        }
+        return timer;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        requestContext.setProperty(START_PROPERTY, System.nanoTime());
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        Object start = requestContext.getProperty(START_PROPERTY);
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if (start instanceof Long && method != null) {
+            String repository = getRepositoryTag(authServiceFactory, requestContext.getUriInfo().getPathParameters().getFirst("repository"));
+            getTimer(resourceInfo.getResourceClass(), method).recordSince(repository, Status.Family.familyOf(responseContext.getStatus()), (Long)start);
+        }
+    }
+}
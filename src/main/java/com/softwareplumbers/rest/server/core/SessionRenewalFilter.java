@@ -0,0 +1,114 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.model.RequestValidationService;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Priority;
+import javax.json.JsonObject;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import com.softwareplumbers.rest.server.util.TraceLog;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/** Session renewal filter.
+ *
+ * Response-side companion to the AuthenticationFilter, applied to all end-points tagged with the
+ * @Authenticated marker. If the token presented with a successful request has passed the renewal
+ * fraction of its lifetime configured for the repository, a new token is sent with the response so
+ * that active users are never sent back to the identity provider. Tokens are not renewed if the
+ * renewed token would outlive the maximum session age configured for the repository.
+ *
+ * Relies on the validFrom, validUntil and authTime request properties set by the repository's
+ * RequestValidationService. Any user metadata snapshot carried by the presented token (the
+ * userMetadataSnapshot and userMetadataTime properties) is carried over into the renewed token
+ * with its original retrieval time, so that renewal does not extend the life of the snapshot.
+ *
+ * @author SWPNET\jonessex
+ */
+@Provider
+@Authenticated
+@Priority(1)
+@Component
+public class SessionRenewalFilter implements ContainerResponseFilter {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(SessionRenewalFilter.class);
+
+    private AuthenticationServiceFactory authServiceFactory;
+
+    /**
+     * Use by Spring to inject a service factory for retrieval of a named authentication service.
+     *
+     * @param authServiceFactory A factory for retrieving named services
+     */
+    @Autowired
+    public void setRepositoryServiceFactory(AuthenticationServiceFactory authServiceFactory) {
+        this.authServiceFactory = authServiceFactory;
+    }
+
+    /** Decide whether a token should be renewed.
+     *
+     * @param validFrom time token was issued
+     * @param validUntil time token expires
+     * @param authTime time user originally authenticated
+     * @param now current time
+     * @param renewalFraction fraction of token lifetime after which token is renewed
+     * @param maxSessionAge maximum time after authTime for which a renewed token may remain valid
+     * @return true if token should be renewed
+     */
+    static boolean shouldRenew(long validFrom, long validUntil, long authTime, long now, double renewalFraction, long maxSessionAge) {
+        if (renewalFraction <= 0) return false;
+        long lifetime = validUntil - validFrom;
+        if (lifetime <= 0 || now - validFrom < lifetime * renewalFraction) return false;
+        return now + lifetime <= authTime + maxSessionAge;
+    }
+
+    /** Renew the token presented with a request, if required.
+     *
+     * @param requestContext authenticated request
+     * @param responseContext response to which a renewed token may be added
+     * @throws IOException
+     */
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        Date validUntil = (Date)requestContext.getProperty("validUntil");
+        Date validFrom = (Date)requestContext.getProperty("validFrom");
+        if (validUntil == null || validFrom == null || responseContext.getStatus() >= 400) return;
+
+        String repository = requestContext.getUriInfo().getPathParameters().getFirst("repository");
+        if (repository == null || requestContext.getSecurityContext().getUserPrincipal() == null) return;
+        TraceLog.entry(LOG, repository);
+
+        AuthenticationService authService = authServiceFactory.getService(repository);
+        if (authService == null) {
+            TraceLog.exit(LOG);
+            return;
+        }
+        Date authTime = (Date)requestContext.getProperty("authTime");
+        if (authTime == null) authTime = validFrom;
+
+        if (shouldRenew(validFrom.getTime(), validUntil.getTime(), authTime.getTime(), System.currentTimeMillis(), authService.getSessionRenewalFraction(), authService.getMaxSessionAgeMillis())) {
+            RequestValidationService validationService = authService.getRequestValidationService();
+            String userId = requestContext.getSecurityContext().getUserPrincipal().getName();
+            LOG.debug("Renewing token for {}", userId);
+            JsonObject userMetadata = (JsonObject)requestContext.getProperty("userMetadataSnapshot");
+            Date userMetadataTime = (Date)requestContext.getProperty("userMetadataTime");
+            Response renewal = (userMetadata == null
+                ? validationService.sendIdentityToken(Response.ok(), userId, authTime)
+                : validationService.sendIdentityToken(Response.ok(), userId, authTime, userMetadata, userMetadataTime)
+            ).build();
+            for (Map.Entry<String, List<Object>> header : renewal.getHeaders().entrySet()) {
+                responseContext.getHeaders().addAll(header.getKey(), header.getValue());
+            }
+        }
+        TraceLog.exit(LOG);
+    }
+}
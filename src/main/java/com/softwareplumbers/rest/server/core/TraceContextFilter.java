@@ -0,0 +1,72 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.Span;
+import com.softwareplumbers.rest.server.util.TraceContext;
+import com.softwareplumbers.rest.server.util.Tracer;
+import java.io.IOException;
+import javax.annotation.Priority;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.ext.Provider;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/** W3C trace context filter.
+ * 
+ * If a Tracer is configured, reads the traceparent and tracestate headers of each request and asks the
+ * tracer whether the request is to be sampled. For a sampled request, a span covering the whole request
+ * is stored in the request's traceSpan property, where the other filters and resources find it with
+ * Span.of, and the trace and span ids are put in the logging MDC as traceId and spanId (which
+ * LoggingContextFilter clears when the request completes). The response
+ * carries traceparent and tracestate headers identifying the span.
+ * 
+ * Nothing is done for requests which are not sampled.
+ * 
+ * @author SWPNET\jonessex
+ */
+@Provider
+@PreMatching
+@Priority(0)
+@Component
+public class TraceContextFilter implements ContainerRequestFilter, ContainerResponseFilter {
+    
+    private Tracer tracer;
+    
+    /** Used by Spring to inject an optional tracer.
+     * 
+     * @param tracer Tracer deciding which requests are sampled
+     */
+    @Autowired(required = false)
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        if (tracer == null) return;
+        String traceparent = requestContext.getHeaderString(TraceContext.TRACEPARENT);
+        TraceContext parent = traceparent == null ? null : TraceContext.parse(traceparent, requestContext.getHeaderString(TraceContext.TRACESTATE));
+        if (tracer.isSampled(parent)) {
+            Span span = tracer.startSpan(requestContext.getMethod() + " " + requestContext.getUriInfo().getPath(), parent);
+            requestContext.setProperty(Span.REQUEST_PROPERTY, span);
+            MDC.put(LoggingContextFilter.TRACE_ID, span.getContext().getTraceId());
+            MDC.put(LoggingContextFilter.SPAN_ID, span.getContext().getSpanId());
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        Span span = Span.of(requestContext);
+        if (span.isRecording()) {
+            TraceContext context = span.getContext();
+            responseContext.getHeaders().putSingle(TraceContext.TRACEPARENT, context.toTraceparent());
+            if (context.getTraceState() != null) responseContext.getHeaders().putSingle(TraceContext.TRACESTATE, context.getTraceState());
+            span.setAttribute("http.status_code", Integer.toString(responseContext.getStatus()));
+            span.end();
+        }
+    }
+}
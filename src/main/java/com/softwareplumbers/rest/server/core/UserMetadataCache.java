@@ -0,0 +1,111 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.authz.AuthorizationService;
+import com.softwareplumbers.rest.server.util.RefreshingCache;
+import com.softwareplumbers.rest.server.model.AsyncUserMetadataService;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import javax.json.JsonObject;
+
+/** Cache of user metadata retrieved from authorization services.
+ *
+ * Entries are keyed by repository and user id. See RefreshingCache for details of the refresh and
+ * expiry policy. If a bean of this type is defined in services.xml, it will be used by the
+ * UserMetadataFilter; otherwise metadata is retrieved from the authorization service on every request.
+ *
+ * @author Jonathan Essex
+ */
+public class UserMetadataCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 300000L;
+    public static final long DEFAULT_REFRESH_AFTER_MILLIS = 240000L;
+    public static final long DEFAULT_STALE_TIME_TO_LIVE_MILLIS = 600000L;
+
+    private static class Key {
+        public final String repository;
+        public final String userId;
+
+        public Key(String repository, String userId) {
+            this.repository = repository;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key)other).repository.equals(repository) && Objects.equals(((Key)other).userId, userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return repository.hashCode() * 31 + Objects.hashCode(userId);
+        }
+
+        @Override
+        public String toString() {
+            return repository + "/" + userId;
+        }
+    }
+
+    private final RefreshingCache<Key, JsonObject> cache = new RefreshingCache<>(
+        DEFAULT_CAPACITY, DEFAULT_TIME_TO_LIVE_MILLIS, DEFAULT_REFRESH_AFTER_MILLIS, DEFAULT_STALE_TIME_TO_LIVE_MILLIS
+    );
+
+    /** Get user metadata.
+     *
+     * @param repository Repository name
+     * @param userId User id
+     * @param authService Authorization service for the repository, used to load metadata if required
+     * @return User metadata
+     */
+    public JsonObject get(String repository, String userId, AuthorizationService<?,?,?> authService) {
+        return cache.get(new Key(repository, userId), key -> authService.getUserMetadata(key.userId));
+    }
+
+    /** Get user metadata without blocking.
+     *
+     * Shares entries, refresh, request coalescing and failure handling with get.
+     *
+     * @param repository Repository name
+     * @param userId User id
+     * @param asyncService Service used to load metadata if required
+     * @return A future which completes with the user metadata
+     */
+    public CompletableFuture<JsonObject> getAsync(String repository, String userId, AsyncUserMetadataService asyncService) {
+        return cache.getAsync(new Key(repository, userId), key -> asyncService.getUserMetadata(key.userId));
+    }
+
+    /** Remove all cached metadata. */
+    public void clear() {
+        cache.clear();
+    }
+
+    public void setCapacity(int capacity) {
+        cache.setCapacity(capacity);
+    }
+
+    public void setTimeToLiveMillis(long timeToLive) {
+        cache.setTimeToLive(timeToLive);
+    }
+
+    public void setRefreshAfterMillis(long refreshAfter) {
+        cache.setRefreshAfter(refreshAfter);
+    }
+
+    public void setStaleTimeToLiveMillis(long staleTimeToLive) {
+        cache.setStaleTimeToLive(staleTimeToLive);
+    }
+
+    /** Get the underlying cache, for statistics and management.
+     *
+     * @return the underlying cache
+     */
+    public RefreshingCache<?,?> getCache() {
+        return cache;
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+}
@@ -2,6 +2,7 @@ package com.softwareplumbers.rest.server.core;
 
 import com.softwareplumbers.authz.AuthorizationService;
 import com.softwareplumbers.authz.AuthorizationServiceFactory;
+import com.softwareplumbers.rest.server.util.TraceLog;
 import org.slf4j.ext.XLogger;
 import java.io.IOException;
 import javax.annotation.Priority;
@@ -15,8 +16,30 @@ import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import javax.json.JsonObject;
+import javax.json.JsonValue;
 import org.slf4j.ext.XLoggerFactory;
 import com.softwareplumbers.rest.server.model.CoreExceptions;
+import com.softwareplumbers.rest.server.model.AsyncUserMetadataService;
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.util.LazyJsonObject;
+import com.softwareplumbers.rest.server.util.Metrics;
+import com.softwareplumbers.rest.server.util.Metrics.Outcome;
+import com.softwareplumbers.rest.server.util.Span;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
 import javax.ws.rs.core.Response;
 import org.springframework.beans.factory.annotation.Qualifier;
 
@@ -27,6 +50,25 @@ import org.springframework.beans.factory.annotation.Qualifier;
  * marker. It will invoke the authorizationServiceFactory defined for the repository
  * in spring config, and add a property to the request context with the user
  * metadata retrieved from the service.
+ * 
+ * If a UserMetadataCache bean is configured, metadata is retrieved through the cache.
+ * 
+ * If embedUserMetadata is set on the repository's AuthenticationService and the request's token
+ * carries a user metadata snapshot no older than maxUserMetadataStalenessMillis, the snapshot is used
+ * and no lookup is made at all.
+ * 
+ * If lazyUserMetadata is set on the repository's AuthenticationService, the property is
+ * a LazyJsonObject and the authorization service is only called if the metadata is actually
+ * read. On the response side, the filter counts how many lookups were avoided in this way.
+ * 
+ * If an asyncUserMetadataService is set on the repository's AuthenticationService, the filter
+ * starts retrieval from that service (through the UserMetadataCache, if one is configured) and returns
+ * without waiting. The userMetadataStage request property holds a CompletionStage which asynchronous
+ * resources may compose with. If the metadata is already available, typically from the cache, the
+ * userMetadata property is the metadata itself; otherwise it is a LazyJsonObject which, if a synchronous
+ * resource reads it, waits for the stage no later than the repository's userMetadataTimeoutMillis after
+ * the request was filtered. Retrieval which takes longer fails, and a resource reading userMetadata will
+ * then receive a ServiceUnavailableException.
  *
  * @author SWPNET\jonessex
  *
@@ -35,11 +77,54 @@ import org.springframework.beans.factory.annotation.Qualifier;
 @Authenticated
 @Priority(2)
 @Component
-public class UserMetadataFilter implements ContainerRequestFilter {
+public class UserMetadataFilter implements ContainerRequestFilter, ContainerResponseFilter {
 
     private static final XLogger LOG = XLoggerFactory.getXLogger(UserMetadataFilter.class);
+    private static final Metrics.Timer<Outcome> FILTER_TIMER = Metrics.timer("doctane_user_metadata_filter_seconds", "Time taken to add user metadata to a request", Outcome.class);
+    
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "user-metadata-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+    
+    /** Counts of user metadata lookups for a repository. */
+    public static class Statistics {
+        private final LongAdder token = new LongAdder();
+        private final LongAdder eager = new LongAdder();
+        private final LongAdder lazy = new LongAdder();
+        private final LongAdder avoided = new LongAdder();
+        private final LongAdder async = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        
+        /** @return number of requests which used a user metadata snapshot from the token */
+        public long getTokenSnapshots() { return token.sum(); }
+        /** @return number of lookups performed when the request was filtered */
+        public long getEagerLookups() { return eager.sum(); }
+        /** @return number of lazy lookups performed because a resource read the metadata */
+        public long getLazyLookups() { return lazy.sum(); }
+        /** @return number of requests which completed without the metadata being read */
+        public long getAvoidedLookups() { return avoided.sum(); }
+        /** @return number of asynchronous lookups started */
+        public long getAsyncLookups() { return async.sum(); }
+        /** @return number of asynchronous lookups which timed out */
+        public long getTimeouts() { return timeouts.sum(); }
+        
+        @Override
+        public String toString() {
+            return "token: " + getTokenSnapshots() + " eager: " + getEagerLookups() + " lazy: " + getLazyLookups() + " avoided: " + getAvoidedLookups()
+                + " async: " + getAsyncLookups() + " timeouts: " + getTimeouts();
+        }
+    }
 
     private AuthorizationServiceFactory<?,?,?> authorizationServiceFactory;
+    private AuthenticationServiceFactory authServiceFactory;
+    private UserMetadataCache userMetadataCache;
+    private final Map<String, Statistics> statistics = new ConcurrentHashMap<>();
 
     /**
      * Use by Spring to inject a service factory for retrieval of a named
@@ -51,6 +136,28 @@ public class UserMetadataFilter implements ContainerRequestFilter {
     public void setRepositoryServiceFactory(AuthorizationServiceFactory<?,?,?> authorizationServiceFactory) {
         this.authorizationServiceFactory = authorizationServiceFactory;
     }
+    
+    /**
+     * Use by Spring to inject a service factory for retrieval of a named authentication service.
+     * 
+     * The authentication service for a repository determines whether user metadata is lazily retrieved.
+     *
+     * @param authServiceFactory A factory for retrieving named services
+     */
+    @Autowired
+    public void setAuthenticationServiceFactory(AuthenticationServiceFactory authServiceFactory) {
+        this.authServiceFactory = authServiceFactory;
+    }
+    
+    /**
+     * Used by Spring to inject an optional cache of user metadata.
+     * 
+     * @param userMetadataCache Cache of user metadata
+     */
+    @Autowired(required = false)
+    public void setUserMetadataCache(UserMetadataCache userMetadataCache) {
+        this.userMetadataCache = userMetadataCache;
+    }
 
     /**
      * Add user metadata to a request
@@ -61,26 +168,182 @@ public class UserMetadataFilter implements ContainerRequestFilter {
     @Override
     public void filter(ContainerRequestContext requestContext) throws IOException {
         String repository = requestContext.getUriInfo().getPathParameters().getFirst("repository");
-        LOG.entry(repository);
+        TraceLog.entry(LOG, repository);
 
-        if (repository != null) {
-            String userId = requestContext.getSecurityContext().getUserPrincipal().getName();
-            AuthorizationService authService = authorizationServiceFactory.getService(repository);
-            if (authService != null) { 
-                JsonObject userMetadata = authorizationServiceFactory.getService(repository).getUserMetadata(userId);
-                requestContext.setProperty("userMetadata", userMetadata);
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        Span span = Span.of(requestContext).child("user metadata lookup");
+        try {
+            if (repository != null) {
+                String userId = requestContext.getSecurityContext().getUserPrincipal().getName();
+                AuthorizationService<?,?,?> authService = authorizationServiceFactory.getService(repository);
+                if (authService != null) { 
+                    Statistics stats = getStatistics(repository);
+                    AuthenticationService authnService = authServiceFactory.getService(repository);
+                    JsonObject snapshot = authnService != null && authnService.isEmbedUserMetadata() 
+                        ? getSnapshot(requestContext, authnService.getMaxUserMetadataStalenessMillis()) 
+                        : null;
+                    if (snapshot != null) {
+                        stats.token.increment();
+                        requestContext.setProperty("userMetadata", snapshot);
+                    } else if (authnService != null && authnService.getAsyncUserMetadataService() != null) {
+                        stats.async.increment();
+                        CompletableFuture<JsonObject> retrieval = getUserMetadataAsync(repository, userId, authnService.getAsyncUserMetadataService());
+                        if (retrieval.isDone() && !retrieval.isCompletedExceptionally()) {
+                            requestContext.setProperty("userMetadataStage", retrieval);
+                            requestContext.setProperty("userMetadata", orEmpty(retrieval.getNow(null)));
+                        } else {
+                            long timeoutMillis = authnService.getUserMetadataTimeoutMillis();
+                            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                            CompletableFuture<JsonObject> userMetadata = withTimeout(retrieval, timeoutMillis, stats);
+                            requestContext.setProperty("userMetadataStage", userMetadata);
+                            requestContext.setProperty("userMetadata", new LazyJsonObject(() -> await(userMetadata, deadline, repository)));
+                        }
+                    } else if (authnService != null && authnService.isLazyUserMetadata()) {
+                        requestContext.setProperty("userMetadata", new LazyJsonObject(() -> {
+                            stats.lazy.increment();
+                            return getUserMetadata(repository, userId, authService);
+                        }));
+                    } else {
+                        stats.eager.increment();
+                        requestContext.setProperty("userMetadata", orEmpty(getUserMetadata(repository, userId, authService)));
+                    }
+                    outcome = Outcome.SUCCESS;
+                } else {
+                    outcome = Outcome.FAILURE;
+                    requestContext.abortWith(
+                        Response.status(Status.NOT_FOUND).entity(new CoreExceptions.InvalidService(repository).toJson()).build()
+                    );
+                }
             } else {
+                outcome = Outcome.FAILURE;
                 requestContext.abortWith(
                     Response.status(Status.NOT_FOUND).entity(new CoreExceptions.InvalidService(repository).toJson()).build()
                 );
             }
-        } else {
-            requestContext.abortWith(
-                Response.status(Status.NOT_FOUND).entity(new CoreExceptions.InvalidService(repository).toJson()).build()
-            );
+        } finally {
+            FILTER_TIMER.recordSince(repository, outcome, start);
+            span.setAttribute("repository", repository).setAttribute("outcome", outcome.name()).end();
         }
 
-        LOG.exit();
+        TraceLog.exit(LOG);
+    }
+    
+    /** Get the user metadata snapshot carried by the request's token, if it is recent enough.
+     * 
+     * @param requestContext request
+     * @param maxStalenessMillis maximum age of snapshot
+     * @return the snapshot, or null
+     */
+    private static JsonObject getSnapshot(ContainerRequestContext requestContext, long maxStalenessMillis) {
+        Object snapshot = requestContext.getProperty("userMetadataSnapshot");
+        Object snapshotTime = requestContext.getProperty("userMetadataTime");
+        if (snapshot instanceof JsonObject && snapshotTime instanceof Date 
+            && System.currentTimeMillis() - ((Date)snapshotTime).getTime() <= maxStalenessMillis) {
+            return (JsonObject)snapshot;
+        }
+        return null;
+    }
+    
+    /** Replace missing user metadata with an empty object, as LazyJsonObject does.
+     * 
+     * Ensures the userMetadata property is the same whether metadata is retrieved eagerly or lazily.
+     */
+    private static JsonObject orEmpty(JsonObject userMetadata) {
+        return userMetadata == null ? JsonValue.EMPTY_JSON_OBJECT : userMetadata;
+    }
+    
+    private JsonObject getUserMetadata(String repository, String userId, AuthorizationService<?,?,?> authService) {
+        return userMetadataCache == null
+            ? authService.getUserMetadata(userId)
+            : userMetadataCache.get(repository, userId, authService);
+    }
+    
+    private CompletableFuture<JsonObject> getUserMetadataAsync(String repository, String userId, AsyncUserMetadataService asyncService) {
+        if (userMetadataCache != null) return userMetadataCache.getAsync(repository, userId, asyncService);
+        try {
+            return asyncService.getUserMetadata(userId).toCompletableFuture();
+        } catch (RuntimeException e) {
+            CompletableFuture<JsonObject> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+    
+    /** Complete a future with the result of a stage, or exceptionally if the stage does not complete in time.
+     * 
+     * @param stage stage retrieving user metadata
+     * @param timeoutMillis time to wait in milliseconds
+     * @param stats statistics in which timeouts are recorded
+     * @return a future which completes with the result of stage or with a TimeoutException
+     */
+    static CompletableFuture<JsonObject> withTimeout(CompletionStage<JsonObject> stage, long timeoutMillis, Statistics stats) {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = TIMER.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException("User metadata not retrieved in " + timeoutMillis + "ms"))) 
+                stats.timeouts.increment();
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        stage.whenComplete((value, error) -> {
+            timer.cancel(false);
+            if (error == null) result.complete(value); else result.completeExceptionally(error);
+        });
+        return result;
+    }
+    
+    /** Wait for user metadata, no later than the deadline.
+     * 
+     * Only called if a synchronous resource reads the metadata before it has been retrieved.
+     */
+    private static JsonObject await(CompletableFuture<JsonObject> userMetadata, long deadline, String repository) {
+        try {
+            return userMetadata.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out retrieving user metadata for {}", repository);
+            throw new ServiceUnavailableException(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted retrieving user metadata");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                LOG.warn("Timed out retrieving user metadata for {}", repository);
+                throw new ServiceUnavailableException(cause.getMessage());
+            }
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new CompletionException(cause);
+        }
+    }
+    
+    /**
+     * Count user metadata lookups avoided by lazy retrieval.
+     * 
+     * @param requestContext completed request
+     * @param responseContext response
+     * @throws IOException 
+     */
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        Object userMetadata = requestContext.getProperty("userMetadata");
+        if (userMetadata instanceof LazyJsonObject && !((LazyJsonObject)userMetadata).isResolved() && requestContext.getProperty("userMetadataStage") == null) {
+            String repository = requestContext.getUriInfo().getPathParameters().getFirst("repository");
+            getStatistics(repository).avoided.increment();
+        }
+    }
+    
+    /** Get user metadata lookup counts for a repository.
+     * 
+     * @param repository Repository name
+     * @return lookup counts for the repository
+     */
+    public Statistics getStatistics(String repository) {
+        return statistics.computeIfAbsent(repository, k -> new Statistics());
+    }
+    
+    /** Get user metadata lookup counts for all repositories.
+     * 
+     * @return Map of repository name to lookup counts
+     */
+    public Map<String, Statistics> getStatistics() {
+        return statistics;
     }
-
 }
@@ -0,0 +1,23 @@
+package com.softwareplumbers.rest.server.model;
+
+import java.util.concurrent.CompletionStage;
+import javax.json.JsonObject;
+
+/** Service for asynchronous retrieval of user metadata.
+ *
+ * May be configured for a repository in place of synchronous retrieval from the authorization
+ * service, so that no server thread is held while a slow directory is queried.
+ *
+ * @author jonathan.local
+ */
+public interface AsyncUserMetadataService {
+
+    /** Start retrieval of metadata for a user.
+     *
+     * Implementations must not block the calling thread.
+     *
+     * @param userId user id to retrieve metadata for
+     * @return A stage which completes with the user's metadata
+     */
+    public CompletionStage<JsonObject> getUserMetadata(String userId);
+}
@@ -15,6 +15,18 @@ public class AuthenticationService {
     private SignonService signonService;
     private SAMLProtocolHandlerService samlResponseHandlerService;
     private SignedRequestValidationService signedRequestValidationService;
+    private double sessionRenewalFraction = 0;
+    private long maxSessionAgeMillis = DEFAULT_MAX_SESSION_AGE_MILLIS;
+    private boolean lazyUserMetadata = false;
+    private AsyncUserMetadataService asyncUserMetadataService;
+    private long userMetadataTimeoutMillis = DEFAULT_USER_METADATA_TIMEOUT_MILLIS;
+    private boolean embedUserMetadata = false;
+    private long maxUserMetadataStalenessMillis = DEFAULT_MAX_USER_METADATA_STALENESS_MILLIS;
+    private CORSPolicy corsPolicy;
+    
+    public static final long DEFAULT_MAX_SESSION_AGE_MILLIS = 7 * 86400000L;
+    public static final long DEFAULT_USER_METADATA_TIMEOUT_MILLIS = 10000L;
+    public static final long DEFAULT_MAX_USER_METADATA_STALENESS_MILLIS = 300000L;
     
     public RequestValidationService getRequestValidationService() {
         return requestValidationService;
@@ -47,4 +59,115 @@ public class AuthenticationService {
     public void setSignedRequestValidationService(SignedRequestValidationService signedRequestValidationService) {
         this.signedRequestValidationService = signedRequestValidationService;
     }
+    
+    public double getSessionRenewalFraction() {
+        return sessionRenewalFraction;
+    }
+    
+    /** Set the fraction of a token's lifetime after which it will be renewed.
+     * 
+     * When an authenticated request is made with a token which has passed this fraction of
+     * its lifetime, a new token is sent with the response. Zero (the default) disables renewal.
+     * 
+     * @param sessionRenewalFraction fraction of token lifetime, between 0 and 1
+     */
+    public void setSessionRenewalFraction(double sessionRenewalFraction) {
+        this.sessionRenewalFraction = sessionRenewalFraction;
+    }
+    
+    public long getMaxSessionAgeMillis() {
+        return maxSessionAgeMillis;
+    }
+    
+    /** Set the maximum time after the original authentication for which tokens will be renewed.
+     * 
+     * @param maxSessionAgeMillis maximum session age in milliseconds (default 7 days)
+     */
+    public void setMaxSessionAgeMillis(long maxSessionAgeMillis) {
+        this.maxSessionAgeMillis = maxSessionAgeMillis;
+    }
+    
+    public boolean isLazyUserMetadata() {
+        return lazyUserMetadata;
+    }
+    
+    /** Set whether user metadata is retrieved only when it is read.
+     * 
+     * If true, the UserMetadataFilter places a LazyJsonObject in the userMetadata request property,
+     * and the authorization service is only called if a resource actually reads it.
+     * 
+     * @param lazyUserMetadata true to retrieve user metadata on demand (default false)
+     */
+    public void setLazyUserMetadata(boolean lazyUserMetadata) {
+        this.lazyUserMetadata = lazyUserMetadata;
+    }
+    
+    public AsyncUserMetadataService getAsyncUserMetadataService() {
+        return asyncUserMetadataService;
+    }
+    
+    /** Set a service for asynchronous retrieval of user metadata.
+     * 
+     * If set, the UserMetadataFilter starts retrieval of user metadata from this service rather
+     * than calling the authorization service, and does not wait for it to complete.
+     * 
+     * @param asyncUserMetadataService service for asynchronous retrieval of user metadata
+     */
+    public void setAsyncUserMetadataService(AsyncUserMetadataService asyncUserMetadataService) {
+        this.asyncUserMetadataService = asyncUserMetadataService;
+    }
+    
+    public long getUserMetadataTimeoutMillis() {
+        return userMetadataTimeoutMillis;
+    }
+    
+    /** Set the time after which asynchronous retrieval of user metadata is abandoned.
+     * 
+     * @param userMetadataTimeoutMillis timeout in milliseconds (default 10 seconds)
+     */
+    public void setUserMetadataTimeoutMillis(long userMetadataTimeoutMillis) {
+        this.userMetadataTimeoutMillis = userMetadataTimeoutMillis;
+    }
+    
+    public boolean isEmbedUserMetadata() {
+        return embedUserMetadata;
+    }
+    
+    /** Set whether a snapshot of user metadata is embedded in issued tokens.
+     * 
+     * If true, user metadata is retrieved from the authorization service when a token is issued
+     * and embedded in the token; the UserMetadataFilter then uses the snapshot from the token
+     * rather than retrieving metadata, until it is older than maxUserMetadataStalenessMillis.
+     * 
+     * @param embedUserMetadata true to embed user metadata in tokens (default false)
+     */
+    public void setEmbedUserMetadata(boolean embedUserMetadata) {
+        this.embedUserMetadata = embedUserMetadata;
+    }
+    
+    public long getMaxUserMetadataStalenessMillis() {
+        return maxUserMetadataStalenessMillis;
+    }
+    
+    /** Set the maximum age of a user metadata snapshot taken from a token.
+     * 
+     * @param maxUserMetadataStalenessMillis maximum age in milliseconds (default 5 minutes)
+     */
+    public void setMaxUserMetadataStalenessMillis(long maxUserMetadataStalenessMillis) {
+        this.maxUserMetadataStalenessMillis = maxUserMetadataStalenessMillis;
+    }
+    
+    public CORSPolicy getCorsPolicy() {
+        return corsPolicy;
+    }
+    
+    /** Set the cross-origin resource sharing policy for this repository.
+     * 
+     * If not set, the default policy configured for the CORS filters applies.
+     * 
+     * @param corsPolicy policy for cross-origin requests
+     */
+    public void setCorsPolicy(CORSPolicy corsPolicy) {
+        this.corsPolicy = corsPolicy;
+    }
 }
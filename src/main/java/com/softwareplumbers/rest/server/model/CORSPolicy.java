@@ -0,0 +1,248 @@
+package com.softwareplumbers.rest.server.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.ws.rs.core.MultivaluedMap;
+
+/** Cross-origin resource sharing policy.
+ *
+ * Allowed origins are given as exact origins (https://app.example.com), as origins with a wildcard
+ * host prefix (https://*.example.com, which matches any subdomain of example.com but not example.com
+ * itself), or as * to allow any origin. Exact origins are held in a hash set and wildcards as a list of
+ * scheme and suffix pairs, so checking an origin is a hash lookup plus a suffix comparison per wildcard.
+ *
+ * All headers other than Access-Control-Allow-Origin are the same for every allowed origin, so they are
+ * computed when the policy is configured and held in immutable maps, one for preflight responses and
+ * one for actual responses.
+ *
+ * @author SWPNET\jonessex
+ */
+public class CORSPolicy {
+
+    public static final String ALLOW_ORIGIN = "Access-Control-Allow-Origin";
+    public static final String ALLOW_CREDENTIALS = "Access-Control-Allow-Credentials";
+    public static final String ALLOW_METHODS = "Access-Control-Allow-Methods";
+    public static final String ALLOW_HEADERS = "Access-Control-Allow-Headers";
+    public static final String EXPOSE_HEADERS = "Access-Control-Expose-Headers";
+    public static final String MAX_AGE = "Access-Control-Max-Age";
+    public static final String VARY = "Vary";
+
+    public static final long DEFAULT_MAX_AGE_SECONDS = 600;
+
+    private static class Wildcard {
+        final String scheme;
+        final String suffix;
+
+        Wildcard(String scheme, String suffix) {
+            this.scheme = scheme;
+            this.suffix = suffix;
+        }
+
+        boolean matches(String origin) {
+            if (origin.length() <= scheme.length() + suffix.length()) return false;
+            if (!origin.startsWith(scheme) || !origin.endsWith(suffix)) return false;
+            for (int i = scheme.length(); i < origin.length() - suffix.length(); i++) {
+                char c = origin.charAt(i);
+                if (c == '/' || c == ':' || c == '@') return false;
+            }
+            return true;
+        }
+    }
+
+    private volatile boolean allowAnyOrigin = true;
+    private volatile Set<String> exactOrigins = Collections.emptySet();
+    private volatile List<Wildcard> wildcardOrigins = Collections.emptyList();
+
+    private String allowedMethods = "GET, POST, PUT, DELETE, OPTIONS, HEAD";
+    private String allowedHeaders = "origin, content-type, accept, authorization, traceparent, tracestate";
+    private String exposedHeaders = "traceparent, tracestate";
+    private boolean allowCredentials = true;
+    private long maxAgeSeconds = DEFAULT_MAX_AGE_SECONDS;
+    private boolean varyOrigin = true;
+
+    private volatile Map<String, String> preflightHeaders;
+    private volatile Map<String, String> responseHeaders;
+
+    public CORSPolicy() {
+        compileHeaders();
+    }
+
+    private static String normalize(String origin) {
+        origin = origin.trim().toLowerCase(Locale.ROOT);
+        return origin.endsWith("/") ? origin.substring(0, origin.length() - 1) : origin;
+    }
+
+    /** Set the origins allowed to make cross-origin requests.
+     *
+     * The default is to allow any origin.
+     *
+     * @param origins exact origins, origins with a *. host prefix, or *
+     */
+    public void setAllowedOrigins(List<String> origins) {
+        boolean any = false;
+        Set<String> exact = new HashSet<>();
+        List<Wildcard> wildcards = new ArrayList<>();
+        for (String origin : origins) {
+            origin = normalize(origin);
+            int separator = origin.indexOf("://");
+            if (origin.equals("*")) {
+                any = true;
+            } else if (separator > 0 && origin.startsWith("*.", separator + 3)) {
+                wildcards.add(new Wildcard(origin.substring(0, separator + 3), origin.substring(separator + 4)));
+            } else if (separator > 0 && origin.indexOf('*') < 0) {
+                exact.add(origin);
+            } else {
+                throw new IllegalArgumentException("Invalid origin pattern " + origin);
+            }
+        }
+        exactOrigins = Collections.unmodifiableSet(exact);
+        wildcardOrigins = Collections.unmodifiableList(wildcards);
+        allowAnyOrigin = any;
+    }
+
+    /** Check whether an origin is allowed.
+     *
+     * @param origin value of the Origin header
+     * @return true if the origin may make cross-origin requests
+     */
+    public boolean isAllowed(String origin) {
+        if (origin == null) return false;
+        if (allowAnyOrigin) return true;
+        String normalized = origin.toLowerCase(Locale.ROOT);
+        if (exactOrigins.contains(normalized)) return true;
+        for (Wildcard wildcard : wildcardOrigins) {
+            if (wildcard.matches(normalized)) return true;
+        }
+        return false;
+    }
+
+    /** Set the value of Access-Control-Allow-Methods sent with preflight responses.
+     *
+     * @param allowedMethods comma separated list of methods
+     */
+    public void setAllowedMethods(String allowedMethods) {
+        this.allowedMethods = allowedMethods;
+        compileHeaders();
+    }
+
+    /** Set the value of Access-Control-Allow-Headers sent with preflight responses.
+     *
+     * @param allowedHeaders comma separated list of request headers
+     */
+    public void setAllowedHeaders(String allowedHeaders) {
+        this.allowedHeaders = allowedHeaders;
+        compileHeaders();
+    }
+
+    /** Set the value of Access-Control-Expose-Headers sent with actual responses.
+     *
+     * @param exposedHeaders comma separated list of response headers, or null for none
+     */
+    public void setExposedHeaders(String exposedHeaders) {
+        this.exposedHeaders = exposedHeaders;
+        compileHeaders();
+    }
+
+    /** Set whether browsers may send credentials (such as the token cookie) with cross-origin requests.
+     *
+     * @param allowCredentials true to send Access-Control-Allow-Credentials (default true)
+     */
+    public void setAllowCredentials(boolean allowCredentials) {
+        this.allowCredentials = allowCredentials;
+        compileHeaders();
+    }
+
+    /** Set how long browsers may cache a preflight response.
+     *
+     * @param maxAgeSeconds value of Access-Control-Max-Age in seconds (default 600); negative to omit the header
+     */
+    public void setMaxAgeSeconds(long maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+        compileHeaders();
+    }
+
+    public long getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+
+    /** Set whether responses are marked as varying by Origin.
+     *
+     * Access-Control-Allow-Origin echoes the request's origin, so shared caches must not serve a response
+     * to a different origin. Responses without CORS headers are marked too, so that a cached response to a
+     * request without an allowed origin is not served to an allowed one. Vary may only be turned off if no cache sits between server and browser.
+     *
+     * @param varyOrigin true to add Vary: Origin (default true)
+     */
+    public void setVaryOrigin(boolean varyOrigin) {
+        this.varyOrigin = varyOrigin;
+        compileHeaders();
+    }
+
+    private void compileHeaders() {
+        Map<String, String> response = new LinkedHashMap<>();
+        if (allowCredentials) response.put(ALLOW_CREDENTIALS, "true");
+        if (varyOrigin) response.put(VARY, "Origin");
+        Map<String, String> preflight = new LinkedHashMap<>(response);
+        if (exposedHeaders != null && !exposedHeaders.isEmpty()) response.put(EXPOSE_HEADERS, exposedHeaders);
+        preflight.put(ALLOW_METHODS, allowedMethods);
+        preflight.put(ALLOW_HEADERS, allowedHeaders);
+        if (maxAgeSeconds >= 0) preflight.put(MAX_AGE, Long.toString(maxAgeSeconds));
+        preflightHeaders = Collections.unmodifiableMap(preflight);
+        responseHeaders = Collections.unmodifiableMap(response);
+    }
+
+    /** @return headers, other than Access-Control-Allow-Origin, sent with a preflight response */
+    public Map<String, String> getPreflightHeaders() {
+        return preflightHeaders;
+    }
+
+    /** @return headers, other than Access-Control-Allow-Origin, sent with an actual response */
+    public Map<String, String> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    private static void addHeaders(MultivaluedMap<String, Object> headers, String origin, Map<String, String> values) {
+        headers.putSingle(ALLOW_ORIGIN, origin);
+        for (Map.Entry<String, String> header : values.entrySet()) {
+            // Vary may already list other request headers
+            if (header.getKey().equals(VARY)) headers.add(VARY, header.getValue());
+            else headers.putSingle(header.getKey(), header.getValue());
+        }
+    }
+
+    /** Mark a response without CORS headers as varying by Origin, if so configured.
+     *
+     * A response to a request with no Origin, or with an origin which is refused, differs from the response
+     * to an allowed origin only in lacking CORS headers; without Vary, a shared cache could serve it to an
+     * allowed origin.
+     *
+     * @param headers response headers
+     */
+    public void addVaryHeader(MultivaluedMap<String, Object> headers) {
+        if (varyOrigin) headers.add(VARY, "Origin");
+    }
+
+    /** Add CORS headers to a preflight response for an allowed origin.
+     *
+     * @param headers response headers
+     * @param origin value of the request's Origin header
+     */
+    public void addPreflightHeaders(MultivaluedMap<String, Object> headers, String origin) {
+        addHeaders(headers, origin, preflightHeaders);
+    }
+
+    /** Add CORS headers to an actual response for an allowed origin.
+     *
+     * @param headers response headers
+     * @param origin value of the request's Origin header
+     */
+    public void addResponseHeaders(MultivaluedMap<String, Object> headers, String origin) {
+        addHeaders(headers, origin, responseHeaders);
+    }
+}
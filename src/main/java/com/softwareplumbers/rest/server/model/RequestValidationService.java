@@ -1,5 +1,7 @@
 package com.softwareplumbers.rest.server.model;
 
+import java.util.Date;
+import javax.json.JsonObject;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Response.ResponseBuilder;
 
@@ -31,4 +33,36 @@ public interface RequestValidationService {
      * @return The modified ResponseBuilder object
      */
     public ResponseBuilder sendIdentityToken(ResponseBuilder response, String userId);
+    
+    /** Create a response which includes a renewed identity token.
+     * 
+     * Used to extend an existing session. Implementations which record the time at which
+     * the user originally authenticated should carry it over into the renewed token; the 
+     * default implementation simply sends a new token.
+     * 
+     * @param response Response object to which we will add identity token
+     * @param userId user id to send identity token for
+     * @param authTime time at which the user originally authenticated
+     * @return The modified ResponseBuilder object
+     */
+    public default ResponseBuilder sendIdentityToken(ResponseBuilder response, String userId, Date authTime) {
+        return sendIdentityToken(response, userId);
+    }
+    
+    /** Create a response which includes an identity token carrying a snapshot of user metadata.
+     * 
+     * Implementations which can embed user metadata in their tokens should do so, so that later
+     * requests need not retrieve it from the authorization service; the default implementation
+     * ignores the metadata.
+     * 
+     * @param response Response object to which we will add identity token
+     * @param userId user id to send identity token for
+     * @param authTime time at which the user originally authenticated, or null for a new session
+     * @param userMetadata user metadata to embed in the token, or null
+     * @param userMetadataTime time at which the user metadata was retrieved
+     * @return The modified ResponseBuilder object
+     */
+    public default ResponseBuilder sendIdentityToken(ResponseBuilder response, String userId, Date authTime, JsonObject userMetadata, Date userMetadataTime) {
+        return authTime == null ? sendIdentityToken(response, userId) : sendIdentityToken(response, userId, authTime);
+    }
 }
@@ -6,8 +6,9 @@
 package com.softwareplumbers.rest.server.model;
 
 import com.softwareplumbers.rest.server.util.IdioticShibbolethSpringResourceBridge;
+import com.softwareplumbers.rest.server.util.OneTimeUseCache;
+import com.softwareplumbers.rest.server.util.TraceLog;
 import org.slf4j.ext.XLogger;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -16,28 +17,40 @@ import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.DestructableComponent;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import org.apache.commons.io.input.CharSequenceInputStream;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.opensaml.core.config.InitializationException;
 import org.opensaml.core.config.InitializationService;
 import org.opensaml.core.criterion.EntityIdCriterion;
@@ -49,6 +62,7 @@ import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.core.xml.io.Unmarshaller;
 import org.opensaml.core.xml.io.UnmarshallerFactory;
 import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.saml.config.SAMLConfigurationSupport;
 import org.opensaml.saml.criterion.EntityRoleCriterion;
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
 import org.opensaml.saml.metadata.resolver.impl.FilesystemMetadataResolver;
@@ -56,9 +70,12 @@ import org.opensaml.saml.metadata.resolver.impl.PredicateRoleDescriptorResolver;
 import org.opensaml.saml.metadata.resolver.impl.ResourceBackedMetadataResolver;
 import org.opensaml.saml.saml2.core.Assertion;
 import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Conditions;
 import org.opensaml.saml.saml2.core.Issuer;
 import org.opensaml.saml.saml2.core.NameIDPolicy;
 import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Subject;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
 import org.opensaml.saml.saml2.core.impl.AuthnRequestBuilder;
 import org.opensaml.saml.saml2.core.impl.IssuerBuilder;
 import org.opensaml.saml.saml2.core.impl.NameIDPolicyBuilder;
@@ -77,11 +94,24 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 
 /** Encapsulate handling of a SAML Response
  * 
  * An instance of this class is created for each SAML identity provider in order to verify SAML responses. 
+ * 
+ * SAML responses are parsed with a pool of reusable document builders (an OpenSAML BasicParserPool, which 
+ * disallows DTDs and enables secure processing), decoding the Base64 response as the parser reads it. The
+ * size of the pool may be set with the parserPoolSize property.
+ * 
+ * Information about the identity provider read from the metadata resource is held in an immutable snapshot
+ * which is replaced atomically, so that readers never wait for a reload. If metadataCheckMillis is set, a 
+ * background task checks the metadata resource at that interval and reloads it if its modification time 
+ * has changed or if the snapshot is older than metadataRefreshMillis. If a reload fails, the previous
+ * snapshot remains in use.
+ * 
+ * Each assertion may be used only once. Assertion IDs are remembered until the earliest NotOnOrAfter time in
+ * the assertion (or maxAssertionLifetimeMillis after the assertion was issued, if that is sooner) plus an
+ * allowance for clock skew. Assertions which have expired are refused.
  *
  * @author jonathan.local
  */
@@ -91,6 +121,12 @@ public class SAMLProtocolHandlerService {
     public static final String SAML2_NAMEID_POLICY = "urn:oasis:names:tc:SAML:2.0:nameid-format:transient";
     public static final String SAML2_POST_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST";
     public static final String SAML2_SSO_SERVICE = "SingleSignOnService";
+    public static final int DEFAULT_PARSER_POOL_SIZE = 20;
+    public static final int MAX_REQUEST_TEMPLATES = 64;
+    public static final int DEFAULT_ASSERTION_CACHE_SIZE = 100000;
+    public static final long DEFAULT_MAX_SAML_RESPONSE_SIZE = 1048576L;
+    public static final long DEFAULT_MAX_ASSERTION_LIFETIME_MILLIS = 300000L;
+    public static final long ASSERTION_CLOCK_SKEW_MILLIS = 60000L;
 
     
     public static class SAMLParsingError extends Exception {
@@ -120,54 +156,225 @@ public class SAMLProtocolHandlerService {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(SAMLProtocolHandlerService.class);
     
+    private static final ScheduledThreadPoolExecutor METADATA_REFRESH = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "saml-metadata-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    static {
+        METADATA_REFRESH.setRemoveOnCancelPolicy(true);
+    }
+    
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+        try {
+            return SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    });
+    
     private final UnmarshallerFactory unmarshallerFactory;
     private final MarshallerFactory marshallerFactory;
-    private final DocumentBuilderFactory documentBuilderFactory;
-    private String entityId;
-    private Resource metadataResource;
+    private volatile BasicParserPool parserPool;
+    private volatile String entityId;
+    private volatile Resource metadataResource;
+    private volatile long metadataRefreshMillis = 0;
+    private long metadataCheckMillis = 0;
+    private ScheduledFuture<?> metadataCheck;
+    private final LongAdder metadataReloads = new LongAdder();
+    private final LongAdder metadataReloadFailures = new LongAdder();
+    private final ConcurrentHashMap<List<String>, RequestTemplate> requestTemplates = new ConcurrentHashMap<>();
+    private boolean templateRequests = false;
+    private final OneTimeUseCache assertionCache = new OneTimeUseCache(DEFAULT_ASSERTION_CACHE_SIZE);
+    private final LongAdder expiredAssertions = new LongAdder();
+    private boolean assertionReplayProtectionEnabled = true;
+    private long maxAssertionLifetimeMillis = DEFAULT_MAX_ASSERTION_LIFETIME_MILLIS;
+    private long maxSamlResponseSize = DEFAULT_MAX_SAML_RESPONSE_SIZE;
     
+    /** Immutable snapshot of the information read from identity provider metadata. */
     private static class ProviderData {
+        public final String entityId;
+        public final Resource metadataResource;
+        public final long lastModified;
+        public final long loaded;
         public final MetadataResolver idpMetadataResolver;
         public final Credential idpCredential;
         public final String idpEndpoint;
         
         public ProviderData(String entityId, Resource metadataResource) throws IOException, SAMLInitialisationError {
-            LOG.entry(entityId, metadataResource);
+            TraceLog.entry(LOG, entityId, metadataResource);
+            this.entityId = entityId;
+            this.metadataResource = metadataResource;
+            this.lastModified = lastModified(metadataResource);
+            this.loaded = System.currentTimeMillis();
             idpMetadataResolver = initialiseMetadataResolver(metadataResource, entityId);
             idpCredential = getIDPCredential(idpMetadataResolver, entityId);
             idpEndpoint = getIDPEndpoint(idpMetadataResolver, entityId).orElseThrow(()->new SAMLInitialisationError("can't locate endpoint"));     
-            LOG.exit();
+            TraceLog.exit(LOG);
+        }
+        
+        public boolean isFor(String entityId, Resource metadataResource) {
+            return this.entityId.equals(entityId) && this.metadataResource == metadataResource;
+        }
+        
+        public void destroy() {
+            if (idpMetadataResolver instanceof DestructableComponent) ((DestructableComponent)idpMetadataResolver).destroy();
         }
     }
     
-    private ProviderData providerData = null;
+    private final AtomicReference<ProviderData> providerData = new AtomicReference<>();
+    
+    private static long lastModified(Resource resource) {
+        try {
+            return resource.lastModified();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
 
-    private final synchronized ProviderData getProviderData() {
-        LOG.entry();
-        if (this.providerData == null) {
+    private ProviderData getProviderData() {
+        ProviderData data = providerData.get();
+        if (data != null && data.isFor(entityId, metadataResource)) return data;
+        return loadProviderData();
+    }
+    
+    private synchronized ProviderData loadProviderData() {
+        TraceLog.entry(LOG);
+        ProviderData data = providerData.get();
+        if (data == null || !data.isFor(entityId, metadataResource)) {
             try {
-                this.providerData = new ProviderData(entityId, metadataResource);
+                data = new ProviderData(entityId, metadataResource);
             } catch (IOException | SAMLInitialisationError e) {
                 throw new RuntimeException(e);
             }
+            publish(data);
         }
-        return LOG.exit(providerData);
+        return TraceLog.exit(LOG, data);
+    }
+    
+    private synchronized void publish(ProviderData data) {
+        ProviderData previous = providerData.getAndSet(data);
+        if (previous != null) previous.destroy();
+        requestTemplates.clear();
+    }
+    
+    /** Re-read the identity provider metadata.
+     * 
+     * The new metadata is used only if it is read successfully; otherwise the current metadata remains in use.
+     * 
+     * @return true if the metadata was reloaded
+     */
+    public boolean refreshMetadata() {
+        TraceLog.entry(LOG);
+        try {
+            publish(new ProviderData(entityId, metadataResource));
+            metadataReloads.increment();
+            return TraceLog.exit(LOG, true);
+        } catch (IOException | SAMLInitialisationError | RuntimeException e) {
+            metadataReloadFailures.increment();
+            LOG.warn("Could not reload SAML metadata from {}, keeping previous metadata", metadataResource, e);
+            return TraceLog.exit(LOG, false);
+        }
+    }
+    
+    /** Reload the identity provider metadata if it has been modified or is older than metadataRefreshMillis. */
+    void checkMetadata() {
+        ProviderData data = providerData.get();
+        if (data == null) return;
+        boolean modified = data.lastModified != lastModified(data.metadataResource);
+        boolean expired = metadataRefreshMillis > 0 && System.currentTimeMillis() - data.loaded >= metadataRefreshMillis;
+        if (modified || expired) refreshMetadata();
+    }
+    
+    /** Set the interval at which the metadata resource is checked for changes.
+     * 
+     * @param metadataCheckMillis interval in milliseconds, or zero to disable background checks
+     */
+    public synchronized void setMetadataCheckMillis(long metadataCheckMillis) {
+        TraceLog.entry(LOG, metadataCheckMillis);
+        this.metadataCheckMillis = metadataCheckMillis;
+        if (metadataCheck != null) metadataCheck.cancel(false);
+        metadataCheck = metadataCheckMillis > 0 
+            ? METADATA_REFRESH.scheduleWithFixedDelay(() -> {
+                try {
+                    checkMetadata();
+                } catch (RuntimeException e) {
+                    LOG.error("SAML metadata check failed", e);
+                }
+            }, metadataCheckMillis, metadataCheckMillis, TimeUnit.MILLISECONDS) 
+            : null;
+        TraceLog.exit(LOG);
+    }
+    
+    public synchronized long getMetadataCheckMillis() {
+        return metadataCheckMillis;
+    }
+    
+    /** Set the maximum age of identity provider metadata.
+     * 
+     * Has no effect unless metadataCheckMillis is also set.
+     * 
+     * @param metadataRefreshMillis maximum age in milliseconds, or zero to reload only when the resource is modified
+     */
+    public void setMetadataRefreshMillis(long metadataRefreshMillis) {
+        TraceLog.entry(LOG, metadataRefreshMillis);
+        this.metadataRefreshMillis = metadataRefreshMillis;
+        TraceLog.exit(LOG);
+    }
+    
+    public long getMetadataRefreshMillis() {
+        return metadataRefreshMillis;
+    }
+    
+    /** @return number of successful metadata reloads */
+    public long getMetadataReloads() {
+        return metadataReloads.sum();
+    }
+    
+    /** @return number of failed metadata reloads */
+    public long getMetadataReloadFailures() {
+        return metadataReloadFailures.sum();
+    }
+    
+    /** Set whether SAML requests are formatted from a template.
+     * 
+     * When enabled, the serialized form of an AuthnRequest is created once for each combination of ACS URL, 
+     * issuer and destination, and only the ID and IssueInstant are substituted for each request. The output 
+     * is identical to that produced by marshalling a new request.
+     * 
+     * @param templateRequests true to format requests from a template
+     */
+    public void setTemplateRequests(boolean templateRequests) {
+        TraceLog.entry(LOG, templateRequests);
+        this.templateRequests = templateRequests;
+        TraceLog.exit(LOG);
+    }
+    
+    public boolean getTemplateRequests() {
+        return templateRequests;
+    }
+    
+    /** Stop background metadata checks. */
+    public void close() {
+        setMetadataCheckMillis(0);
     }
     
     public SAMLProtocolHandlerService(String entityId, Resource metadataResource) throws SAMLInitialisationError {
-        LOG.entry(entityId, metadataResource);        
+        TraceLog.entry(LOG, entityId, metadataResource);        
         try {
             InitializationService.initialize();        
             this.entityId = entityId;
             this.metadataResource = metadataResource;
-            documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            documentBuilderFactory.setNamespaceAware(true);
+            parserPool = createParserPool(DEFAULT_PARSER_POOL_SIZE);
             unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
             marshallerFactory = XMLObjectProviderRegistrySupport.getMarshallerFactory();
-        } catch (InitializationException e) {
+        } catch (InitializationException | ComponentInitializationException e) {
             throw LOG.throwing(new SAMLInitialisationError("can't initialize SAML subsystem", e));
         }
-        LOG.exit();
+        TraceLog.exit(LOG);
     }
     
 
@@ -181,20 +388,20 @@ public class SAMLProtocolHandlerService {
      * @return the name of the principal encoded in the SAML response
      */
     public static String getName(org.opensaml.saml.saml2.core.Response samlResponse) {
-        LOG.entry(samlResponse);
+        TraceLog.entry(LOG, samlResponse);
         Assertion assertion = samlResponse.getAssertions().get(0);
-        return LOG.exit(assertion.getSubject().getNameID().getValue());
+        return TraceLog.exit(LOG, assertion.getSubject().getNameID().getValue());
     }
     
     public static MetadataResolver initialiseMetadataResolver(Resource resource, String entityId) throws SAMLInitialisationError, IOException {
-        LOG.entry(resource, entityId);
+        TraceLog.entry(LOG, resource, entityId);
         try {
             ResourceBackedMetadataResolver idpMetadataResolver = new ResourceBackedMetadataResolver(new IdioticShibbolethSpringResourceBridge(resource));
             idpMetadataResolver.setRequireValidMetadata(true);
             idpMetadataResolver.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
             idpMetadataResolver.setId(entityId);
             idpMetadataResolver.initialize();
-            return LOG.exit(idpMetadataResolver);
+            return TraceLog.exit(LOG, idpMetadataResolver);
         } catch (ComponentInitializationException e) {
             throw LOG.throwing(new SAMLInitialisationError("Could not initialse SAML subsystem", e));
         }
@@ -206,14 +413,14 @@ public class SAMLProtocolHandlerService {
     }
     
     public static Optional<String> getIDPEndpoint(MetadataResolver idpMetadataResolver, String entityId) throws SAMLInitialisationError {
-        LOG.entry(idpMetadataResolver, entityId);
+        TraceLog.entry(LOG, idpMetadataResolver, entityId);
         CriteriaSet criteriaSet = new CriteriaSet();
         criteriaSet.add(new EntityIdCriterion(entityId));
         try {
             EntityDescriptor entity = idpMetadataResolver.resolveSingle(criteriaSet);
             if (entity == null) throw new SAMLInitialisationError("could not find SAML entity " + entityId + " in SAML config file");
             IDPSSODescriptor sso = entity.getIDPSSODescriptor(SAML2_PROTOCOL);
-            return LOG.exit(sso.getEndpoints()
+            return TraceLog.exit(LOG, sso.getEndpoints()
                     .stream()
                     .filter(SAMLProtocolHandlerService::filterEndpoint)
                     .map(endpoint->endpoint.getLocation())
@@ -231,7 +438,7 @@ public class SAMLProtocolHandlerService {
      * @return the Credential used to validate signatures from the SAML2 IDP
      */
     public static Credential getIDPCredential(MetadataResolver idpMetadataResolver, String entityId) throws SAMLInitialisationError {
-        LOG.entry(idpMetadataResolver, entityId);
+        TraceLog.entry(LOG, idpMetadataResolver, entityId);
         try {
             KeyInfoCredentialResolver keyResolver = DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver();
             
@@ -245,14 +452,14 @@ public class SAMLProtocolHandlerService {
             CriteriaSet criteriaSet = new CriteriaSet();
             criteriaSet.add(new EntityIdCriterion(entityId));
             criteriaSet.add(new EntityRoleCriterion(IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
-            return LOG.exit(credentialResolver.resolveSingle(criteriaSet));
+            return TraceLog.exit(LOG, credentialResolver.resolveSingle(criteriaSet));
         } catch (ComponentInitializationException | ResolverException e) {
             throw LOG.throwing(new SAMLInitialisationError("Could not initialse SAML subsystem", e));
         }
     }
     
     public boolean validateSignature(Response response) {
-        LOG.entry(response);
+        TraceLog.entry(LOG, response);
         SAMLSignatureProfileValidator profileValidator = new SAMLSignatureProfileValidator();
         try {
             org.opensaml.xmlsec.signature.Signature signature = response.getSignature();
@@ -260,9 +467,123 @@ public class SAMLProtocolHandlerService {
             profileValidator.validate(signature);
             SignatureValidator.validate(signature, getIDPCredential());
         } catch (SignatureException exp) {
-            return LOG.exit(false);
+            return TraceLog.exit(LOG, false);
         }       
-        return LOG.exit(true);
+        return TraceLog.exit(LOG, true);
+    }
+    
+    /** Check whether any assertion in a response has already been used.
+     * 
+     * This check is cheap and may be made before the signature of the response is validated; it does not
+     * record the assertions as used.
+     * 
+     * @param response SAML response
+     * @return true if the response contains an assertion which has already been used
+     */
+    public boolean isReplayed(Response response) {
+        TraceLog.entry(LOG, response);
+        if (!assertionReplayProtectionEnabled) return TraceLog.exit(LOG, false);
+        long now = System.currentTimeMillis();
+        for (Assertion assertion : response.getAssertions()) {
+            if (assertion.getID() != null && assertionCache.contains(assertion.getID(), now)) return TraceLog.exit(LOG, true);
+        }
+        return TraceLog.exit(LOG, false);
+    }
+    
+    private long getAssertionExpiry(Assertion assertion, long now) {
+        long expires = (assertion.getIssueInstant() == null ? now : assertion.getIssueInstant().getMillis()) + maxAssertionLifetimeMillis;
+        Conditions conditions = assertion.getConditions();
+        if (conditions != null && conditions.getNotOnOrAfter() != null) 
+            expires = Math.min(expires, conditions.getNotOnOrAfter().getMillis());
+        Subject subject = assertion.getSubject();
+        if (subject != null) {
+            for (SubjectConfirmation confirmation : subject.getSubjectConfirmations()) {
+                if (confirmation.getSubjectConfirmationData() != null && confirmation.getSubjectConfirmationData().getNotOnOrAfter() != null)
+                    expires = Math.min(expires, confirmation.getSubjectConfirmationData().getNotOnOrAfter().getMillis());
+            }
+        }
+        return expires + ASSERTION_CLOCK_SKEW_MILLIS;
+    }
+    
+    /** Record the assertions in a response as used.
+     * 
+     * Should be called only once the signature of the response has been validated.
+     * 
+     * @param response SAML response
+     * @return false if any assertion has expired, has already been used, or cannot be recorded
+     */
+    public boolean useAssertions(Response response) {
+        TraceLog.entry(LOG, response);
+        if (!assertionReplayProtectionEnabled) return TraceLog.exit(LOG, true);
+        long now = System.currentTimeMillis();
+        for (Assertion assertion : response.getAssertions()) {
+            long expires = getAssertionExpiry(assertion, now);
+            if (expires <= now) {
+                expiredAssertions.increment();
+                LOG.debug("Assertion {} expired", assertion.getID());
+                return TraceLog.exit(LOG, false);
+            }
+            if (assertion.getID() == null || !assertionCache.add(assertion.getID(), expires, now)) {
+                LOG.debug("Assertion {} already used", assertion.getID());
+                return TraceLog.exit(LOG, false);
+            }
+        }
+        return TraceLog.exit(LOG, true);
+    }
+    
+    /** Set whether assertions may be used only once.
+     * 
+     * @param assertionReplayProtectionEnabled false to accept an assertion more than once (default true)
+     */
+    public void setAssertionReplayProtectionEnabled(boolean assertionReplayProtectionEnabled) {
+        this.assertionReplayProtectionEnabled = assertionReplayProtectionEnabled;
+    }
+    
+    public boolean isAssertionReplayProtectionEnabled() {
+        return assertionReplayProtectionEnabled;
+    }
+    
+    /** Set the maximum time after issue for which an assertion is accepted.
+     * 
+     * @param maxAssertionLifetimeMillis time in milliseconds (default 5 minutes)
+     */
+    public void setMaxAssertionLifetimeMillis(long maxAssertionLifetimeMillis) {
+        this.maxAssertionLifetimeMillis = maxAssertionLifetimeMillis;
+    }
+    
+    public long getMaxAssertionLifetimeMillis() {
+        return maxAssertionLifetimeMillis;
+    }
+    
+    /** Set the maximum number of used assertion IDs remembered.
+     * 
+     * When the cache is full of unexpired assertions, further assertions are refused.
+     * 
+     * @param assertionCacheSize maximum number of assertion IDs
+     */
+    public void setAssertionCacheSize(int assertionCacheSize) {
+        assertionCache.setCapacity(assertionCacheSize);
+    }
+    
+    /** Set the maximum size of a form posted to the assertion consumer service.
+     * 
+     * @param maxSamlResponseSize maximum size in bytes of the encoded form (default 1MB)
+     */
+    public void setMaxSamlResponseSize(long maxSamlResponseSize) {
+        this.maxSamlResponseSize = maxSamlResponseSize;
+    }
+    
+    public long getMaxSamlResponseSize() {
+        return maxSamlResponseSize;
+    }
+    
+    public OneTimeUseCache getAssertionCache() {
+        return assertionCache;
+    }
+    
+    /** @return number of assertions refused because they had expired */
+    public long getExpiredAssertions() {
+        return expiredAssertions.sum();
     }
     
     public boolean hasDocumentViewerRole(Response response) {
@@ -270,56 +591,102 @@ public class SAMLProtocolHandlerService {
         return true;
     }
     
-    public Response parseSamlResponse(String samlResponse) throws SAMLParsingError {
-        LOG.entry(samlResponse);
+    private static BasicParserPool createParserPool(int parserPoolSize) throws ComponentInitializationException {
+        BasicParserPool pool = new BasicParserPool();
+        pool.setMaxPoolSize(parserPoolSize);
+        pool.initialize();
+        return pool;
+    }
+    
+    /** Set the maximum number of document builders retained for parsing SAML responses.
+     * 
+     * An initialized BasicParserPool cannot be resized, so this replaces the pool. Parses already in 
+     * progress complete with the previous pool.
+     * 
+     * @param parserPoolSize maximum number of pooled document builders
+     */
+    public void setParserPoolSize(int parserPoolSize) {
+        TraceLog.entry(LOG, parserPoolSize);
+        if (parserPoolSize < 1) throw LOG.throwing(new IllegalArgumentException("parserPoolSize must be positive"));
         try {
-            ByteArrayInputStream is = new ByteArrayInputStream(Base64.getDecoder().decode(samlResponse));
-            DocumentBuilder docBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document document = docBuilder.parse(is);
+            parserPool = createParserPool(parserPoolSize);
+        } catch (ComponentInitializationException e) {
+            throw LOG.throwing(new IllegalStateException("can't create SAML parser pool", e));
+        }
+        TraceLog.exit(LOG);
+    }
+    
+    public int getParserPoolSize() {
+        return parserPool.getMaxPoolSize();
+    }
+    
+    /** Parse a SAML response.
+     * 
+     * The response is Base64 decoded as it is read by the parser. Line breaks in the encoded response are ignored.
+     * 
+     * @param samlResponse Base64 encoded SAML response
+     * @return The parsed response
+     * @throws SAMLParsingError if the response cannot be decoded or parsed
+     */
+    public Response parseSamlResponse(String samlResponse) throws SAMLParsingError {
+        TraceLog.entry(LOG, samlResponse);
+        return TraceLog.exit(LOG, parseSamlResponse(new CharSequenceInputStream(samlResponse, StandardCharsets.US_ASCII, 4096)));
+    }
+    
+    /** Parse a SAML response from a stream.
+     * 
+     * The response is Base64 decoded as it is read by the parser. Line breaks in the encoded response are ignored.
+     * 
+     * @param samlResponse Stream containing a Base64 encoded SAML response
+     * @return The parsed response
+     * @throws SAMLParsingError if the response cannot be decoded or parsed
+     */
+    public Response parseSamlResponse(InputStream samlResponse) throws SAMLParsingError {
+        TraceLog.entry(LOG, samlResponse);
+        try (InputStream is = Base64.getMimeDecoder().wrap(samlResponse)) {
+            Document document = parserPool.parse(is);
 
             Element element = document.getDocumentElement();
             if (element == null) throw new RuntimeException("Malformed SAML Response");
             Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(element);
             if (unmarshaller == null) throw new RuntimeException("Can't create XML unmarshaller");
             XMLObject responseXmlObj = unmarshaller.unmarshall(element);
-            return LOG.exit((Response)responseXmlObj);
-        } catch (ParserConfigurationException | SAXException | IOException | UnmarshallingException e) {
+            return TraceLog.exit(LOG, (Response)responseXmlObj);
+        } catch (XMLParserException | IOException | UnmarshallingException e) {
             throw LOG.throwing(new SAMLParsingError("Could not parse SAML response", e));
         } 
     }
     
     public String getEntityId() {
-        LOG.entry();
-        return LOG.exit(entityId);
+        TraceLog.entry(LOG);
+        return TraceLog.exit(LOG, entityId);
     }
     
     public void setEntityId(String entityId) {
-        LOG.entry(entityId);
-        this.providerData = null;
+        TraceLog.entry(LOG, entityId);
         this.entityId = entityId;
-        LOG.exit();
+        TraceLog.exit(LOG);
     }
     
     public Resource getProviderMetadata() {
-        LOG.entry();
-        return LOG.exit(metadataResource);
+        TraceLog.entry(LOG);
+        return TraceLog.exit(LOG, metadataResource);
     }
 
     public void setProviderMetadata(Resource metadataResource) {
-        LOG.entry(metadataResource);
-        this.providerData = null;
+        TraceLog.entry(LOG, metadataResource);
         this.metadataResource = metadataResource;
-        LOG.exit();
+        TraceLog.exit(LOG);
     }
     
     public String getIDPEndpoint() {
-        LOG.entry();
-        return LOG.exit(getProviderData().idpEndpoint);
+        TraceLog.entry(LOG);
+        return TraceLog.exit(LOG, getProviderData().idpEndpoint);
     }
     
     public Credential getIDPCredential() {
-        LOG.entry();
-        return LOG.exit(getProviderData().idpCredential);
+        TraceLog.entry(LOG);
+        return TraceLog.exit(LOG, getProviderData().idpCredential);
     }
     
     /**
@@ -353,34 +720,112 @@ public class SAMLProtocolHandlerService {
         //Wierd. I'd have thought we should user getURLEncoder here, but in the majority
         //of cases it does not seem to work. Maybe because SAML really expects the POST
         //binding where the 'regular' base-64 encoding is better.
-        return new DeflaterOutputStream(Base64.getEncoder().wrap(out), deflater);
+        return new DeflaterOutputStream(Base64.getEncoder().wrap(out), deflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
     }
     
     public static InputStream decode(InputStream in) {
         Inflater inflater = new Inflater(true);
-        return new InflaterInputStream(Base64.getDecoder().wrap(in), inflater);
+        return new InflaterInputStream(Base64.getDecoder().wrap(in), inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
     }
     
-    /** Formate a SAML request
+    /** Deflate and Base64 encode a message, as encode does, using a deflater owned by the current thread. */
+    private static String encode(byte[] message) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(message);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(message.length);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            deflated.write(buffer, 0, count);
+        }
+        return Base64.getEncoder().encodeToString(deflated.toByteArray());
+    }
+    
+    /** Generate a random request ID.
      * 
-     * @param ACSUrl - ACS url to handle SAML responses
-     * @param issuerId - defaults to the entity Id provided in the constructor
-     * @return A formatted SAML request
-     * @throws com.softwareplumbers.dms.rest.server.model.SAMLProtocolHandlerService.SAMLOutputError 
+     * IDs have the same format as UUID.randomUUID() but are generated with a random number generator owned 
+     * by the current thread, so that concurrent requests do not contend on a shared SecureRandom.
+     * 
+     * @return A new request ID
      */
-    public String formatRequest(String ACSUrl, Optional<String> issuerId) throws SAMLOutputError {
-        LOG.entry(ACSUrl, issuerId);
+    public static String generateId() {
+        byte[] bytes = new byte[16];
+        RANDOM.get().nextBytes(bytes);
+        bytes[6] = (byte)((bytes[6] & 0x0f) | 0x40);
+        bytes[8] = (byte)((bytes[8] & 0x3f) | 0x80);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+    
+    /** Invariant parts of a serialized AuthnRequest, either side of the ID and IssueInstant values. */
+    private static class RequestTemplate {
+        private final byte[] prefix;
+        private final byte[] infix;
+        private final byte[] suffix;
+        private final boolean idFirst;
+        
+        public RequestTemplate(byte[] request, String id, String issueInstant) throws SAMLOutputError {
+            String text = new String(request, StandardCharsets.ISO_8859_1);
+            int idStart = find(text, " ID=\"" + id + "\"") + 5;
+            int idEnd = idStart + id.length();
+            int instantStart = find(text, " IssueInstant=\"" + issueInstant + "\"") + 15;
+            int instantEnd = instantStart + issueInstant.length();
+            idFirst = idStart < instantStart;
+            prefix = Arrays.copyOfRange(request, 0, idFirst ? idStart : instantStart);
+            infix = Arrays.copyOfRange(request, idFirst ? idEnd : instantEnd, idFirst ? instantStart : idStart);
+            suffix = Arrays.copyOfRange(request, idFirst ? instantEnd : idEnd, request.length);
+        }
+        
+        private static int find(String text, String attribute) throws SAMLOutputError {
+            int index = text.indexOf(attribute);
+            if (index < 0 || text.indexOf(attribute, index + 1) >= 0) throw new SAMLOutputError("could not locate " + attribute + " in request template");
+            return index;
+        }
+        
+        public byte[] format(String id, String issueInstant) {
+            byte[] first = (idFirst ? id : issueInstant).getBytes(StandardCharsets.US_ASCII);
+            byte[] second = (idFirst ? issueInstant : id).getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer request = ByteBuffer.allocate(prefix.length + first.length + infix.length + second.length + suffix.length);
+            request.put(prefix).put(first).put(infix).put(second).put(suffix);
+            return request.array();
+        }
+    }
+    
+    private AuthnRequest buildRequest(String ACSUrl, String issuerId, String destination, String id, DateTime issueInstant) {
         AuthnRequestBuilder authRequestBuilder = new AuthnRequestBuilder();
         AuthnRequest authRequest = authRequestBuilder.buildObject(SAML2_PROTOCOL, "AuthnRequest", "saml2p");
         authRequest.setAssertionConsumerServiceURL(ACSUrl);
-        authRequest.setID(UUID.randomUUID().toString());
-        authRequest.setIssueInstant(DateTime.now());
-        authRequest.setIssuer(buildIssuer(issuerId.orElse(this.entityId)));
+        authRequest.setID(id);
+        authRequest.setIssueInstant(issueInstant);
+        authRequest.setIssuer(buildIssuer(issuerId));
         authRequest.setNameIDPolicy(buildNameIdPolicy());
-        authRequest.setDestination(getIDPEndpoint());
+        authRequest.setDestination(destination);
         authRequest.setProtocolBinding(SAML2_POST_BINDING);
-        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
-        try (OutputStream out = encode(encoded)) {
+        return authRequest;
+    }
+    
+    private void writeRequest(AuthnRequest authRequest, OutputStream out) throws SAMLOutputError {
+        try {
             Marshaller marshaller = marshallerFactory.getMarshaller(authRequest);
             if (marshaller == null) throw new SAMLOutputError("could not create SAML marshaller");
             Element element = marshaller.marshall(authRequest);
@@ -394,7 +839,58 @@ public class SAMLProtocolHandlerService {
         } catch (MarshallingException | TransformerException | IOException e) {
             throw LOG.throwing(new SAMLOutputError("Error creating SAML request", e));
         }
-        try { encoded.close(); } catch (IOException e) { LOG.catching(e); };
-        return LOG.exit(encoded.toString());
+    }
+    
+    private RequestTemplate getRequestTemplate(String ACSUrl, String issuerId, String destination) throws SAMLOutputError {
+        List<String> key = Arrays.asList(ACSUrl, issuerId, destination);
+        RequestTemplate template = requestTemplates.get(key);
+        if (template == null) {
+            LOG.debug("Creating SAML request template for {}", key);
+            String id = generateId();
+            DateTime issueInstant = new DateTime(0L, DateTimeZone.UTC);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            writeRequest(buildRequest(ACSUrl, issuerId, destination, id, issueInstant), request);
+            template = new RequestTemplate(request.toByteArray(), id, SAMLConfigurationSupport.getSAMLDateFormatter().print(issueInstant));
+            if (requestTemplates.size() >= MAX_REQUEST_TEMPLATES) requestTemplates.clear();
+            requestTemplates.put(key, template);
+        }
+        return template;
+    }
+    
+    /** Format a SAML request with a given ID and issue instant.
+     * 
+     * @param ACSUrl - ACS url to handle SAML responses
+     * @param issuerId - defaults to the entity Id provided in the constructor
+     * @param id - request ID
+     * @param issueInstant - request issue instant
+     * @return A formatted SAML request
+     * @throws com.softwareplumbers.dms.rest.server.model.SAMLProtocolHandlerService.SAMLOutputError 
+     */
+    public String formatRequest(String ACSUrl, Optional<String> issuerId, String id, DateTime issueInstant) throws SAMLOutputError {
+        TraceLog.entry(LOG, ACSUrl, issuerId, id, issueInstant);
+        String issuer = issuerId.orElse(this.entityId);
+        String destination = getIDPEndpoint();
+        if (templateRequests) {
+            RequestTemplate template = getRequestTemplate(ACSUrl, issuer, destination);
+            return TraceLog.exit(LOG, encode(template.format(id, SAMLConfigurationSupport.getSAMLDateFormatter().print(issueInstant))));
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (OutputStream out = encode(encoded)) {
+            writeRequest(buildRequest(ACSUrl, issuer, destination, id, issueInstant), out);
+        } catch (IOException e) {
+            throw LOG.throwing(new SAMLOutputError("Error creating SAML request", e));
+        }
+        return TraceLog.exit(LOG, encoded.toString());
+    }
+    
+    /** Formate a SAML request
+     * 
+     * @param ACSUrl - ACS url to handle SAML responses
+     * @param issuerId - defaults to the entity Id provided in the constructor
+     * @return A formatted SAML request
+     * @throws com.softwareplumbers.dms.rest.server.model.SAMLProtocolHandlerService.SAMLOutputError 
+     */
+    public String formatRequest(String ACSUrl, Optional<String> issuerId) throws SAMLOutputError {
+        return formatRequest(ACSUrl, issuerId, generateId(), DateTime.now());
     }
 }
@@ -7,10 +7,14 @@ package com.softwareplumbers.rest.server.model;
 
 import com.softwareplumbers.rest.server.core.SystemKeyPairs;
 import com.softwareplumbers.rest.server.core.SystemSecretKeys;
+import com.softwareplumbers.rest.server.util.TraceLog;
 import org.slf4j.ext.XLogger;
 import com.softwareplumbers.keymanager.InitializationFailure;
 import com.softwareplumbers.keymanager.BadKeyException;
 import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.util.ExpiringCache;
+import com.softwareplumbers.rest.server.util.ReplayGuard;
+import java.nio.ByteBuffer;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.InvalidKeyException;
@@ -22,12 +26,23 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Base64;
 import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import org.slf4j.ext.XLoggerFactory;
 
 /** Service for validating an access request signed by a private key.
+ * 
+ * Public keys are cached per account for publicKeyCacheMillis, and accounts with no public key
+ * are remembered for unknownAccountCacheMillis, so that repeated requests do not each go to the
+ * key manager. Each thread keeps its own Signature instance, which is only re-initialized when
+ * the account's key changes.
+ * 
+ * Requests are accepted only once. A digest of each successfully validated request is remembered
+ * for as long as its instant would be accepted; a request whose digest has been seen is rejected
+ * before its signature is checked. Because only validated requests are remembered, a forged request
+ * cannot be used to block a genuine one.
  *
  * @author Jonathan Essex
  */
@@ -35,7 +50,32 @@ public class SignedRequestValidationService {
 
     private static final XLogger LOG = XLoggerFactory.getXLogger(SignedRequestValidationService.class);
     
+    public static final int DEFAULT_PUBLIC_KEY_CACHE_SIZE = 1000;
+    public static final long DEFAULT_PUBLIC_KEY_CACHE_MILLIS = 300000L;
+    public static final long DEFAULT_UNKNOWN_ACCOUNT_CACHE_MILLIS = 30000L;
+    /** Maximum difference between the instant in a request and the current time */
+    public static final long INSTANT_TOLERANCE_MILLIS = 60000L;
+    public static final int REPLAY_GUARD_BUCKETS = 13;
+    
     private final KeyManager<SystemSecretKeys,SystemKeyPairs> keyManager;
+    private final ExpiringCache<String, Optional<PublicKey>> publicKeys = new ExpiringCache<>(DEFAULT_PUBLIC_KEY_CACHE_SIZE);
+    private final LongAdder verifications = new LongAdder();
+    private long publicKeyCacheMillis = DEFAULT_PUBLIC_KEY_CACHE_MILLIS;
+    private long unknownAccountCacheMillis = DEFAULT_UNKNOWN_ACCOUNT_CACHE_MILLIS;
+    private final ReplayGuard replayGuard = new ReplayGuard(2 * INSTANT_TOLERANCE_MILLIS, REPLAY_GUARD_BUCKETS);
+    private boolean replayProtectionEnabled = true;
+    
+    /** Per-thread verifier, with the key it was last initialized with */
+    private static class Verifier {
+        public final Signature signature;
+        public PublicKey key;
+        
+        public Verifier() throws NoSuchAlgorithmException, NoSuchProviderException {
+            signature = Signature.getInstance(KeyManager.PUBLIC_KEY_SIGNATURE_ALGORITHM, "SUN");
+        }
+    }
+    
+    private static final ThreadLocal<Verifier> VERIFIER = new ThreadLocal<>();
     
     public static class RequestValidationError extends Exception {
         public RequestValidationError(String msg, Exception cause) {
@@ -47,23 +87,121 @@ public class SignedRequestValidationService {
         this.keyManager = keyManager;
     }
     
+    /** Set the maximum number of accounts for which public keys are cached.
+     * 
+     * @param publicKeyCacheSize maximum number of accounts
+     */
+    public void setPublicKeyCacheSize(int publicKeyCacheSize) {
+        publicKeys.setCapacity(publicKeyCacheSize);
+    }
+    
+    /** Set the time for which an account's public key is cached.
+     * 
+     * @param publicKeyCacheMillis time in milliseconds
+     */
+    public void setPublicKeyCacheMillis(long publicKeyCacheMillis) {
+        this.publicKeyCacheMillis = publicKeyCacheMillis;
+    }
+    
+    /** Set the time for which an account with no public key is remembered.
+     * 
+     * @param unknownAccountCacheMillis time in milliseconds
+     */
+    public void setUnknownAccountCacheMillis(long unknownAccountCacheMillis) {
+        this.unknownAccountCacheMillis = unknownAccountCacheMillis;
+    }
+    
+    /** Get the public key cache, for statistics and management.
+     * 
+     * @return the public key cache
+     */
+    public ExpiringCache<?,?> getPublicKeyCache() {
+        return publicKeys;
+    }
+    
+    /** Enable or disable rejection of replayed requests.
+     * 
+     * @param replayProtectionEnabled false to accept a signed request more than once (default true)
+     */
+    public void setReplayProtectionEnabled(boolean replayProtectionEnabled) {
+        this.replayProtectionEnabled = replayProtectionEnabled;
+    }
+    
+    public boolean isReplayProtectionEnabled() {
+        return replayProtectionEnabled;
+    }
+    
+    /** Get the replay guard, for statistics and management.
+     * 
+     * @return the replay guard
+     */
+    public ReplayGuard getReplayGuard() {
+        return replayGuard;
+    }
+    
+    public long getVerifications() {
+        return verifications.sum();
+    }
+    
+    /** Get the public key for an account, from the cache if possible.
+     * 
+     * @param account account alias
+     * @return The public key for the account, or null if there is none
+     */
+    private PublicKey getPublicKey(String account) throws InitializationFailure, BadKeyException {
+        long now = System.currentTimeMillis();
+        Optional<PublicKey> cached = publicKeys.get(account, now);
+        if (cached == null) {
+            Key key = keyManager.getKey(account);
+            if (key instanceof PublicKey) {
+                cached = Optional.of((PublicKey)key);
+                publicKeys.put(account, cached, now + publicKeyCacheMillis, now);
+            } else {
+                if (key != null) LOG.warn("Key for account {} is not a public key", account);
+                cached = Optional.empty();
+                publicKeys.put(account, cached, now + unknownAccountCacheMillis, now);
+            }
+        }
+        return cached.orElse(null);
+    }
+    
+    private static Verifier getVerifier() throws NoSuchAlgorithmException, NoSuchProviderException {
+        Verifier verifier = VERIFIER.get();
+        if (verifier == null) {
+            verifier = new Verifier();
+            VERIFIER.set(verifier);
+        }
+        return verifier;
+    }
+    
     public boolean validateSignature(byte[] serviceRequest, byte[] signature, String account) throws InitializationFailure, NoSuchAlgorithmException, BadKeyException, NoSuchProviderException, InvalidKeyException, java.security.SignatureException {
-        LOG.entry(serviceRequest, signature, account);
-        Key key = keyManager.getKey(account);
-        if (key == null) return false;
-        Signature sig = Signature.getInstance(KeyManager.PUBLIC_KEY_SIGNATURE_ALGORITHM, "SUN");
-        sig.initVerify((PublicKey)key);
-        sig.update(serviceRequest);
-        return LOG.exit(sig.verify(signature));
+        TraceLog.entry(LOG, serviceRequest, signature, account);
+        PublicKey key = getPublicKey(account);
+        if (key == null) return TraceLog.exit(LOG, false);
+        Verifier verifier = getVerifier();
+        verifications.increment();
+        try {
+            // A Signature returns to its initialized state after verify, so only re-initialize for a different key
+            if (verifier.key != key) {
+                verifier.key = null;
+                verifier.signature.initVerify(key);
+                verifier.key = key;
+            }
+            verifier.signature.update(serviceRequest);
+            return TraceLog.exit(LOG, verifier.signature.verify(signature));
+        } catch (SignatureException e) {
+            verifier.key = null;
+            throw e;
+        }
     }
     
     public boolean validateInstant(long instant) {
-        LOG.entry(instant);
-        return LOG.exit(Math.abs(instant - System.currentTimeMillis()) < 60000L);
+        TraceLog.entry(LOG, instant);
+        return TraceLog.exit(LOG, Math.abs(instant - System.currentTimeMillis()) < INSTANT_TOLERANCE_MILLIS);
     }
     
     public Optional<String> validateSignature(String request, String signature) throws RequestValidationError {
-        LOG.entry(request, signature);
+        TraceLog.entry(LOG, request, signature);
         byte[] requestBinary = Base64.getUrlDecoder().decode(request);
         byte[] signatureBinary = Base64.getUrlDecoder().decode(signature);
 
@@ -75,10 +213,23 @@ public class SignedRequestValidationService {
             String account = requestObject.getString("account");
             long instant = requestObject.getJsonNumber("instant").longValueExact();
             
-            if (validateInstant(instant) && validateSignature(requestBinary, signatureBinary, account))
-                return LOG.exit(Optional.of(account));
-            else
-                return LOG.exit(Optional.empty());
+            if (!validateInstant(instant)) return TraceLog.exit(LOG, Optional.empty());
+            
+            long now = System.currentTimeMillis();
+            ByteBuffer replayKey = replayProtectionEnabled ? ReplayGuard.key(requestBinary) : null;
+            if (replayKey != null && replayGuard.contains(replayKey, now)) {
+                LOG.warn("Rejected replayed request for account {}", account);
+                return TraceLog.exit(LOG, Optional.empty());
+            }
+            
+            if (!validateSignature(requestBinary, signatureBinary, account)) return TraceLog.exit(LOG, Optional.empty());
+            
+            // Concurrent copies of the same request may all pass the check above; only one can be recorded
+            if (replayKey != null && !replayGuard.add(replayKey, now)) {
+                LOG.warn("Rejected replayed request for account {}", account);
+                return TraceLog.exit(LOG, Optional.empty());
+            }
+            return TraceLog.exit(LOG, Optional.of(account));
         
         } catch (IOException e) {
             throw LOG.throwing(new RequestValidationError("could not read request", e));
@@ -0,0 +1,147 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Bounded, concurrent cache in which every entry carries its own expiry time.
+ *
+ * Reads are lock-free. The size bound is enforced approximately: when an insert takes the cache
+ * over capacity, expired entries are purged first and then arbitrary entries are evicted until
+ * the cache is back below capacity.
+ *
+ * @author SWPNET\jonessex
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class ExpiringCache<K,V> {
+
+    private static class Entry<V> {
+        public final V value;
+        public final long expires;
+
+        public Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile int capacity;
+
+    /** Create a cache.
+     *
+     * @param capacity Maximum number of entries held
+     */
+    public ExpiringCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Get an unexpired value from the cache.
+     *
+     * @param key Key to look up
+     * @param now Current time in milliseconds since the epoch
+     * @return The cached value, or null if there is no current entry for the key
+     */
+    public V get(K key, long now) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            if (entry.expires > now) {
+                hits.increment();
+                return entry.value;
+            }
+            entries.remove(key, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /** Add a value to the cache.
+     *
+     * Values which have already expired are not added.
+     *
+     * @param key Key for value
+     * @param value Value to cache
+     * @param expires Time in milliseconds since the epoch at which the entry expires
+     * @param now Current time in milliseconds since the epoch
+     */
+    public void put(K key, V value, long expires, long now) {
+        if (expires <= now || capacity <= 0) return;
+        entries.put(key, new Entry<>(value, expires));
+        if (entries.size() > capacity) evict(now);
+    }
+
+    /** Remove an entry from the cache.
+     *
+     * @param key Key of entry to remove
+     */
+    public void remove(K key) {
+        entries.remove(key);
+    }
+
+    /** Remove all entries from the cache. */
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Purge expired entries, then evict arbitrary entries until back below capacity.
+     *
+     * We evict down to 90% of capacity so that a full cache does not sweep on every insert.
+     */
+    private void evict(long now) {
+        int target = capacity - capacity / 10;
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expires <= now) {
+                it.remove();
+                evictions.increment();
+            }
+        }
+        it = entries.entrySet().iterator();
+        while (entries.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Change the capacity of the cache.
+     *
+     * If the cache is currently larger than the new capacity, entries are evicted immediately.
+     *
+     * @param capacity Maximum number of entries held
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        if (entries.size() > capacity) evict(System.currentTimeMillis());
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + "/" + capacity + " hits: " + getHits() + " misses: " + getMisses() + " evictions: " + getEvictions();
+    }
+}
@@ -0,0 +1,165 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Reads the fields of an application/x-www-form-urlencoded body one at a time, without buffering it.
+ *
+ * Each field value is available as a stream, URL-decoded as it is read, so that large values can be
+ * passed directly to a consumer such as a parser. The total size of the body is capped; reading past the
+ * cap throws TooLarge.
+ *
+ * <pre>
+ * {@code
+ * FormReader form = new FormReader(in, maxSize);
+ * String name;
+ * while ((name = form.nextField()) != null) {
+ *     if (name.equals("big")) consume(form.getValue()); else other = form.getValueAsString(1024);
+ * }
+ * }
+ * </pre>
+ *
+ * @author SWPNET\jonessex
+ */
+public class FormReader {
+
+    /** Thrown when a form body, field name or field value exceeds its size limit. */
+    public static class TooLarge extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLarge(String msg) {
+            super(msg);
+        }
+    }
+
+    private static final int MAX_NAME_LENGTH = 256;
+
+    private final InputStream in;
+    private final long maxSize;
+    private long size = 0;
+    private boolean endOfValue = true;
+    private boolean endOfForm = false;
+
+    /** Create a form reader.
+     *
+     * @param in Stream containing a URL encoded form
+     * @param maxSize Maximum number of bytes which may be read from the stream
+     */
+    public FormReader(InputStream in, long maxSize) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        this.maxSize = maxSize;
+    }
+
+    private int readRaw() throws IOException {
+        int c = in.read();
+        if (c >= 0 && ++size > maxSize) throw new TooLarge("Form exceeds " + maxSize + " bytes");
+        return c;
+    }
+
+    private static int hex(int c) throws IOException {
+        int digit = Character.digit(c, 16);
+        if (digit < 0) throw new IOException("Bad escape in form");
+        return digit;
+    }
+
+    /** Read one decoded byte of the current value or name, or -1 at its end. */
+    private int readDecoded(boolean name) throws IOException {
+        if (endOfValue) return -1;
+        int c = readRaw();
+        switch (c) {
+            case -1:
+                endOfForm = true;
+                endOfValue = true;
+                return -1;
+            case '&':
+                endOfValue = true;
+                return -1;
+            case '=':
+                if (!name) return c;
+                endOfValue = true;
+                return -2;
+            case '+':
+                return ' ';
+            case '%':
+                return (hex(readRaw()) << 4) | hex(readRaw());
+            default:
+                return c;
+        }
+    }
+
+    /** Move to the next field, skipping any unread part of the current value.
+     *
+     * @return The name of the next field, or null if there are no more fields
+     * @throws IOException if the form cannot be read or is too large
+     */
+    public String nextField() throws IOException {
+        skipValue();
+        while (!endOfForm) {
+            endOfValue = false;
+            ByteArrayOutputStream name = new ByteArrayOutputStream();
+            int c;
+            while ((c = readDecoded(true)) >= 0) {
+                if (name.size() >= MAX_NAME_LENGTH) throw new TooLarge("Form field name exceeds " + MAX_NAME_LENGTH + " bytes");
+                name.write(c);
+            }
+            if (c == -2) {
+                endOfValue = false;
+                return new String(name.toByteArray(), StandardCharsets.UTF_8);
+            }
+            if (name.size() > 0) return new String(name.toByteArray(), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    private void skipValue() throws IOException {
+        while (readDecoded(false) >= 0);
+    }
+
+    /** Get the value of the current field as a stream.
+     *
+     * Closing the stream skips the remainder of the value; the underlying stream is not closed.
+     *
+     * @return A stream of the decoded bytes of the current field value
+     */
+    public InputStream getValue() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return readDecoded(false);
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) return 0;
+                int count = 0;
+                int c;
+                while (count < length && (c = readDecoded(false)) >= 0) buffer[offset + count++] = (byte)c;
+                return count == 0 ? -1 : count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                skipValue();
+            }
+        };
+    }
+
+    /** Get the value of the current field as a string.
+     *
+     * @param maxLength Maximum length in bytes of the decoded value
+     * @return The decoded value
+     * @throws IOException if the form cannot be read or the value is too large
+     */
+    public String getValueAsString(int maxLength) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int c;
+        while ((c = readDecoded(false)) >= 0) {
+            if (value.size() >= maxLength) throw new TooLarge("Form field value exceeds " + maxLength + " bytes");
+            value.write(c);
+        }
+        return new String(value.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,420 @@
+package com.softwareplumbers.rest.server.util;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/** Specialised codec for the HS256 tokens issued by this server.
+ *
+ * Tokens issued by CookieRequestValidationService have a fixed shape: a header containing the HS256
+ * algorithm and, if the codec was created with a key id, a kid parameter; and a claims set containing a subject, an expiry date, and optionally 
+ * not-before, issued-at and authentication times and a user metadata snapshot. This codec mints and verifies tokens of exactly that shape without the
+ * reflection, Jackson serialization and intermediate copies of the generic jjwt builder and parser.
+ * Tokens it produces are byte-for-byte identical to those produced by jjwt.
+ *
+ * The verify method returns null for any token it does not understand (a different header,
+ * additional claims, unusual JSON formatting); the caller should then fall back to jjwt.
+ *
+ * @author SWPNET\jonessex
+ */
+public class HS256JwsCodec {
+
+    /** Name of the claim holding the time at which the user originally authenticated (as in OpenID Connect) */
+    public static final String AUTH_TIME = "auth_time";
+    /** Name of the claim holding the time at which the user metadata snapshot was retrieved */
+    public static final String USER_METADATA_TIME = "umd_time";
+    /** Name of the claim holding a snapshot of user metadata, as JSON text */
+    public static final String USER_METADATA = "umd";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_LENGTH = 32;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    /** Reverse lookup table for the base64url alphabet */
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        java.util.Arrays.fill(BASE64URL, (byte)-1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) BASE64URL[alphabet.charAt(i)] = (byte)i;
+    }
+
+    /** Per-thread working state, so that verification allocates as little as possible */
+    private static class Scratch {
+        public final Mac mac;
+        public final byte[] computed = new byte[SIGNATURE_LENGTH];
+        public final byte[] presented = new byte[SIGNATURE_LENGTH];
+        public byte[] buffer = new byte[512];
+
+        public Scratch(SecretKeySpec key) {
+            try {
+                mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public byte[] buffer(int length) {
+            if (buffer.length < length) buffer = new byte[Math.max(length, buffer.length * 2)];
+            return buffer;
+        }
+    }
+
+    private final ThreadLocal<Scratch> scratch;
+    private final String keyId;
+    /** Header segment, exactly as generated by jjwt */
+    private final String header;
+    private final String headerPrefix;
+
+    /** Determine whether tokens signed by jjwt with the given key can be handled by this codec.
+     *
+     * jjwt chooses the signature algorithm from the key length; we can only handle keys for which
+     * it would choose HS256.
+     *
+     * @param key Key used to sign tokens
+     * @return true if this codec can be used with the key
+     */
+    public static boolean isSupported(Key key) {
+        try {
+            return key != null && key.getEncoded() != null && SignatureAlgorithm.forSigningKey(key) == SignatureAlgorithm.HS256;
+        } catch (JwtException e) {
+            return false;
+        }
+    }
+
+    /** Create a codec for the given signing key.
+     *
+     * @param key Signing key; isSupported(key) must be true
+     */
+    public HS256JwsCodec(Key key) {
+        this(key, null);
+    }
+
+    /** Create a codec for the given signing key, which identifies the key in the header of each token.
+     *
+     * @param key Signing key; isSupported(key) must be true
+     * @param keyId Value of the kid header parameter, or null for no kid
+     */
+    public HS256JwsCodec(Key key, String keyId) {
+        if (!isSupported(key)) throw new IllegalArgumentException("Key not suitable for HS256");
+        SecretKeySpec macKey = new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM);
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(macKey));
+        this.keyId = keyId;
+        StringBuilder headerJson = new StringBuilder(32).append('{');
+        if (keyId != null) {
+            // jjwt puts header parameters ahead of the algorithm
+            headerJson.append("\"kid\":");
+            appendJsonString(headerJson, keyId);
+            headerJson.append(',');
+        }
+        headerJson.append("\"alg\":\"HS256\"}");
+        this.header = ENCODER.encodeToString(headerJson.toString().getBytes(StandardCharsets.UTF_8));
+        this.headerPrefix = header + ".";
+    }
+
+    /** @return the kid header parameter of tokens signed by this codec, or null */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /** @return the header segment (the text before the first '.') of tokens signed by this codec */
+    public String getHeader() {
+        return header;
+    }
+
+    private static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\b': builder.append("\\b"); break;
+                case '\f': builder.append("\\f"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    // Jackson escapes control characters and (in UTF-8 output) surrogates
+                    if (c < 0x20 || Character.isSurrogate(c))
+                        builder.append(String.format("\\u%04X", (int)c));
+                    else
+                        builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    /** Mirrors jjwt, which silently drops a blank subject */
+    private static boolean hasText(String value) {
+        if (value == null) return false;
+        for (int i = 0; i < value.length(); i++) 
+            if (!Character.isWhitespace(value.charAt(i))) return true;
+        return false;
+    }
+
+    /** Create a signed token.
+     *
+     * @param subject Subject (user id)
+     * @param expiration Expiration date (truncated to seconds)
+     * @param notBefore Not before date (truncated to seconds), or null
+     * @return A compact JWS
+     */
+    public String sign(String subject, Date expiration, Date notBefore) {
+        return sign(subject, expiration, notBefore, null, null);
+    }
+    
+    /** Create a signed token.
+     *
+     * @param subject Subject (user id)
+     * @param expiration Expiration date (truncated to seconds)
+     * @param notBefore Not before date (truncated to seconds), or null
+     * @param issuedAt Time of issue (truncated to seconds), or null
+     * @param authTime Time of original authentication (truncated to seconds), or null
+     * @return A compact JWS
+     */
+    public String sign(String subject, Date expiration, Date notBefore, Date issuedAt, Date authTime) {
+        return sign(subject, expiration, notBefore, issuedAt, authTime, null, null);
+    }
+    
+    /** Create a signed token.
+     *
+     * @param subject Subject (user id)
+     * @param expiration Expiration date (truncated to seconds)
+     * @param notBefore Not before date (truncated to seconds), or null
+     * @param issuedAt Time of issue (truncated to seconds), or null
+     * @param authTime Time of original authentication (truncated to seconds), or null
+     * @param userMetadata User metadata snapshot as JSON text, or null
+     * @param userMetadataTime Time at which user metadata was retrieved (truncated to seconds), or null
+     * @return A compact JWS
+     */
+    public String sign(String subject, Date expiration, Date notBefore, Date issuedAt, Date authTime, String userMetadata, Date userMetadataTime) {
+        StringBuilder claims = new StringBuilder(userMetadata == null ? 64 : 96 + userMetadata.length()).append('{');
+        if (hasText(subject)) {
+            claims.append("\"sub\":");
+            appendJsonString(claims, subject);
+            claims.append(',');
+        }
+        if (expiration != null) claims.append("\"exp\":").append(expiration.getTime() / 1000).append(',');
+        if (notBefore != null) claims.append("\"nbf\":").append(notBefore.getTime() / 1000).append(',');
+        if (issuedAt != null) claims.append("\"iat\":").append(issuedAt.getTime() / 1000).append(',');
+        if (authTime != null) claims.append("\"auth_time\":").append(authTime.getTime() / 1000).append(',');
+        if (userMetadataTime != null) claims.append("\"umd_time\":").append(userMetadataTime.getTime() / 1000).append(',');
+        if (userMetadata != null) {
+            claims.append("\"umd\":");
+            appendJsonString(claims, userMetadata);
+            claims.append(',');
+        }
+        claims.setCharAt(claims.length() - 1, '}');
+        if (claims.length() == 1) claims.append('}');
+
+        String signed = headerPrefix + ENCODER.encodeToString(claims.toString().getBytes(StandardCharsets.UTF_8));
+        Scratch working = scratch.get();
+        byte[] signature = working.mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+        return signed + "." + ENCODER.encodeToString(signature);
+    }
+
+    /** Decode base64url characters from a string into a byte array.
+     *
+     * @return the number of bytes decoded, or -1 if the input is not valid unpadded base64url
+     */
+    private static int decode(String value, int start, int end, byte[] out) {
+        int length = end - start;
+        if (length % 4 == 1) return -1;
+        int decoded = length * 3 / 4;
+        if (decoded > out.length) return -1;
+        int bits = 0, accumulator = 0, pos = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            int digit = c < 128 ? BASE64URL[c] : -1;
+            if (digit < 0) return -1;
+            accumulator = (accumulator << 6) | digit;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[pos++] = (byte)(accumulator >> bits);
+            }
+        }
+        return pos;
+    }
+
+    /** Minimal parser for the flat JSON claims object produced by sign */
+    private static class ClaimsParser {
+        private final String json;
+        private int pos = 0;
+        public String subject;
+        public long expiration = -1;
+        public long notBefore = -1;
+        public long issuedAt = -1;
+        public long authTime = -1;
+        public long userMetadataTime = -1;
+        public String userMetadata;
+
+        public ClaimsParser(String json) {
+            this.json = json;
+        }
+
+        private boolean expect(char c) {
+            if (pos < json.length() && json.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String parseString() {
+            if (!expect('"')) return null;
+            StringBuilder result = null;
+            int start = pos;
+            while (pos < json.length()) {
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return result == null ? json.substring(start, pos - 1) : result.toString();
+                } else if (c == '\\') {
+                    if (result == null) result = new StringBuilder().append(json, start, pos - 1);
+                    if (pos >= json.length()) return null;
+                    char escaped = json.charAt(pos++);
+                    switch (escaped) {
+                        case '"': case '\\': case '/': result.append(escaped); break;
+                        case 'b': result.append('\b'); break;
+                        case 'f': result.append('\f'); break;
+                        case 'n': result.append('\n'); break;
+                        case 'r': result.append('\r'); break;
+                        case 't': result.append('\t'); break;
+                        case 'u':
+                            if (pos + 4 > json.length()) return null;
+                            try {
+                                result.append((char)Integer.parseInt(json.substring(pos, pos + 4), 16));
+                            } catch (NumberFormatException e) {
+                                return null;
+                            }
+                            pos += 4;
+                            break;
+                        default: return null;
+                    }
+                } else if (c < 0x20) {
+                    return null;
+                } else if (result != null) {
+                    result.append(c);
+                }
+            }
+            return null;
+        }
+
+        private long parseNumber() {
+            long result = 0;
+            int start = pos;
+            while (pos < json.length() && pos - start < 18) {
+                char c = json.charAt(pos);
+                if (c < '0' || c > '9') break;
+                result = result * 10 + (c - '0');
+                pos++;
+            }
+            return pos > start ? result : -1;
+        }
+
+        /** Parse the claims.
+         *
+         * @return false if the claims contain anything other than sub, exp, nbf, iat, auth_time, umd_time and umd
+         */
+        public boolean parse() {
+            if (!expect('{')) return false;
+            if (expect('}')) return pos == json.length();
+            do {
+                String name = parseString();
+                if (name == null || !expect(':')) return false;
+                switch (name) {
+                    case "sub":
+                        if (subject != null || (subject = parseString()) == null) return false;
+                        break;
+                    case "exp":
+                        if (expiration >= 0 || (expiration = parseNumber()) < 0) return false;
+                        break;
+                    case "nbf":
+                        if (notBefore >= 0 || (notBefore = parseNumber()) < 0) return false;
+                        break;
+                    case "iat":
+                        if (issuedAt >= 0 || (issuedAt = parseNumber()) < 0) return false;
+                        break;
+                    case AUTH_TIME:
+                        if (authTime >= 0 || (authTime = parseNumber()) < 0) return false;
+                        break;
+                    case USER_METADATA_TIME:
+                        if (userMetadataTime >= 0 || (userMetadataTime = parseNumber()) < 0) return false;
+                        break;
+                    case USER_METADATA:
+                        if (userMetadata != null || (userMetadata = parseString()) == null) return false;
+                        break;
+                    default:
+                        return false;
+                }
+            } while (expect(','));
+            return expect('}') && pos == json.length();
+        }
+    }
+
+    /** Verify a token.
+     *
+     * Checks the signature, expiry date and not-before date of the token.
+     *
+     * @param jws compact JWS
+     * @param now current time in milliseconds since the epoch
+     * @return Claims from the token, or null if this codec cannot handle the token (including a token
+     * whose header has a different kid)
+     * @throws JwtException if the token is not valid
+     */
+    public Claims verify(String jws, long now) throws JwtException {
+        if (!jws.startsWith(headerPrefix)) return null;
+        int signatureStart = jws.indexOf('.', headerPrefix.length()) + 1;
+        if (signatureStart == 0 || jws.indexOf('.', signatureStart) >= 0) return null;
+        int signedLength = signatureStart - 1;
+
+        Scratch working = scratch.get();
+        if (decode(jws, signatureStart, jws.length(), working.presented) != SIGNATURE_LENGTH)
+            throw new JwtException("Malformed signature");
+        byte[] buffer = working.buffer(signedLength);
+        for (int i = 0; i < signedLength; i++) {
+            char c = jws.charAt(i);
+            if (c >= 128) throw new JwtException("Malformed token");
+            buffer[i] = (byte)c;
+        }
+        try {
+            working.mac.update(buffer, 0, signedLength);
+            working.mac.doFinal(working.computed, 0);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        }
+        if (!MessageDigest.isEqual(working.computed, working.presented))
+            throw new JwtException("JWT signature does not match");
+
+        int claimsLength = decode(jws, headerPrefix.length(), signedLength, buffer);
+        if (claimsLength < 0) throw new JwtException("Malformed claims");
+        ClaimsParser parser = new ClaimsParser(new String(buffer, 0, claimsLength, StandardCharsets.UTF_8));
+        if (!parser.parse()) return null;
+
+        if (parser.expiration >= 0 && now > parser.expiration * 1000) throw new JwtException("JWT expired");
+        if (parser.notBefore >= 0 && now < parser.notBefore * 1000) throw new JwtException("JWT not yet valid");
+
+        Claims claims = Jwts.claims();
+        if (parser.subject != null) claims.setSubject(parser.subject);
+        if (parser.expiration >= 0) claims.setExpiration(new Date(parser.expiration * 1000));
+        if (parser.notBefore >= 0) claims.setNotBefore(new Date(parser.notBefore * 1000));
+        if (parser.issuedAt >= 0) claims.setIssuedAt(new Date(parser.issuedAt * 1000));
+        if (parser.authTime >= 0) claims.put(AUTH_TIME, parser.authTime);
+        if (parser.userMetadataTime >= 0) claims.put(USER_METADATA_TIME, parser.userMetadataTime);
+        if (parser.userMetadata != null) claims.put(USER_METADATA, parser.userMetadata);
+        return claims;
+    }
+}
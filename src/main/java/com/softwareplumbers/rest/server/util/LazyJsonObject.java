@@ -0,0 +1,140 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.AbstractMap;
+import java.util.Set;
+import java.util.function.Supplier;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/** JsonObject which is retrieved only when it is first read.
+ *
+ * Wraps a supplier, which is called at most once; all JsonObject methods delegate to the
+ * result. Allows an expensive lookup to be placed in a request property without being performed
+ * unless some consumer of the property actually reads it. Since the supplier is called from
+ * whichever thread first reads the object, any exception it throws will be seen by that reader.
+ *
+ * @author SWPNET\jonessex
+ */
+public class LazyJsonObject extends AbstractMap<String, JsonValue> implements JsonObject {
+
+    private final Supplier<JsonObject> supplier;
+    private volatile JsonObject value;
+
+    /** Create a lazy JsonObject.
+     *
+     * @param supplier supplies the object on first use
+     */
+    public LazyJsonObject(Supplier<JsonObject> supplier) {
+        this.supplier = supplier;
+    }
+
+    /** Get the underlying object, calling the supplier if this has not already been done.
+     *
+     * @return the underlying object
+     */
+    public JsonObject get() {
+        JsonObject result = value;
+        if (result == null) {
+            synchronized(this) {
+                result = value;
+                if (result == null) {
+                    result = supplier.get();
+                    if (result == null) result = JsonValue.EMPTY_JSON_OBJECT;
+                    value = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Check whether the underlying object has been retrieved.
+     *
+     * @return true if the supplier has been called
+     */
+    public boolean isResolved() {
+        return value != null;
+    }
+
+    @Override
+    public Set<Entry<String, JsonValue>> entrySet() {
+        return get().entrySet();
+    }
+
+    @Override
+    public JsonValue get(Object key) {
+        return get().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get().containsKey(key);
+    }
+
+    @Override
+    public JsonArray getJsonArray(String name) {
+        return get().getJsonArray(name);
+    }
+
+    @Override
+    public JsonObject getJsonObject(String name) {
+        return get().getJsonObject(name);
+    }
+
+    @Override
+    public JsonNumber getJsonNumber(String name) {
+        return get().getJsonNumber(name);
+    }
+
+    @Override
+    public JsonString getJsonString(String name) {
+        return get().getJsonString(name);
+    }
+
+    @Override
+    public String getString(String name) {
+        return get().getString(name);
+    }
+
+    @Override
+    public String getString(String name, String defaultValue) {
+        return get().getString(name, defaultValue);
+    }
+
+    @Override
+    public int getInt(String name) {
+        return get().getInt(name);
+    }
+
+    @Override
+    public int getInt(String name, int defaultValue) {
+        return get().getInt(name, defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(String name) {
+        return get().getBoolean(name);
+    }
+
+    @Override
+    public boolean getBoolean(String name, boolean defaultValue) {
+        return get().getBoolean(name, defaultValue);
+    }
+
+    @Override
+    public boolean isNull(String name) {
+        return get().isNull(name);
+    }
+
+    @Override
+    public ValueType getValueType() {
+        return ValueType.OBJECT;
+    }
+
+    @Override
+    public String toString() {
+        return get().toString();
+    }
+}
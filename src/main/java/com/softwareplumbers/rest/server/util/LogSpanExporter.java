@@ -0,0 +1,44 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Writes completed spans as single line JSON objects to a logger.
+ *
+ * Spans are logged at INFO to the com.softwareplumbers.rest.server.spans logger (or another logger
+ * set with setLoggerName), which can be routed to its own file by the logging configuration.
+ *
+ * @author SWPNET\jonessex
+ */
+public class LogSpanExporter implements SpanExporter {
+
+    public static final String DEFAULT_LOGGER = "com.softwareplumbers.rest.server.spans";
+
+    private Logger log = LoggerFactory.getLogger(DEFAULT_LOGGER);
+
+    /** Set the name of the logger to which spans are written.
+     *
+     * @param loggerName logger name
+     */
+    public void setLoggerName(String loggerName) {
+        log = LoggerFactory.getLogger(loggerName);
+    }
+
+    @Override
+    public void export(Span span) {
+        if (!log.isInfoEnabled()) return;
+        JsonObjectBuilder json = Json.createObjectBuilder()
+            .add("traceId", span.getContext().getTraceId())
+            .add("spanId", span.getContext().getSpanId());
+        if (span.getParentSpanId() != null) json.add("parentSpanId", span.getParentSpanId());
+        json.add("name", span.getName())
+            .add("startMicros", span.getStartMicros())
+            .add("durationMicros", span.getDurationNanos() / 1000);
+        JsonObjectBuilder attributes = Json.createObjectBuilder();
+        for (Map.Entry<String, String> attribute : span.getAttributes().entrySet()) attributes.add(attribute.getKey(), attribute.getValue());
+        log.info(json.add("attributes", attributes).build().toString());
+    }
+}
@@ -0,0 +1,331 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Process-wide registry of latency timers and counters, written in Prometheus text format.
+ *
+ * Timers and counters are registered once, typically in a static field of the class which records
+ * them, with the enum of outcomes they may be tagged with. Each value is also tagged with a repository.
+ * Recording looks up the repository's series in a ConcurrentHashMap and increments LongAdders, so once
+ * a repository has been seen recording takes no locks and allocates nothing. Timers are histograms
+ * with fixed bucket boundaries from 100us to 10s.
+ *
+ * Repository names usually come from request paths, so callers should tag values with a repository name
+ * only once it has resolved to a configured repository, and with UNKNOWN_REPOSITORY otherwise. As a further
+ * guard the number of repositories a metric will track is limited to MAX_REPOSITORIES; values for any
+ * further repositories are recorded against "other".
+ *
+ * @author SWPNET\jonessex
+ */
+public class Metrics {
+
+    public static final int MAX_REPOSITORIES = 100;
+    public static final String NO_REPOSITORY = "none";
+    public static final String OTHER_REPOSITORY = "other";
+    /** Tag for repository names which do not resolve to a configured repository */
+    public static final String UNKNOWN_REPOSITORY = "unknown";
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Upper bounds of timer buckets, in nanoseconds */
+    private static final long[] BUCKETS = {
+        100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L,
+        10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L,
+        1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    /** Outcome of an operation, for metrics which need nothing more specific. */
+    public static enum Outcome { SUCCESS, FAILURE, ERROR }
+
+    private static final List<Metric<?,?>> REGISTRY = new CopyOnWriteArrayList<>();
+
+    /** A timer or counter, with one series per repository and outcome.
+     *
+     * @param <E> Type of outcome
+     * @param <S> Type of series
+     */
+    public static abstract class Metric<E extends Enum<E>, S> {
+        private final String name;
+        private final String help;
+        private final String labels;
+        private final E[] outcomes;
+        private final Map<String, S[]> series = new ConcurrentHashMap<>();
+
+        private Metric(String name, String help, Class<E> outcomes, String labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+            this.outcomes = outcomes.getEnumConstants();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        protected abstract S[] newSeries(int size);
+        protected abstract String getType();
+        protected abstract void write(Writer out, String labels, S series) throws IOException;
+
+        protected S[] getSeries(String repository) {
+            if (repository == null) repository = NO_REPOSITORY;
+            S[] result = series.get(repository);
+            if (result == null) {
+                if (series.size() >= MAX_REPOSITORIES) repository = OTHER_REPOSITORY;
+                result = series.computeIfAbsent(repository, key -> newSeries(outcomes.length));
+            }
+            return result;
+        }
+
+        private void write(Writer out) throws IOException {
+            for (Map.Entry<String, S[]> entry : series.entrySet()) {
+                for (E outcome : outcomes) {
+                    String seriesLabels = labels + "repository=\"" + escape(entry.getKey()) + "\",outcome=\"" + outcome.name().toLowerCase(Locale.ROOT) + "\"";
+                    write(out, seriesLabels, entry.getValue()[outcome.ordinal()]);
+                }
+            }
+        }
+
+        private void clear() {
+            series.clear();
+        }
+    }
+
+    /** Latency histogram for one repository and outcome. */
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && nanos > BUCKETS[bucket]) bucket++;
+            buckets[bucket].increment();
+            sum.add(nanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) count += bucket.sum();
+            return count;
+        }
+
+        public long getSumNanos() {
+            return sum.sum();
+        }
+    }
+
+    /** Records elapsed times as histograms.
+     *
+     * @param <E> Type of outcome
+     */
+    public static class Timer<E extends Enum<E>> extends Metric<E, Histogram> {
+
+        private Timer(String name, String help, Class<E> outcomes, String labels) {
+            super(name, help, outcomes, labels);
+        }
+
+        /** Record an elapsed time.
+         *
+         * @param repository repository the operation was for, or null
+         * @param outcome outcome of the operation
+         * @param nanos elapsed time in nanoseconds
+         */
+        public void record(String repository, E outcome, long nanos) {
+            getSeries(repository)[outcome.ordinal()].record(nanos);
+        }
+
+        /** Record the time elapsed since start.
+         *
+         * @param repository repository the operation was for, or null
+         * @param outcome outcome of the operation
+         * @param start start time from System.nanoTime()
+         */
+        public void recordSince(String repository, E outcome, long start) {
+            record(repository, outcome, System.nanoTime() - start);
+        }
+
+        /** Get the histogram for a repository and outcome.
+         *
+         * @param repository repository name, or null
+         * @param outcome outcome
+         * @return the histogram
+         */
+        public Histogram getHistogram(String repository, E outcome) {
+            return getSeries(repository)[outcome.ordinal()];
+        }
+
+        @Override
+        protected Histogram[] newSeries(int size) {
+            Histogram[] result = new Histogram[size];
+            for (int i = 0; i < size; i++) result[i] = new Histogram();
+            return result;
+        }
+
+        @Override
+        protected String getType() {
+            return "histogram";
+        }
+
+        @Override
+        protected void write(Writer out, String labels, Histogram histogram) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < histogram.buckets.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                String le = i < BUCKETS.length ? Double.toString(BUCKETS[i] / 1e9) : "+Inf";
+                out.append(getName()).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(Long.toString(cumulative)).append('\n');
+            }
+            out.append(getName()).append("_sum{").append(labels).append("} ").append(Double.toString(histogram.sum.sum() / 1e9)).append('\n');
+            out.append(getName()).append("_count{").append(labels).append("} ").append(Long.toString(cumulative)).append('\n');
+        }
+    }
+
+    /** Counts events.
+     *
+     * @param <E> Type of outcome
+     */
+    public static class Counter<E extends Enum<E>> extends Metric<E, LongAdder> {
+
+        private Counter(String name, String help, Class<E> outcomes, String labels) {
+            super(name, help, outcomes, labels);
+        }
+
+        /** Count an event.
+         *
+         * @param repository repository the event was for, or null
+         * @param outcome outcome of the event
+         */
+        public void increment(String repository, E outcome) {
+            getSeries(repository)[outcome.ordinal()].increment();
+        }
+
+        /** Get the count for a repository and outcome.
+         *
+         * @param repository repository name, or null
+         * @param outcome outcome
+         * @return the count
+         */
+        public long getCount(String repository, E outcome) {
+            return getSeries(repository)[outcome.ordinal()].sum();
+        }
+
+        @Override
+        protected LongAdder[] newSeries(int size) {
+            LongAdder[] result = new LongAdder[size];
+            for (int i = 0; i < size; i++) result[i] = new LongAdder();
+            return result;
+        }
+
+        @Override
+        protected String getType() {
+            return "counter";
+        }
+
+        @Override
+        protected void write(Writer out, String labels, LongAdder count) throws IOException {
+            out.append(getName()).append('{').append(labels).append("} ").append(Long.toString(count.sum())).append('\n');
+        }
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name, value pairs");
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            result.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append("\",");
+        }
+        return result.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static synchronized <M extends Metric<?,?>> M register(M metric, Class<?> type) {
+        Metric<?,?> candidate = metric;
+        for (Metric<?,?> existing : REGISTRY) {
+            if (existing.name.equals(candidate.name) && existing.labels.equals(candidate.labels)) {
+                if (existing.getClass() != candidate.getClass() || existing.outcomes.getClass().getComponentType() != type)
+                    throw new IllegalArgumentException("Metric " + candidate.name + " already registered with a different type");
+                return (M)existing;
+            }
+        }
+        REGISTRY.add(metric);
+        return metric;
+    }
+
+    /** Register a timer, or get the timer already registered with the same name and labels.
+     *
+     * @param <E> Type of outcome
+     * @param name Metric name; should end in _seconds
+     * @param help Description of the metric
+     * @param outcomes Enum of possible outcomes
+     * @param labels Additional constant labels, as name, value pairs
+     * @return A timer
+     */
+    public static <E extends Enum<E>> Timer<E> timer(String name, String help, Class<E> outcomes, String... labels) {
+        return register(new Timer<>(name, help, outcomes, labels(labels)), outcomes);
+    }
+
+    /** Register a counter, or get the counter already registered with the same name and labels.
+     *
+     * @param <E> Type of outcome
+     * @param name Metric name; should end in _total
+     * @param help Description of the metric
+     * @param outcomes Enum of possible outcomes
+     * @param labels Additional constant labels, as name, value pairs
+     * @return A counter
+     */
+    public static <E extends Enum<E>> Counter<E> counter(String name, String help, Class<E> outcomes, String... labels) {
+        return register(new Counter<>(name, help, outcomes, labels(labels)), outcomes);
+    }
+
+    /** Write all metrics in Prometheus text format.
+     *
+     * @param out Writer to which metrics are written
+     * @throws IOException if metrics cannot be written
+     */
+    public static void write(Writer out) throws IOException {
+        Map<String, List<Metric<?,?>>> byName = new LinkedHashMap<>();
+        for (Metric<?,?> metric : REGISTRY) byName.computeIfAbsent(metric.name, name -> new ArrayList<>()).add(metric);
+        for (List<Metric<?,?>> metrics : byName.values()) {
+            Metric<?,?> first = metrics.get(0);
+            out.append("# HELP ").append(first.name).append(' ').append(first.help).append('\n');
+            out.append("# TYPE ").append(first.name).append(' ').append(first.getType()).append('\n');
+            for (Metric<?,?> metric : metrics) metric.write(out);
+        }
+    }
+
+    /** Get all metrics in Prometheus text format.
+     *
+     * @return metrics as text
+     */
+    public static String scrape() {
+        StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /** Discard all recorded values, keeping registered metrics. */
+    public static void clear() {
+        for (Metric<?,?> metric : REGISTRY) metric.clear();
+    }
+}
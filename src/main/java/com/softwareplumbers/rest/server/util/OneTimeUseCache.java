@@ -0,0 +1,115 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Remembers identifiers which may only be used once, each until its own expiry time.
+ *
+ * Unlike ExpiringCache, live entries are never evicted to make room for new ones, since that would
+ * allow an evicted identifier to be used again. Instead, when the cache is full of unexpired entries,
+ * new identifiers are refused. Expired entries are purged when the cache reaches capacity, at most
+ * once per expiry time.
+ *
+ * @author SWPNET\jonessex
+ */
+public class OneTimeUseCache {
+
+    private final ConcurrentHashMap<String, Long> entries = new ConcurrentHashMap<>();
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private volatile int capacity;
+    private volatile long nextPurge = 0;
+
+    /** Create a cache.
+     *
+     * @param capacity Maximum number of identifiers held
+     */
+    public OneTimeUseCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Check whether an identifier has already been used.
+     *
+     * @param id Identifier to check
+     * @param now Current time in milliseconds since the epoch
+     * @return true if the identifier has been used and has not yet expired
+     */
+    public boolean contains(String id, long now) {
+        Long expires = entries.get(id);
+        if (expires != null && expires > now) {
+            replays.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /** Use an identifier.
+     *
+     * @param id Identifier to use
+     * @param expires Time in milliseconds since the epoch until which the identifier is remembered
+     * @param now Current time in milliseconds since the epoch
+     * @return false if the identifier has already been used, or the cache is full
+     */
+    public boolean add(String id, long expires, long now) {
+        if (entries.size() >= capacity) {
+            purge(now);
+            if (entries.size() >= capacity) {
+                overflows.increment();
+                return false;
+            }
+        }
+        Long existing = entries.putIfAbsent(id, expires);
+        while (existing != null) {
+            if (existing > now) {
+                replays.increment();
+                return false;
+            }
+            if (entries.replace(id, existing, expires)) break;
+            existing = entries.putIfAbsent(id, expires);
+        }
+        if (expires < nextPurge) nextPurge = expires;
+        return true;
+    }
+
+    private synchronized void purge(long now) {
+        if (now < nextPurge) return;
+        long earliest = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            long expires = entry.getValue();
+            if (expires <= now) entries.remove(entry.getKey(), entry.getValue());
+            else earliest = Math.min(earliest, expires);
+        }
+        nextPurge = earliest;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getReplays() {
+        return replays.sum();
+    }
+
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    public void clear() {
+        entries.clear();
+        nextPurge = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + " replays: " + getReplays() + " overflows: " + getOverflows();
+    }
+}
@@ -0,0 +1,375 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Bounded, concurrent cache for values loaded from a slow or unreliable back end.
+ *
+ * Values are fresh for timeToLive milliseconds after they are loaded. A fresh value which is older
+ * than refreshAfter is returned immediately, and reloaded in the background. Once a value is no longer
+ * fresh, it may still be served for a further staleTimeToLive milliseconds while a background reload
+ * is attempted; this keeps requests flowing when the back end is slow or failing. Beyond that, the
+ * caller must wait for the value to be reloaded.
+ *
+ * Concurrent requests to load the same key are coalesced into a single call to the loader. After
+ * a failed load, the key is not reloaded for RETRY_INTERVAL_MILLIS: a value which may still be served
+ * is returned without a background reload, and a request which would have to wait for a load fails
+ * immediately with the exception thrown by the failed load. This keeps a failing back end from being
+ * called on every request.
+ *
+ * Values may also be loaded by an AsyncLoader through getAsync, which never blocks: it returns a completed
+ * future for a value which may be served, and otherwise the future of the (single) load in progress. The
+ * same refresh, coalescing and retry policy applies.
+ *
+ * @author SWPNET\jonessex
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class RefreshingCache<K,V> {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(RefreshingCache.class);
+    
+    /** Minimum interval between background reload attempts after a failure */
+    public static final long RETRY_INTERVAL_MILLIS = 1000L;
+
+    /** Loads a value for a key. */
+    @FunctionalInterface
+    public interface Loader<K,V> {
+        V load(K key) throws Exception;
+    }
+
+    /** Starts loading a value for a key, without blocking. */
+    @FunctionalInterface
+    public interface AsyncLoader<K,V> {
+        CompletionStage<V> load(K key) throws Exception;
+    }
+
+    private static class Loaded<V> {
+        public final V value;
+        public final long time;
+        
+        public Loaded(V value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private static class Entry<V> {
+        public volatile Loaded<V> loaded;
+        public volatile long failed;
+        public volatile Throwable failure;
+        public final AtomicReference<CompletableFuture<V>> loading = new AtomicReference<>();
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder failFast = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile int capacity;
+    private volatile long timeToLive;
+    private volatile long refreshAfter;
+    private volatile long staleTimeToLive;
+    private Executor executor;
+
+    private static ExecutorService defaultExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1000), runnable -> {
+            Thread thread = new Thread(runnable, "cache-refresh-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Create a new cache.
+     *
+     * @param capacity Maximum number of entries
+     * @param timeToLive Time in milliseconds for which a loaded value is fresh
+     * @param refreshAfter Time in milliseconds after which a fresh value is reloaded in the background
+     * @param staleTimeToLive Time in milliseconds after expiry for which a value may still be served
+     */
+    public RefreshingCache(int capacity, long timeToLive, long refreshAfter, long staleTimeToLive) {
+        this.capacity = capacity;
+        this.timeToLive = timeToLive;
+        this.refreshAfter = refreshAfter;
+        this.staleTimeToLive = staleTimeToLive;
+        this.executor = defaultExecutor();
+    }
+
+    /** Set the executor used for background refresh.
+     *
+     * @param executor Executor for background refresh tasks
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /** Get a value from the cache, loading it if necessary.
+     *
+     * @param key Key of value to get
+     * @param loader Loader used to (re)load the value
+     * @return The value for the key
+     * @throws CompletionException wrapping any checked exception thrown by the loader
+     */
+    public V get(K key, Loader<K,V> loader) {
+        AsyncLoader<K,V> asyncLoader = k -> CompletableFuture.completedFuture(loader.load(k));
+        long now = System.currentTimeMillis();
+        Entry<V> entry = getEntry(key, now);
+        Loaded<V> loaded = getServable(key, entry, asyncLoader, now);
+        if (loaded != null) return loaded.value;
+        misses.increment();
+        Throwable failure = getRecentFailure(entry, now);
+        if (failure != null) throw rethrow(failure);
+        try {
+            return load(key, entry, asyncLoader, false).join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /** Get a value from the cache without blocking, starting a load if necessary.
+     *
+     * @param key Key of value to get
+     * @param loader Loader used to (re)load the value
+     * @return A future which completes with the value for the key
+     */
+    public CompletableFuture<V> getAsync(K key, AsyncLoader<K,V> loader) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = getEntry(key, now);
+        Loaded<V> loaded = getServable(key, entry, loader, now);
+        if (loaded != null) return CompletableFuture.completedFuture(loaded.value);
+        misses.increment();
+        Throwable failure = getRecentFailure(entry, now);
+        if (failure != null) {
+            CompletableFuture<V> failed = new CompletableFuture<>();
+            failed.completeExceptionally(failure);
+            return failed;
+        }
+        return load(key, entry, loader, false);
+    }
+
+    private Entry<V> getEntry(K key, long now) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            entry = entries.computeIfAbsent(key, k -> new Entry<>());
+            if (entries.size() > capacity) evict(now);
+        }
+        return entry;
+    }
+
+    /** Get the loaded value if it may be served, starting a background refresh if it is due. */
+    private Loaded<V> getServable(K key, Entry<V> entry, AsyncLoader<K,V> loader, long now) {
+        Loaded<V> loaded = entry.loaded;
+        if (loaded != null) {
+            long age = now - loaded.time;
+            if (age < timeToLive) {
+                hits.increment();
+                if (age >= refreshAfter) refresh(key, entry, loader, now);
+                return loaded;
+            }
+            if (age < timeToLive + staleTimeToLive) {
+                staleHits.increment();
+                refresh(key, entry, loader, now);
+                return loaded;
+            }
+        }
+        return null;
+    }
+
+    /** Get the failure of the last load if it was within RETRY_INTERVAL_MILLIS and no load is in progress. */
+    private Throwable getRecentFailure(Entry<V> entry, long now) {
+        Throwable failure = entry.failure;
+        if (failure != null && now - entry.failed < RETRY_INTERVAL_MILLIS && entry.loading.get() == null) {
+            failFast.increment();
+            return failure;
+        }
+        return null;
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) return (RuntimeException)cause;
+        if (cause instanceof Error) throw (Error)cause;
+        return new CompletionException(cause);
+    }
+
+    private void refresh(K key, Entry<V> entry, AsyncLoader<K,V> loader, long now) {
+        if (now - entry.failed >= RETRY_INTERVAL_MILLIS) load(key, entry, loader, true);
+    }
+
+    /** Start loading a value, unless a load for the key is already in progress.
+     *
+     * @return a future which completes when the value is loaded
+     */
+    private CompletableFuture<V> load(K key, Entry<V> entry, AsyncLoader<K,V> loader, boolean background) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        while (!entry.loading.compareAndSet(null, future)) {
+            CompletableFuture<V> inProgress = entry.loading.get();
+            if (inProgress != null) return inProgress;
+        }
+        Runnable task = () -> {
+            loads.increment();
+            CompletionStage<V> stage;
+            try {
+                stage = loader.load(key);
+            } catch (Throwable e) {
+                loadFailed(entry, future, e);
+                return;
+            }
+            stage.whenComplete((value, error) -> {
+                if (error == null) {
+                    entry.loaded = new Loaded<>(value, System.currentTimeMillis());
+                    entry.failure = null;
+                    entry.loading.set(null);
+                    future.complete(value);
+                } else {
+                    loadFailed(entry, future, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                }
+            });
+        };
+        if (background) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Background refresh rejected for {}", key);
+                entry.loading.set(null);
+                future.completeExceptionally(e);
+            }
+        } else {
+            task.run();
+        }
+        return future;
+    }
+
+    private void loadFailed(Entry<V> entry, CompletableFuture<V> future, Throwable error) {
+        failures.increment();
+        entry.failed = System.currentTimeMillis();
+        entry.failure = error;
+        entry.loading.set(null);
+        future.completeExceptionally(error);
+    }
+
+    /** Purge entries which can no longer be served, then evict arbitrary entries until below capacity. */
+    private void evict(long now) {
+        int target = capacity - capacity / 10;
+        long maxAge = timeToLive + staleTimeToLive;
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry<V> entry = it.next();
+            Loaded<V> loaded = entry.loaded;
+            if (entry.loading.get() == null && (loaded == null || now - loaded.time >= maxAge)) {
+                it.remove();
+                evictions.increment();
+            }
+        }
+        it = entries.values().iterator();
+        while (entries.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    /** Remove an entry from the cache.
+     *
+     * @param key Key of entry to remove
+     */
+    public void remove(K key) {
+        entries.remove(key);
+    }
+
+    /** Remove all entries from the cache. */
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        if (entries.size() > capacity) evict(System.currentTimeMillis());
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public long getRefreshAfter() {
+        return refreshAfter;
+    }
+
+    public void setRefreshAfter(long refreshAfter) {
+        this.refreshAfter = refreshAfter;
+    }
+
+    public long getStaleTimeToLive() {
+        return staleTimeToLive;
+    }
+
+    public void setStaleTimeToLive(long staleTimeToLive) {
+        this.staleTimeToLive = staleTimeToLive;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /** @return number of requests which failed immediately because a recent load had failed */
+    public long getFailFast() {
+        return failFast.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + "/" + capacity + " hits: " + getHits() + " stale hits: " + getStaleHits() + " misses: " + getMisses()
+            + " loads: " + getLoads() + " failures: " + getFailures() + " fail fast: " + getFailFast() + " evictions: " + getEvictions();
+    }
+}
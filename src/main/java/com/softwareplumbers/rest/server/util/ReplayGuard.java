@@ -0,0 +1,130 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Remembers recently seen messages so that replays can be rejected.
+ *
+ * Keys are held in a ring of time buckets, each covering windowMillis / (bucketCount - 1) milliseconds.
+ * When time moves on, the oldest bucket is replaced wholesale with an empty one, so that memory is
+ * bounded by the rate at which keys are added multiplied by the window; there is no per-entry
+ * expiry or sweeping. All operations are lock-free and take time proportional to bucketCount.
+ *
+ * @author SWPNET\jonessex
+ */
+public class ReplayGuard {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private static class Bucket {
+        public final long epoch;
+        public final Set<ByteBuffer> keys = ConcurrentHashMap.newKeySet();
+
+        public Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    private final long bucketMillis;
+    private final AtomicReferenceArray<Bucket> buckets;
+    private final LongAdder replays = new LongAdder();
+
+    /** Create a replay guard.
+     *
+     * @param windowMillis Minimum time for which a key is remembered
+     * @param bucketCount Number of time buckets; at least 2
+     */
+    public ReplayGuard(long windowMillis, int bucketCount) {
+        if (bucketCount < 2) throw new IllegalArgumentException("At least two buckets are required");
+        this.bucketMillis = Math.max(1, windowMillis / (bucketCount - 1));
+        this.buckets = new AtomicReferenceArray<>(bucketCount);
+    }
+
+    /** Create a key from a message.
+     *
+     * @param message message bytes
+     * @return a SHA-256 digest of the message, suitable for use as a key
+     */
+    public static ByteBuffer key(byte[] message) {
+        return ByteBuffer.wrap(DIGEST.get().digest(message));
+    }
+
+    private boolean isLive(Bucket bucket, long epoch) {
+        return bucket != null && bucket.epoch > epoch - buckets.length();
+    }
+
+    /** Check whether a key has been seen within the window.
+     *
+     * @param key Key to check
+     * @param now Current time in milliseconds since the epoch
+     * @return true if the key has been seen
+     */
+    public boolean contains(ByteBuffer key, long now) {
+        long epoch = now / bucketMillis;
+        for (int i = 0; i < buckets.length(); i++) {
+            Bucket bucket = buckets.get(i);
+            if (isLive(bucket, epoch) && bucket.keys.contains(key)) {
+                replays.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Record a key.
+     *
+     * @param key Key to record
+     * @param now Current time in milliseconds since the epoch
+     * @return false if the key had already been seen within the window
+     */
+    public boolean add(ByteBuffer key, long now) {
+        if (contains(key, now)) return false;
+        long epoch = now / bucketMillis;
+        int slot = (int)(epoch % buckets.length());
+        Bucket bucket = buckets.get(slot);
+        while (bucket == null || bucket.epoch < epoch) {
+            Bucket fresh = new Bucket(epoch);
+            if (buckets.compareAndSet(slot, bucket, fresh)) {
+                bucket = fresh;
+            } else {
+                bucket = buckets.get(slot);
+            }
+        }
+        if (bucket.keys.add(key)) return true;
+        replays.increment();
+        return false;
+    }
+
+    /** Get the number of keys currently remembered.
+     *
+     * @return number of keys held in all buckets
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null) size += bucket.keys.size();
+        }
+        return size;
+    }
+
+    public long getReplays() {
+        return replays.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + " replays: " + getReplays();
+    }
+}
@@ -0,0 +1,96 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.ws.rs.container.ContainerRequestContext;
+
+/** A timed operation within a trace.
+ *
+ * Spans are only created for sampled requests. Code on the request path obtains the request's span
+ * with Span.of and starts children from it; for a request which is not sampled this returns NOOP,
+ * whose methods do nothing and allocate nothing, so that instrumentation costs nothing unless the
+ * request is sampled.
+ *
+ * @author SWPNET\jonessex
+ */
+public class Span {
+
+    /** Request property holding the span for a request */
+    public static final String REQUEST_PROPERTY = "traceSpan";
+
+    /** Span which records nothing */
+    public static final Span NOOP = new Span(null, null, null, null);
+
+    private final SpanExporter exporter;
+    private final TraceContext context;
+    private final String parentSpanId;
+    private final String name;
+    private final long startMicros;
+    private final long startNanos;
+    private long durationNanos = -1;
+    private Map<String, String> attributes;
+
+    Span(SpanExporter exporter, TraceContext context, String parentSpanId, String name) {
+        this.exporter = exporter;
+        this.context = context;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.startMicros = context == null ? 0 : System.currentTimeMillis() * 1000;
+        this.startNanos = context == null ? 0 : System.nanoTime();
+    }
+
+    /** Get the span for a request.
+     *
+     * @param requestContext request, or null
+     * @return the request's span, or NOOP if the request is not sampled
+     */
+    public static Span of(ContainerRequestContext requestContext) {
+        Object span = requestContext == null ? null : requestContext.getProperty(REQUEST_PROPERTY);
+        return span instanceof Span ? (Span)span : NOOP;
+    }
+
+    /** @return true unless this span is NOOP */
+    public boolean isRecording() {
+        return context != null;
+    }
+
+    /** Start a child span.
+     *
+     * @param name name of the child span
+     * @return a new span, or NOOP if this span is not recording
+     */
+    public Span child(String name) {
+        if (context == null) return NOOP;
+        return new Span(exporter, context.newChild(), context.getSpanId(), name);
+    }
+
+    /** Add an attribute to the span.
+     *
+     * @param key attribute name
+     * @param value attribute value; ignored if null
+     * @return this span
+     */
+    public Span setAttribute(String key, String value) {
+        if (context == null || value == null) return this;
+        if (attributes == null) attributes = new LinkedHashMap<>();
+        attributes.put(key, value);
+        return this;
+    }
+
+    /** End the span and pass it to the exporter. Has no effect if the span has already ended. */
+    public void end() {
+        if (context == null || durationNanos >= 0) return;
+        durationNanos = System.nanoTime() - startNanos;
+        exporter.export(this);
+    }
+
+    public TraceContext getContext() { return context; }
+    public String getParentSpanId() { return parentSpanId; }
+    public String getName() { return name; }
+    /** @return start time in microseconds since the epoch */
+    public long getStartMicros() { return startMicros; }
+    /** @return duration in nanoseconds, or -1 if the span has not ended */
+    public long getDurationNanos() { return durationNanos; }
+    public Map<String, String> getAttributes() { return attributes == null ? Collections.emptyMap() : attributes; }
+}
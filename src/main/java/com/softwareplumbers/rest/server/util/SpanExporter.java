@@ -0,0 +1,12 @@
+package com.softwareplumbers.rest.server.util;
+
+/** Receives completed spans.
+ *
+ * Exporters are called on the thread which ends the span, so should not block.
+ *
+ * @author SWPNET\jonessex
+ */
+@FunctionalInterface
+public interface SpanExporter {
+    void export(Span span);
+}
@@ -0,0 +1,110 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/** W3C trace context, as carried in traceparent and tracestate headers.
+ *
+ * Only version 00 of the traceparent header is generated; headers with a higher version are
+ * accepted if their first four fields are valid, as the specification requires.
+ *
+ * @author SWPNET\jonessex
+ */
+public class TraceContext {
+
+    public static final String TRACEPARENT = "traceparent";
+    public static final String TRACESTATE = "tracestate";
+
+    private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+    private static final String INVALID_SPAN_ID = "0000000000000000";
+    private static final int MAX_TRACESTATE_LENGTH = 512;
+
+    private final String traceId;
+    private final String spanId;
+    private final boolean sampled;
+    private final String traceState;
+
+    public TraceContext(String traceId, String spanId, boolean sampled, String traceState) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.sampled = sampled;
+        this.traceState = traceState;
+    }
+
+    /** @return 32 character lower case hex trace id */
+    public String getTraceId() { return traceId; }
+    /** @return 16 character lower case hex span id */
+    public String getSpanId() { return spanId; }
+    /** @return true if the trace is sampled */
+    public boolean isSampled() { return sampled; }
+    /** @return tracestate header value, or null */
+    public String getTraceState() { return traceState; }
+
+    private static boolean isHex(String value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) return false;
+        }
+        return true;
+    }
+
+    /** Parse trace context headers.
+     *
+     * @param traceparent value of the traceparent header, or null
+     * @param tracestate value of the tracestate header, or null
+     * @return the trace context, or null if traceparent is missing or invalid
+     */
+    public static TraceContext parse(String traceparent, String tracestate) {
+        if (traceparent == null || traceparent.length() < 55) return null;
+        if (!isHex(traceparent, 0, 2) || traceparent.startsWith("ff")) return null;
+        if (traceparent.length() > 55 && (traceparent.startsWith("00") || traceparent.charAt(55) != '-')) return null;
+        if (traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') return null;
+        if (!isHex(traceparent, 3, 35) || !isHex(traceparent, 36, 52) || !isHex(traceparent, 53, 55)) return null;
+        String traceId = traceparent.substring(3, 35);
+        String spanId = traceparent.substring(36, 52);
+        if (traceId.equals(INVALID_TRACE_ID) || spanId.equals(INVALID_SPAN_ID)) return null;
+        boolean sampled = (Character.digit(traceparent.charAt(54), 16) & 1) != 0;
+        if (tracestate != null && (tracestate.isEmpty() || tracestate.length() > MAX_TRACESTATE_LENGTH)) tracestate = null;
+        return new TraceContext(traceId, spanId, sampled, tracestate);
+    }
+
+    private static void appendHex(StringBuilder builder, long value) {
+        String hex = Long.toHexString(value);
+        for (int i = hex.length(); i < 16; i++) builder.append('0');
+        builder.append(hex);
+    }
+
+    /** @return a random, valid span id */
+    public static String newSpanId() {
+        long id;
+        do id = ThreadLocalRandom.current().nextLong(); while (id == 0);
+        StringBuilder builder = new StringBuilder(16);
+        appendHex(builder, id);
+        return builder.toString();
+    }
+
+    /** @return a random, valid trace id */
+    public static String newTraceId() {
+        StringBuilder builder = new StringBuilder(32);
+        appendHex(builder, ThreadLocalRandom.current().nextLong());
+        appendHex(builder, ThreadLocalRandom.current().nextLong() | 1);
+        return builder.toString();
+    }
+
+    /** Create a context for a new span within the same trace.
+     *
+     * @return A context with the same trace id, sampling decision and state, and a new span id
+     */
+    public TraceContext newChild() {
+        return new TraceContext(traceId, newSpanId(), sampled, traceState);
+    }
+
+    /** @return the value of a traceparent header for this context */
+    public String toTraceparent() {
+        return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+
+    @Override
+    public String toString() {
+        return toTraceparent();
+    }
+}
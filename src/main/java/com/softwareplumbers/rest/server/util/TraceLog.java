@@ -0,0 +1,61 @@
+package com.softwareplumbers.rest.server.util;
+
+import org.slf4j.ext.XLogger;
+
+/** Guarded entry and exit tracing for code on the request path.
+ *
+ * XLogger.entry takes a varargs array, and XLogger.exit boxes primitive results, so both allocate on
+ * every call even when TRACE is disabled. These methods have a fixed number of arguments and check
+ * isTraceEnabled before calling the XLogger, so when TRACE is off a call costs one level check and
+ * allocates nothing. Output when TRACE is on is the same as calling the XLogger directly.
+ *
+ * @author SWPNET\jonessex
+ */
+public final class TraceLog {
+
+    private TraceLog() {
+    }
+
+    public static void entry(XLogger log) {
+        if (log.isTraceEnabled()) log.entry();
+    }
+
+    public static void entry(XLogger log, Object arg) {
+        if (log.isTraceEnabled()) log.entry(arg);
+    }
+
+    public static void entry(XLogger log, Object arg1, Object arg2) {
+        if (log.isTraceEnabled()) log.entry(arg1, arg2);
+    }
+
+    public static void entry(XLogger log, Object arg1, Object arg2, Object arg3) {
+        if (log.isTraceEnabled()) log.entry(arg1, arg2, arg3);
+    }
+
+    public static void entry(XLogger log, Object arg1, Object arg2, Object arg3, Object arg4) {
+        if (log.isTraceEnabled()) log.entry(arg1, arg2, arg3, arg4);
+    }
+
+    public static void entry(XLogger log, long arg) {
+        if (log.isTraceEnabled()) log.entry(arg);
+    }
+
+    public static void exit(XLogger log) {
+        if (log.isTraceEnabled()) log.exit();
+    }
+
+    public static <T> T exit(XLogger log, T result) {
+        if (log.isTraceEnabled()) log.exit(result);
+        return result;
+    }
+
+    public static boolean exit(XLogger log, boolean result) {
+        if (log.isTraceEnabled()) log.exit(result);
+        return result;
+    }
+
+    public static long exit(XLogger log, long result) {
+        if (log.isTraceEnabled()) log.exit(result);
+        return result;
+    }
+}
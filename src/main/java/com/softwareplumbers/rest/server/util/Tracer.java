@@ -0,0 +1,70 @@
+package com.softwareplumbers.rest.server.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Decides which requests are traced, and starts their spans.
+ *
+ * A request which carries a valid traceparent header is sampled if the header's sampled flag is set,
+ * unless respectParentSampling is turned off. Other requests are sampled with probability sampleRate,
+ * which defaults to zero. Completed spans are passed to the exporter, by default a LogSpanExporter.
+ *
+ * @author SWPNET\jonessex
+ */
+public class Tracer {
+
+    private volatile double sampleRate = 0;
+    private boolean respectParentSampling = true;
+    private SpanExporter exporter = new LogSpanExporter();
+
+    /** Set the fraction of requests without a sampled parent which are traced.
+     *
+     * @param sampleRate probability between 0 and 1
+     */
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+        this.sampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Set whether a request is traced whenever its traceparent header is marked as sampled.
+     *
+     * @param respectParentSampling false to apply sampleRate to all requests (default true)
+     */
+    public void setRespectParentSampling(boolean respectParentSampling) {
+        this.respectParentSampling = respectParentSampling;
+    }
+
+    /** Set the exporter which receives completed spans.
+     *
+     * @param exporter span exporter
+     */
+    public void setExporter(SpanExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    /** Decide whether to trace a request.
+     *
+     * @param parent trace context from the request headers, or null
+     * @return true if the request should be traced
+     */
+    public boolean isSampled(TraceContext parent) {
+        if (parent != null && parent.isSampled() && respectParentSampling) return true;
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /** Start a span for a sampled request.
+     *
+     * @param name span name
+     * @param parent trace context from the request headers, or null to start a new trace
+     * @return a new span
+     */
+    public Span startSpan(String name, TraceContext parent) {
+        TraceContext context = parent == null
+            ? new TraceContext(TraceContext.newTraceId(), TraceContext.newSpanId(), true, null)
+            : new TraceContext(parent.getTraceId(), TraceContext.newSpanId(), true, parent.getTraceState());
+        return new Span(exporter, context, parent == null ? null : parent.getSpanId(), name);
+    }
+}
@@ -0,0 +1,80 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.model.SignedRequestValidationService;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.ws.rs.core.Response;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class AuthenticationBatchTest {
+
+    private KeyPair keyPair;
+    private Authentication authentication;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        KeyManager<SystemSecretKeys,SystemKeyPairs> kmgr = mock(KeyManager.class);
+        when(kmgr.getKey("service")).thenReturn(keyPair.getPublic());
+        when(kmgr.getKey(SystemSecretKeys.JWT_SIGNING_KEY)).thenReturn(Keys.secretKeyFor(SignatureAlgorithm.HS256));
+        AuthenticationService authService = new AuthenticationService();
+        authService.setSignedRequestValidationService(new SignedRequestValidationService(kmgr));
+        authService.setRequestValidationService(new CookieRequestValidationService(kmgr, "tmp"));
+        AuthenticationServiceFactory factory = mock(AuthenticationServiceFactory.class);
+        when(factory.getService("tmp")).thenReturn(authService);
+        authentication = new Authentication(factory);
+    }
+
+    private JsonObject signedRequest(String account) throws Exception {
+        byte[] request = ("{\"account\":\"" + account + "\",\"instant\":" + System.currentTimeMillis() + "}").getBytes(StandardCharsets.UTF_8);
+        Signature signer = Signature.getInstance(KeyManager.PUBLIC_KEY_SIGNATURE_ALGORITHM, "SUN");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(request);
+        return Json.createObjectBuilder()
+            .add("request", Base64.getUrlEncoder().encodeToString(request))
+            .add("signature", Base64.getUrlEncoder().encodeToString(signer.sign()))
+            .build();
+    }
+
+    @Test
+    public void testBatchReturnsResultPerItem() throws Exception {
+        JsonObject good = signedRequest("service");
+        JsonArray batch = Json.createArrayBuilder()
+            .add(good)
+            .add(signedRequest("unknown"))
+            .add(Json.createObjectBuilder().add("request", "x"))
+            .add(good)
+            .build();
+        Response response = authentication.handleServiceRequestBatch("tmp", batch);
+        JsonArray results = (JsonArray)response.getEntity();
+        assertThat(results.size(), equalTo(4));
+        assertThat(results.getJsonObject(0).getInt("status"), equalTo(200));
+        assertThat(results.getJsonObject(0).getString("account"), equalTo("service"));
+        assertThat(results.getJsonObject(0).getString("cookie"), equalTo("DoctaneUserToken/tmp"));
+        assertThat(results.getJsonObject(0).getString("token").split("\\.").length, equalTo(3));
+        assertThat(results.getJsonObject(1).getInt("status"), equalTo(403));
+        assertThat(results.getJsonObject(2).getInt("status"), equalTo(406));
+        assertThat(results.getJsonObject(3).getInt("status"), equalTo(403));
+    }
+}
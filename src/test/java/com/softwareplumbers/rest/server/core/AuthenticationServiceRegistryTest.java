@@ -0,0 +1,54 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class AuthenticationServiceRegistryTest {
+
+    private AuthenticationServiceFactory locator;
+    private AuthenticationService service;
+    private AuthenticationServiceRegistry registry;
+
+    @Before
+    public void setup() {
+        locator = mock(AuthenticationServiceFactory.class);
+        service = new AuthenticationService();
+        when(locator.getService("tmp")).thenReturn(service);
+        when(locator.getService("unknown")).thenThrow(new NoSuchBeanDefinitionException("unknown"));
+        registry = new AuthenticationServiceRegistry(locator);
+    }
+
+    @Test
+    public void testKnownServiceIsCached() {
+        assertThat(registry.getService("tmp"), sameInstance(service));
+        assertThat(registry.getService("tmp"), sameInstance(service));
+        verify(locator, times(1)).getService("tmp");
+    }
+
+    @Test
+    public void testUnknownServiceIsCached() {
+        assertThat(registry.getService("unknown"), nullValue());
+        assertThat(registry.getService("unknown"), nullValue());
+        verify(locator, times(1)).getService("unknown");
+    }
+
+    @Test
+    public void testFlush() {
+        registry.getService("tmp");
+        registry.getService("unknown");
+        registry.flush();
+        registry.getService("tmp");
+        registry.getService("unknown");
+        verify(locator, times(2)).getService("tmp");
+        verify(locator, times(2)).getService("unknown");
+    }
+}
@@ -0,0 +1,139 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.model.CORSPolicy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class CORSPolicyTest {
+
+    private static CORSPolicy policy(String... origins) {
+        CORSPolicy policy = new CORSPolicy();
+        policy.setAllowedOrigins(Arrays.asList(origins));
+        return policy;
+    }
+
+    @Test
+    public void testAllowedOrigins() {
+        CORSPolicy policy = policy("https://app.example.com", "https://*.softwareplumbers.com", "http://localhost:8080/");
+        assertThat(policy.isAllowed("https://app.example.com"), equalTo(true));
+        assertThat(policy.isAllowed("https://APP.example.com"), equalTo(true));
+        assertThat(policy.isAllowed("http://app.example.com"), equalTo(false));
+        assertThat(policy.isAllowed("https://app.example.com.evil.com"), equalTo(false));
+        assertThat(policy.isAllowed("https://doctane.softwareplumbers.com"), equalTo(true));
+        assertThat(policy.isAllowed("https://a.b.softwareplumbers.com"), equalTo(true));
+        assertThat(policy.isAllowed("https://softwareplumbers.com"), equalTo(false));
+        assertThat(policy.isAllowed("https://evilsoftwareplumbers.com"), equalTo(false));
+        assertThat(policy.isAllowed("https://evil.com/.softwareplumbers.com"), equalTo(false));
+        assertThat(policy.isAllowed("http://localhost:8080"), equalTo(true));
+        assertThat(policy.isAllowed(null), equalTo(false));
+        assertThat(new CORSPolicy().isAllowed("https://anywhere.com"), equalTo(true));
+        assertThat(policy("*").isAllowed("https://anywhere.com"), equalTo(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidOrigin() {
+        policy("https://app.*.com");
+    }
+
+    @Test
+    public void testPrecomputedHeaders() {
+        CORSPolicy policy = policy("https://app.example.com");
+        policy.setMaxAgeSeconds(3600);
+        assertThat(policy.getPreflightHeaders(), hasEntry(CORSPolicy.MAX_AGE, "3600"));
+        assertThat(policy.getPreflightHeaders(), hasEntry(CORSPolicy.VARY, "Origin"));
+        assertThat(policy.getResponseHeaders(), not(hasKey(CORSPolicy.MAX_AGE)));
+        assertThat(policy.getResponseHeaders(), hasEntry(CORSPolicy.EXPOSE_HEADERS, "traceparent, tracestate"));
+        policy.setVaryOrigin(false);
+        assertThat(policy.getResponseHeaders(), not(hasKey(CORSPolicy.VARY)));
+        MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+        headers.add(CORSPolicy.VARY, "Accept-Encoding");
+        policy.setVaryOrigin(true);
+        policy.addResponseHeaders(headers, "https://app.example.com");
+        assertThat(headers.get(CORSPolicy.VARY), contains("Accept-Encoding", "Origin"));
+        assertThat(headers.getFirst(CORSPolicy.ALLOW_ORIGIN), equalTo("https://app.example.com"));
+    }
+
+    private static ContainerRequestContext request(String method, String origin, String repository) {
+        Map<String, Object> properties = new HashMap<>();
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        UriInfo uriInfo = mock(UriInfo.class);
+        MultivaluedMap<String, String> pathParameters = new MultivaluedHashMap<>();
+        if (repository != null) pathParameters.add("repository", repository);
+        when(uriInfo.getPathParameters()).thenReturn(pathParameters);
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getHeaderString("Origin")).thenReturn(origin);
+        when(request.getHeaderString("Access-Control-Request-Method")).thenReturn(method.equals("OPTIONS") ? "POST" : null);
+        when(request.getProperty(anyString())).thenAnswer(invocation -> properties.get((String)invocation.getArguments()[0]));
+        doAnswer(invocation -> properties.put((String)invocation.getArguments()[0], invocation.getArguments()[1]))
+            .when(request).setProperty(anyString(), any());
+        return request;
+    }
+
+    private static MultivaluedMap<String, Object> filter(CORSResponseFilter filter, ContainerRequestContext request) throws Exception {
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+        when(response.getHeaders()).thenReturn(headers);
+        filter.filter(request, response);
+        return headers;
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        AuthenticationService tmp = new AuthenticationService();
+        tmp.setCorsPolicy(policy("https://tmp.example.com"));
+        AuthenticationServiceFactory factory = name -> name.equals("tmp") ? tmp : null;
+        CORSRequestFilter requestFilter = new CORSRequestFilter();
+        requestFilter.setRepositoryServiceFactory(factory);
+        requestFilter.setDefaultPolicy(policy("https://app.example.com"));
+        CORSResponseFilter responseFilter = new CORSResponseFilter();
+        responseFilter.setRepositoryServiceFactory(factory);
+        responseFilter.setDefaultPolicy(policy("https://app.example.com"));
+
+        ContainerRequestContext preflight = request("OPTIONS", "https://tmp.example.com", "tmp");
+        requestFilter.filter(preflight);
+        verify(preflight).abortWith(argThat(hasProperty("status", equalTo(200))));
+        MultivaluedMap<String, Object> headers = filter(responseFilter, preflight);
+        assertThat(headers.getFirst(CORSPolicy.ALLOW_ORIGIN), equalTo("https://tmp.example.com"));
+        assertThat(headers.getFirst(CORSPolicy.MAX_AGE), equalTo("600"));
+
+        ContainerRequestContext refused = request("OPTIONS", "https://app.example.com", "tmp");
+        requestFilter.filter(refused);
+        verify(refused).abortWith(argThat(hasProperty("status", equalTo(Response.Status.FORBIDDEN.getStatusCode()))));
+        headers = filter(responseFilter, refused);
+        assertThat(headers.getFirst(CORSPolicy.ALLOW_ORIGIN), nullValue());
+        assertThat(headers.get(CORSPolicy.VARY), contains((Object)"Origin"));
+
+        headers = filter(responseFilter, request("GET", "https://app.example.com", null));
+        assertThat(headers.getFirst(CORSPolicy.ALLOW_ORIGIN), equalTo("https://app.example.com"));
+        assertThat(headers.getFirst(CORSPolicy.MAX_AGE), nullValue());
+
+        headers = filter(responseFilter, request("GET", null, "tmp"));
+        assertThat(headers.getFirst(CORSPolicy.ALLOW_ORIGIN), nullValue());
+        assertThat(headers.get(CORSPolicy.VARY), contains((Object)"Origin"));
+        headers = filter(responseFilter, request("GET", "https://evil.example.com", null));
+        assertThat(headers.getFirst(CORSPolicy.ALLOW_ORIGIN), nullValue());
+        assertThat(headers.get(CORSPolicy.VARY), contains((Object)"Origin"));
+        tmp.getCorsPolicy().setVaryOrigin(false);
+        assertThat(filter(responseFilter, request("GET", null, "tmp")).isEmpty(), equalTo(true));
+        ContainerRequestContext noOrigin = request("OPTIONS", null, "tmp");
+        requestFilter.filter(noOrigin);
+        verify(noOrigin, never()).abortWith(any());
+    }
+}
@@ -11,13 +11,21 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.KeyStoreException;
+import java.util.Collections;
+import java.util.Date;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.SecurityContext;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.MatcherAssert.*;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.*;
 
 /**
  *
@@ -59,4 +67,102 @@ public class CookieRequestValidationServiceTest {
         assertThat(cookie, containsString("SameSite=None"));
     }
     
+    /** Extract the JWT from a Set-Cookie header value */
+    private static String getToken(String cookie) {
+        return cookie.substring(cookie.indexOf('=') + 1, cookie.indexOf(';'));
+    }
+    
+    private static ContainerRequestContext requestWithToken(String repository, String token) {
+        ContainerRequestContext context = mock(ContainerRequestContext.class);
+        when(context.getCookies()).thenReturn(Collections.singletonMap("DoctaneUserToken/" + repository, new Cookie("DoctaneUserToken/" + repository, token)));
+        return context;
+    }
+    
+    @Test
+    public void testValidTokenIsCached() {
+        CookieRequestValidationService service = new CookieRequestValidationService(kmgr, "test");
+        String token = getToken(service.generateCookie("testuser"));
+        assertThat(service.validateRequest(requestWithToken("test", token)), equalTo(true));
+        ContainerRequestContext context = requestWithToken("test", token);
+        assertThat(service.validateRequest(context), equalTo(true));
+        ArgumentCaptor<SecurityContext> secContext = ArgumentCaptor.forClass(SecurityContext.class);
+        verify(context).setSecurityContext(secContext.capture());
+        assertThat(secContext.getValue().getUserPrincipal().getName(), equalTo("testuser"));
+        assertThat(service.getTokenCache().getMisses(), equalTo(1L));
+        assertThat(service.getTokenCache().getHits(), equalTo(1L));
+    }
+    
+    @Test
+    public void testForgedTokenIsRejectedAndCached() {
+        CookieRequestValidationService service = new CookieRequestValidationService(kmgr, "test");
+        String token = getToken(service.generateCookie("testuser"));
+        String forged = token.substring(0, token.length() - 2) + (token.endsWith("AA") ? "BB" : "AA");
+        assertThat(service.validateRequest(requestWithToken("test", forged)), equalTo(false));
+        assertThat(service.validateRequest(requestWithToken("test", forged)), equalTo(false));
+        assertThat(service.getInvalidTokenCache().getHits(), equalTo(1L));
+        assertThat(service.getTokenCache().size(), equalTo(0));
+    }
+    
+    @Test
+    public void testBadTokensDoNotEvictValidTokens() {
+        CookieRequestValidationService service = new CookieRequestValidationService(kmgr, "test");
+        service.setTokenCacheSize(10);
+        service.setInvalidTokenCacheSize(10);
+        String token = getToken(service.generateCookie("testuser"));
+        assertThat(service.validateRequest(requestWithToken("test", token)), equalTo(true));
+        for (int i = 0; i < 1000; i++) {
+            assertThat(service.validateRequest(requestWithToken("test", "garbage" + i)), equalTo(false));
+        }
+        assertThat(service.getInvalidTokenCache().size(), lessThanOrEqualTo(10));
+        assertThat(service.getTokenCache().size(), equalTo(1));
+        assertThat(service.validateRequest(requestWithToken("test", token)), equalTo(true));
+        assertThat(service.getTokenCache().getHits(), equalTo(1L));
+    }
+    
+    @Test
+    public void testTokenCacheCanBeDisabled() {
+        CookieRequestValidationService service = new CookieRequestValidationService(kmgr, "test");
+        service.setTokenCacheEnabled(false);
+        String token = getToken(service.generateCookie("testuser"));
+        assertThat(service.validateRequest(requestWithToken("test", token)), equalTo(true));
+        assertThat(service.validateRequest(requestWithToken("test", token)), equalTo(true));
+        assertThat(service.getTokenCache().getHits(), equalTo(0L));
+        assertThat(service.getTokenCache().size(), equalTo(0));
+    }
+    
+    @Test
+    public void testRenewedTokenKeepsAuthTime() {
+        CookieRequestValidationService service = new CookieRequestValidationService(kmgr, "test");
+        Date authTime = new Date(System.currentTimeMillis() - 3600000L);
+        String token = getToken(service.generateCookie("testuser", authTime));
+        ContainerRequestContext context = requestWithToken("test", token);
+        assertThat(service.validateRequest(context), equalTo(true));
+        verify(context).setProperty("authTime", new Date(authTime.getTime() / 1000 * 1000));
+        ArgumentCaptor<Object> validFrom = ArgumentCaptor.forClass(Object.class);
+        verify(context).setProperty(eq("validFrom"), validFrom.capture());
+        assertThat(((Date)validFrom.getValue()).getTime(), greaterThan(authTime.getTime()));
+    }
+    
+    @Test
+    public void testUserMetadataSnapshot() {
+        CookieRequestValidationService service = new CookieRequestValidationService(kmgr, "test");
+        JsonObject userMetadata = Json.createObjectBuilder().add("role", "admin").build();
+        Date retrieved = new Date();
+        String token = getToken(service.generateCookie("testuser", null, userMetadata, retrieved));
+        ContainerRequestContext context = requestWithToken("test", token);
+        assertThat(service.validateRequest(context), equalTo(true));
+        verify(context).setProperty("userMetadataSnapshot", userMetadata);
+        verify(context).setProperty("userMetadataTime", new Date(retrieved.getTime() / 1000 * 1000));
+    }
+    
+    @Test
+    public void testLargeUserMetadataIsNotEmbedded() {
+        CookieRequestValidationService service = new CookieRequestValidationService(kmgr, "test");
+        service.setMaxUserMetadataClaimLength(10);
+        JsonObject userMetadata = Json.createObjectBuilder().add("role", "administrator").build();
+        String token = getToken(service.generateCookie("testuser", null, userMetadata, new Date()));
+        ContainerRequestContext context = requestWithToken("test", token);
+        assertThat(service.validateRequest(context), equalTo(true));
+        verify(context, never()).setProperty(eq("userMetadataSnapshot"), any());
+    }
 }
@@ -0,0 +1,94 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import com.softwareplumbers.rest.server.util.FormReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import javax.ws.rs.core.Response;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class FormReaderTest {
+
+    private static final String RESPONSE = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+        + " ID=\"_response\" Version=\"2.0\" IssueInstant=\"2020-01-01T00:00:00Z\">"
+        + "<saml:Assertion ID=\"_assertion\" Version=\"2.0\" IssueInstant=\"2020-01-01T00:00:00Z\">"
+        + "<saml:Subject><saml:NameID>jonathan</saml:NameID></saml:Subject>"
+        + "</saml:Assertion>"
+        + "</samlp:Response>";
+
+    private static InputStream stream(String form) {
+        return new ByteArrayInputStream(form.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String form(String samlResponse, String relayState) throws IOException {
+        return "RelayState=" + URLEncoder.encode(relayState, "UTF-8") + "&SAMLResponse=" + URLEncoder.encode(samlResponse, "UTF-8");
+    }
+
+    @Test
+    public void testReadFields() throws IOException {
+        FormReader reader = new FormReader(stream("a=1+2%263&&flag&b=%C3%A9=x&c="), 100);
+        assertThat(reader.nextField(), equalTo("a"));
+        assertThat(reader.getValueAsString(10), equalTo("1 2&3"));
+        assertThat(reader.nextField(), equalTo("flag"));
+        assertThat(reader.getValueAsString(10), equalTo(""));
+        assertThat(reader.nextField(), equalTo("b"));
+        assertThat(reader.getValueAsString(10), equalTo("\u00e9=x"));
+        assertThat(reader.nextField(), equalTo("c"));
+        assertThat(reader.nextField(), nullValue());
+    }
+
+    @Test
+    public void testUnreadValueIsSkipped() throws IOException {
+        FormReader reader = new FormReader(stream("a=abcdef&b=2"), 100);
+        assertThat(reader.nextField(), equalTo("a"));
+        InputStream value = reader.getValue();
+        assertThat(value.read(), equalTo((int)'a'));
+        value.close();
+        assertThat(reader.nextField(), equalTo("b"));
+        assertThat(IOUtils.toString(reader.getValue(), StandardCharsets.UTF_8), equalTo("2"));
+    }
+
+    @Test(expected = FormReader.TooLarge.class)
+    public void testFormTooLarge() throws IOException {
+        FormReader reader = new FormReader(stream("a=abcdef&b=2"), 8);
+        while (reader.nextField() != null);
+    }
+
+    private Authentication authentication(SAMLProtocolHandlerService saml) {
+        AuthenticationService authService = new AuthenticationService();
+        authService.setSAMLResponseHandlerService(saml);
+        AuthenticationServiceFactory factory = mock(AuthenticationServiceFactory.class);
+        when(factory.getService("tmp")).thenReturn(authService);
+        return new Authentication(factory);
+    }
+
+    @Test
+    public void testSamlResponseIntake() throws Exception {
+        SAMLProtocolHandlerService saml = new SAMLProtocolHandlerService();
+        Authentication authentication = authentication(saml);
+        String samlResponse = Base64.getMimeEncoder().encodeToString(RESPONSE.getBytes(StandardCharsets.UTF_8));
+        String form = form(samlResponse, "https://client/page?x=1&y=2");
+        Response unsigned = authentication.handleSamlResponse("tmp", form.length(), stream(form), null);
+        assertThat(unsigned.getStatus(), equalTo(403));
+        Response missing = authentication.handleSamlResponse("tmp", -1, stream("SAMLResponse=" + URLEncoder.encode(samlResponse, "UTF-8")), null);
+        assertThat(missing.getStatus(), equalTo(406));
+        saml.setMaxSamlResponseSize(form.length() - 1);
+        Response declared = authentication.handleSamlResponse("tmp", form.length(), stream(form), null);
+        assertThat(declared.getStatus(), equalTo(413));
+        Response undeclared = authentication.handleSamlResponse("tmp", -1, stream(form), null);
+        assertThat(undeclared.getStatus(), equalTo(413));
+    }
+}
@@ -0,0 +1,128 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.HS256JwsCodec;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import java.security.Key;
+import java.util.Date;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/** Check that HS256JwsCodec is byte-for-byte compatible with jjwt.
+ *
+ * @author jonat
+ */
+public class HS256JwsCodecTest {
+
+    private static final String[] SUBJECTS = {
+        "testuser", "jonathan.essex@softwareplumbers.com", "quote\"back\\slash/", "tab\tnew\nline\rform\fback\b", "ctrl\u0001\u001f", "unicod\u00e9 \u2713 \ud83d\ude00", " ", ""
+    };
+
+    private final Key key = Keys.secretKeyFor(SignatureAlgorithm.HS256);
+    private final HS256JwsCodec codec = new HS256JwsCodec(key);
+    private final Date expiration = new Date(System.currentTimeMillis() + 3600123L);
+
+    @Test
+    public void testSignMatchesJjwt() {
+        for (String subject : SUBJECTS) {
+            String expected = Jwts.builder().setSubject(subject).setExpiration(expiration).signWith(key).compact();
+            assertThat(codec.sign(subject, expiration, null), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testSignMatchesJjwtWithNotBefore() {
+        Date notBefore = new Date(System.currentTimeMillis() - 1000);
+        String expected = Jwts.builder().setSubject("testuser").setExpiration(expiration).setNotBefore(notBefore).signWith(key).compact();
+        assertThat(codec.sign("testuser", expiration, notBefore), equalTo(expected));
+    }
+
+    @Test
+    public void testVerifyJjwtToken() {
+        for (String subject : SUBJECTS) {
+            String token = Jwts.builder().setSubject(subject).setExpiration(expiration).signWith(key).compact();
+            Claims claims = codec.verify(token, System.currentTimeMillis());
+            Claims expected = Jwts.parser().setSigningKey(key).parseClaimsJws(token).getBody();
+            assertThat(claims, notNullValue());
+            assertThat(claims.getSubject(), equalTo(expected.getSubject()));
+            assertThat(claims.getExpiration(), equalTo(expected.getExpiration()));
+        }
+    }
+
+    @Test
+    public void testJjwtVerifiesCodecToken() {
+        String token = codec.sign("testuser", expiration, null);
+        Claims claims = Jwts.parser().setSigningKey(key).parseClaimsJws(token).getBody();
+        assertThat(claims.getSubject(), equalTo("testuser"));
+        assertThat(claims.getExpiration().getTime(), equalTo(expiration.getTime() / 1000 * 1000));
+    }
+
+    @Test(expected = JwtException.class)
+    public void testRejectsForgedSignature() {
+        String token = codec.sign("testuser", expiration, null);
+        String forged = token.substring(0, token.length() - 2) + (token.endsWith("AA") ? "BB" : "AA");
+        codec.verify(forged, System.currentTimeMillis());
+    }
+
+    @Test(expected = JwtException.class)
+    public void testRejectsTokenSignedWithOtherKey() {
+        String token = new HS256JwsCodec(Keys.secretKeyFor(SignatureAlgorithm.HS256)).sign("testuser", expiration, null);
+        codec.verify(token, System.currentTimeMillis());
+    }
+
+    @Test(expected = JwtException.class)
+    public void testRejectsExpiredToken() {
+        String token = codec.sign("testuser", expiration, null);
+        codec.verify(token, expiration.getTime() + 1000);
+    }
+
+    @Test(expected = JwtException.class)
+    public void testRejectsPrematureToken() {
+        long now = System.currentTimeMillis();
+        String token = codec.sign("testuser", expiration, new Date(now + 60000));
+        codec.verify(token, now);
+    }
+
+    @Test
+    public void testFallsBackOnUnknownClaims() {
+        String token = Jwts.builder().setSubject("testuser").claim("role", "admin").setExpiration(expiration).signWith(key).compact();
+        assertThat(codec.verify(token, System.currentTimeMillis()), nullValue());
+    }
+
+    @Test
+    public void testFallsBackOnOtherAlgorithm() {
+        Key hs512 = Keys.secretKeyFor(SignatureAlgorithm.HS512);
+        assertThat(HS256JwsCodec.isSupported(hs512), equalTo(false));
+        String token = Jwts.builder().setSubject("testuser").setExpiration(expiration).signWith(hs512).compact();
+        assertThat(codec.verify(token, System.currentTimeMillis()), nullValue());
+    }
+
+    @Test
+    public void testUserMetadataMatchesJjwt() {
+        Date now = new Date();
+        String userMetadata = "{\"roles\":[\"admin\",\"caf\u00e9\"],\"path\":\"a/b\"}";
+        String expected = Jwts.builder().setSubject("testuser").setExpiration(expiration).setIssuedAt(now)
+            .claim(HS256JwsCodec.AUTH_TIME, now.getTime() / 1000)
+            .claim(HS256JwsCodec.USER_METADATA_TIME, now.getTime() / 1000)
+            .claim(HS256JwsCodec.USER_METADATA, userMetadata)
+            .signWith(key).compact();
+        assertThat(codec.sign("testuser", expiration, null, now, now, userMetadata, now), equalTo(expected));
+        Claims claims = codec.verify(expected, System.currentTimeMillis());
+        assertThat(claims.get(HS256JwsCodec.USER_METADATA), equalTo(userMetadata));
+        assertThat(claims.get(HS256JwsCodec.USER_METADATA_TIME), equalTo(now.getTime() / 1000));
+    }
+
+    @Test
+    public void testKeyIdMatchesJjwt() {
+        HS256JwsCodec withKeyId = new HS256JwsCodec(key, "k1");
+        String expected = Jwts.builder().setHeaderParam("kid", "k1").setSubject("testuser").setExpiration(expiration).signWith(key).compact();
+        assertThat(withKeyId.sign("testuser", expiration, null), equalTo(expected));
+        assertThat(withKeyId.verify(expected, System.currentTimeMillis()).getSubject(), equalTo("testuser"));
+        assertThat(codec.verify(expected, System.currentTimeMillis()), nullValue());
+        assertThat(withKeyId.verify(codec.sign("testuser", expiration, null), System.currentTimeMillis()), nullValue());
+    }
+}
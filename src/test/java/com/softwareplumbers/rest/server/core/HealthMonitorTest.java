@@ -0,0 +1,67 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.authz.AuthorizationService;
+import com.softwareplumbers.authz.AuthorizationServiceFactory;
+import java.util.Arrays;
+import javax.json.JsonObject;
+import javax.ws.rs.core.Response;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class HealthMonitorTest {
+
+    @SuppressWarnings("unchecked")
+    private static HealthMonitor monitor(boolean otherUp) {
+        AuthorizationService<?,?,?> service = mock(AuthorizationService.class);
+        AuthorizationServiceFactory<?,?,?> factory = mock(AuthorizationServiceFactory.class);
+        doReturn(service).when(factory).getService("tmp");
+        if (otherUp) doReturn(service).when(factory).getService("other");
+        else when(factory.getService("other")).thenThrow(new IllegalArgumentException("no such repository"));
+        HealthMonitor monitor = new HealthMonitor();
+        monitor.authorizationServiceFactory = factory;
+        monitor.setRepositories(Arrays.asList("tmp", "other"));
+        return monitor;
+    }
+
+    @Test
+    public void testCheck() {
+        HealthMonitor monitor = monitor(false);
+        assertThat(monitor.getHealth().status, equalTo(HealthMonitor.Status.DOWN));
+        HealthMonitor.Health health = monitor.check();
+        assertThat(health.status, equalTo(HealthMonitor.Status.DOWN));
+        assertThat(monitor.getHealth(), sameInstance(health));
+        JsonObject components = health.toJson().getJsonObject("components");
+        assertThat(components.getJsonObject("authorization:tmp").getString("status"), equalTo("UP"));
+        assertThat(components.getJsonObject("authorization:other").getString("status"), equalTo("DOWN"));
+        assertThat(components.getJsonObject("authorization:other").getString("detail"), containsString("no such repository"));
+        assertThat(components.getJsonObject("authorization:tmp").getString("checked"), notNullValue());
+        assertThat(monitor(true).check().status, equalTo(HealthMonitor.Status.UP));
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        HealthMonitor monitor = monitor(true);
+        monitor.setStaleMillis(1);
+        monitor.check();
+        Thread.sleep(10);
+        HealthMonitor.Health health = monitor.getHealth();
+        assertThat(health.status, equalTo(HealthMonitor.Status.DOWN));
+        assertThat(health.toJson().getJsonObject("components").getJsonObject("monitor").getString("status"), equalTo("DOWN"));
+    }
+
+    @Test
+    public void testHealthCheckStatus() {
+        HealthCheck check = new HealthCheck();
+        assertThat(check.get().getStatus(), equalTo(Response.Status.OK.getStatusCode()));
+        HealthMonitor monitor = monitor(false);
+        check.setHealthMonitor(monitor);
+        monitor.check();
+        assertThat(check.get().getStatus(), equalTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode()));
+    }
+}
@@ -0,0 +1,102 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.keymanager.KeyManager;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Date;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Cookie;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/** Check signing key rotation.
+ *
+ * @author jonat
+ */
+public class JwtKeyRingTest {
+
+    private final Key oldKey = Keys.secretKeyFor(SignatureAlgorithm.HS256);
+    private final Key newKey = Keys.secretKeyFor(SignatureAlgorithm.HS256);
+    private KeyManager<SystemSecretKeys, SystemKeyPairs> keyManager;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        keyManager = mock(KeyManager.class);
+        when(keyManager.getKey(SystemSecretKeys.JWT_SIGNING_KEY)).thenReturn(oldKey);
+    }
+
+    private static String token(String cookie) {
+        return cookie.substring(cookie.indexOf('=') + 1, cookie.indexOf(';'));
+    }
+
+    private static boolean validate(CookieRequestValidationService service, String jws) {
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        when(request.getCookies()).thenReturn(java.util.Collections.singletonMap("DoctaneUserToken/tmp", new Cookie("DoctaneUserToken/tmp", jws)));
+        return service.validateRequest(request);
+    }
+
+    @Test
+    public void testRotation() {
+        CookieRequestValidationService service = new CookieRequestValidationService(keyManager, "tmp");
+        String oldToken = token(service.generateCookie("testuser"));
+        assertThat(Jwts.parser().setSigningKey(oldKey).parseClaimsJws(oldToken).getHeader().getKeyId(), equalTo(JwtKeyRing.keyId(oldKey)));
+
+        when(keyManager.getKey(SystemSecretKeys.JWT_SIGNING_KEY)).thenReturn(newKey);
+        service.reloadKeys();
+        String newToken = token(service.generateCookie("testuser"));
+        assertThat(Jwts.parser().setSigningKey(newKey).parseClaimsJws(newToken).getHeader().getKeyId(), equalTo(JwtKeyRing.keyId(newKey)));
+        assertThat(validate(service, oldToken), equalTo(true));
+        assertThat(validate(service, newToken), equalTo(true));
+
+        service.setKeyGracePeriodMillis(0);
+        assertThat(validate(service, oldToken), equalTo(false));
+        assertThat(validate(service, newToken), equalTo(true));
+    }
+
+    @Test
+    public void testRetiredKeyAfterGracePeriod() throws InterruptedException {
+        CookieRequestValidationService service = new CookieRequestValidationService(keyManager, "tmp");
+        service.setKeyGracePeriodMillis(200);
+        String oldToken = token(service.generateCookie("testuser"));
+        assertThat(validate(service, oldToken), equalTo(true));
+
+        when(keyManager.getKey(SystemSecretKeys.JWT_SIGNING_KEY)).thenReturn(newKey);
+        service.reloadKeys();
+        assertThat(validate(service, oldToken), equalTo(true));
+        Thread.sleep(300);
+        assertThat(validate(service, oldToken), equalTo(false));
+        assertThat(validate(service, token(service.generateCookie("testuser"))), equalTo(true));
+    }
+
+    @Test
+    public void testRetiredAlias() throws Exception {
+        when(keyManager.getSecretKeyNames()).thenReturn(Arrays.asList("JWT_SIGNING_KEY", "JWT_SIGNING_KEY.1").iterator());
+        when(keyManager.getKey("JWT_SIGNING_KEY.1")).thenReturn(newKey);
+        JwtKeyRing ring = new JwtKeyRing(keyManager, 60000);
+        assertThat(ring.getKeys(), hasSize(2));
+        assertThat(ring.getCurrent().keyId, equalTo(JwtKeyRing.keyId(oldKey)));
+        String retired = ring.resolve(Jwts.builder().setHeaderParam("kid", JwtKeyRing.keyId(newKey)).setSubject("testuser").signWith(newKey).compact(), System.currentTimeMillis()).keyId;
+        assertThat(retired, equalTo(JwtKeyRing.keyId(newKey)));
+    }
+
+    @Test
+    public void testTokenWithoutKeyId() {
+        JwtKeyRing ring = new JwtKeyRing(keyManager, 60000);
+        String legacy = Jwts.builder().setSubject("testuser").setExpiration(new Date(System.currentTimeMillis() + 60000)).signWith(oldKey).compact();
+        assertThat(ring.resolve(legacy, System.currentTimeMillis()), sameInstance(ring.getCurrent()));
+    }
+
+    @Test(expected = JwtException.class)
+    public void testUnknownKeyId() {
+        JwtKeyRing ring = new JwtKeyRing(keyManager, 60000);
+        ring.resolve(Jwts.builder().setHeaderParam("kid", "unknown").setSubject("testuser").signWith(newKey).compact(), System.currentTimeMillis());
+    }
+}
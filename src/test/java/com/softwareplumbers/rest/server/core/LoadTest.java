@@ -0,0 +1,266 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.keymanager.KeyManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Response;
+import org.HdrHistogram.Histogram;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.embedded.LocalServerPort;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/** Concurrent load test for the authentication endpoints.
+ *
+ * Starts the application with the test profile on an ephemeral port, mints a set of user tokens through
+ * CoreServerMBean.getAccessToken, and then has a number of concurrent clients call /auth/{repository}/token,
+ * /auth/{repository}/service and /heartbeat in turn. Each client waits for a response before sending its next
+ * request. Latency is recorded in microseconds with HdrHistogram, and the p50, p99 and p999 latency and the
+ * throughput of each endpoint are written to a results file in the same format as the baseline.
+ *
+ * The test fails if any request fails, or if any value in the baseline has regressed by more than the allowed
+ * tolerance: latencies may exceed the baseline by load.latencyTolerance (a fraction, default 1.0), and throughput
+ * may fall short of it by load.throughputTolerance (default 0.5). Values missing from the baseline are not checked,
+ * and nothing is checked if the baseline was recorded with a different number of clients. To record a new baseline,
+ * copy the results file over load-baseline.properties.
+ *
+ * Signed service requests are signed by the client threads outside the timed section, with the key pair of
+ * load.serviceAccount (default DEFAULT_SERVICE_ACCOUNT). Client and server share the same machine, so absolute
+ * numbers are only comparable between runs on similar hardware.
+ *
+ * This test is excluded from the normal test task; run it with the loadTest task.
+ *
+ * @author jonat
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = Application.class)
+@ActiveProfiles("test")
+@EnableConfigurationProperties
+public class LoadTest {
+
+    private static final String REPOSITORY = "tmp";
+    private static final String[] ENDPOINTS = { "token", "service", "heartbeat" };
+
+    static {
+        // The JDK HTTP client otherwise only keeps 5 idle connections per host, so extra clients would reconnect every time
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", Integer.toString(Math.max(5, Integer.getInteger("load.clients", 8))));
+    }
+
+    @LocalServerPort
+    int port;
+    @Autowired
+    CoreServerMBean manager;
+    @Autowired
+    KeyManager<SystemSecretKeys,SystemKeyPairs> keyManager;
+
+    private final int clients = Integer.getInteger("load.clients", 8);
+    private final int tokenCount = Integer.getInteger("load.tokens", 1000);
+    private final long warmupMillis = TimeUnit.SECONDS.toMillis(Long.getLong("load.warmupSeconds", 5));
+    private final long durationMillis = TimeUnit.SECONDS.toMillis(Long.getLong("load.durationSeconds", 20));
+    private final double latencyTolerance = Double.parseDouble(System.getProperty("load.latencyTolerance", "1.0"));
+    private final double throughputTolerance = Double.parseDouble(System.getProperty("load.throughputTolerance", "0.5"));
+    private final String serviceAccount = System.getProperty("load.serviceAccount", SystemKeyPairs.DEFAULT_SERVICE_ACCOUNT.name());
+    private final Path resultsFile = Paths.get(System.getProperty("load.results", "build/reports/load/results.properties"));
+
+    private final Client client = ClientBuilder.newClient();
+    private final AtomicLong nonce = new AtomicLong();
+    private List<Cookie> tokens;
+    private PrivateKey serviceKey;
+
+    /** Result of one client's run: a latency histogram and error count per endpoint. */
+    private static class ClientResult {
+        final Histogram[] latency = new Histogram[ENDPOINTS.length];
+        final long[] errors = new long[ENDPOINTS.length];
+
+        ClientResult() {
+            for (int i = 0; i < ENDPOINTS.length; i++) latency[i] = new Histogram(3);
+        }
+    }
+
+    @Before
+    public void mintTokens() throws Exception {
+        long start = System.nanoTime();
+        tokens = new ArrayList<>(tokenCount);
+        for (int i = 0; i < tokenCount; i++) {
+            tokens.add(NewCookie.valueOf(manager.getAccessToken(REPOSITORY, "loaduser" + i)).toCookie());
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Minted %d tokens in %d ms%n", tokenCount, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        serviceKey = keyManager.getKeyPair(serviceAccount).getPrivate();
+    }
+
+    private String[] signedRequest() throws Exception {
+        byte[] request = Json.createObjectBuilder()
+            .add("account", serviceAccount)
+            .add("instant", System.currentTimeMillis())
+            .add("nonce", nonce.incrementAndGet())
+            .build().toString().getBytes(StandardCharsets.UTF_8);
+        Signature signer = Signature.getInstance(KeyManager.PUBLIC_KEY_SIGNATURE_ALGORITHM);
+        signer.initSign(serviceKey);
+        signer.update(request);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return new String[] { encoder.encodeToString(request), encoder.encodeToString(signer.sign()) };
+    }
+
+    /** Call one endpoint.
+     *
+     * @param endpoint index into ENDPOINTS
+     * @param iteration number of calls made so far by this client, used to pick a token
+     * @param signed signed service request, used only by the service endpoint
+     * @return the response, with its entity consumed
+     */
+    private Response call(int endpoint, int iteration, String[] signed) {
+        Response response;
+        switch (endpoint) {
+            case 0:
+                response = client.target("http://localhost:" + port + "/auth/" + REPOSITORY + "/token")
+                    .request(MediaType.APPLICATION_JSON).cookie(tokens.get(iteration % tokens.size())).get();
+                break;
+            case 1:
+                response = client.target("http://localhost:" + port + "/auth/" + REPOSITORY + "/service")
+                    .queryParam("request", signed[0]).queryParam("signature", signed[1])
+                    .request().get();
+                break;
+            default:
+                response = client.target("http://localhost:" + port + "/heartbeat")
+                    .request(MediaType.TEXT_PLAIN).get();
+        }
+        response.readEntity(String.class);
+        return response;
+    }
+
+    private ClientResult runClient(int offset, long measureFrom, long measureUntil) throws Exception {
+        ClientResult result = new ClientResult();
+        int iteration = offset;
+        for (long now = System.currentTimeMillis(); now < measureUntil; now = System.currentTimeMillis()) {
+            int endpoint = iteration % ENDPOINTS.length;
+            String[] signed = endpoint == 1 ? signedRequest() : null;
+            long start = System.nanoTime();
+            Response response = call(endpoint, iteration, signed);
+            long elapsed = System.nanoTime() - start;
+            if (now >= measureFrom) {
+                result.latency[endpoint].recordValue(TimeUnit.NANOSECONDS.toMicros(elapsed));
+                if (response.getStatus() != Response.Status.OK.getStatusCode()) result.errors[endpoint]++;
+            }
+            iteration++;
+        }
+        return result;
+    }
+
+    private static Properties loadBaseline() throws IOException {
+        Properties baseline = new Properties();
+        String location = System.getProperty("load.baseline");
+        try (InputStream is = location == null ? LoadTest.class.getResourceAsStream("/load-baseline.properties") : Files.newInputStream(Paths.get(location))) {
+            if (is != null) baseline.load(is);
+        }
+        return baseline;
+    }
+
+    private void check(List<String> failures, Properties baseline, String key, double value, boolean higherIsBetter) {
+        String expected = baseline.getProperty(key);
+        if (expected == null) return;
+        double limit = higherIsBetter
+            ? Double.parseDouble(expected) * (1 - throughputTolerance)
+            : Double.parseDouble(expected) * (1 + latencyTolerance);
+        if (higherIsBetter ? value < limit : value > limit)
+            failures.add(String.format("%s: %.0f, baseline %s, limit %.0f", key, value, expected, limit));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        assertThat("service account not accepted", call(1, 0, signedRequest()).getStatus(), equalTo(200));
+        assertThat("token not accepted", call(0, 0, null).getStatus(), equalTo(200));
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        long measureFrom = System.currentTimeMillis() + warmupMillis;
+        long measureUntil = measureFrom + durationMillis;
+        List<Future<ClientResult>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            int offset = i;
+            futures.add(executor.submit(() -> runClient(offset, measureFrom, measureUntil)));
+        }
+        ClientResult total = new ClientResult();
+        try {
+            for (Future<ClientResult> future : futures) {
+                ClientResult result = future.get();
+                for (int i = 0; i < ENDPOINTS.length; i++) {
+                    total.latency[i].add(result.latency[i]);
+                    total.errors[i] += result.errors[i];
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            client.close();
+        }
+
+        Properties results = new Properties();
+        results.setProperty("clients", Integer.toString(clients));
+        System.out.printf("%-10s %10s %10s %10s %10s %12s %8s%n", "endpoint", "requests", "p50(us)", "p99(us)", "p999(us)", "throughput/s", "errors");
+        for (int i = 0; i < ENDPOINTS.length; i++) {
+            Histogram latency = total.latency[i];
+            double throughput = latency.getTotalCount() * 1000.0 / durationMillis;
+            System.out.printf("%-10s %10d %10d %10d %10d %12.0f %8d%n", ENDPOINTS[i], latency.getTotalCount(),
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), throughput, total.errors[i]);
+            results.setProperty(ENDPOINTS[i] + ".p50", Long.toString(latency.getValueAtPercentile(50)));
+            results.setProperty(ENDPOINTS[i] + ".p99", Long.toString(latency.getValueAtPercentile(99)));
+            results.setProperty(ENDPOINTS[i] + ".p999", Long.toString(latency.getValueAtPercentile(99.9)));
+            results.setProperty(ENDPOINTS[i] + ".throughput", String.format("%.0f", throughput));
+        }
+        if (resultsFile.getParent() != null) Files.createDirectories(resultsFile.getParent());
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(resultsFile, StandardCharsets.ISO_8859_1))) {
+            writer.println("# LoadTest results: latency in microseconds, throughput in requests per second");
+            new TreeMap<>(results).forEach((key, value) -> writer.println(key + "=" + value));
+        }
+
+        for (int i = 0; i < ENDPOINTS.length; i++) {
+            assertThat(ENDPOINTS[i] + " errors", total.errors[i], equalTo(0L));
+        }
+
+        Properties baseline = loadBaseline();
+        if (!Integer.toString(clients).equals(baseline.getProperty("clients"))) {
+            System.out.printf("Baseline was recorded with %s clients; not comparing%n", baseline.getProperty("clients"));
+            return;
+        }
+        List<String> failures = new ArrayList<>();
+        for (String endpoint : ENDPOINTS) {
+            for (String percentile : new String[] { "p50", "p99", "p999" }) {
+                String key = endpoint + "." + percentile;
+                check(failures, baseline, key, Double.parseDouble(results.getProperty(key)), false);
+            }
+            String key = endpoint + ".throughput";
+            check(failures, baseline, key, Double.parseDouble(results.getProperty(key)), true);
+        }
+        assertThat("regressions against baseline", failures, empty());
+    }
+}
@@ -0,0 +1,70 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.Metrics;
+import com.softwareplumbers.rest.server.util.Metrics.Outcome;
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.model.CoreExceptions;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class MetricsTest {
+
+    @Test
+    public void testTimerScrape() {
+        Metrics.Timer<Outcome> timer = Metrics.timer("test_timer_seconds", "A test timer", Outcome.class, "stage", "one");
+        timer.record("repo", Outcome.SUCCESS, 200_000L);
+        timer.record("repo", Outcome.SUCCESS, 20_000_000_000L);
+        timer.record(null, Outcome.ERROR, 50_000L);
+        assertThat(timer.getHistogram("repo", Outcome.SUCCESS).getCount(), equalTo(2L));
+        String text = Metrics.scrape();
+        assertThat(text, containsString("# TYPE test_timer_seconds histogram\n"));
+        assertThat(text, containsString("test_timer_seconds_bucket{stage=\"one\",repository=\"repo\",outcome=\"success\",le=\"1.0E-4\"} 0\n"));
+        assertThat(text, containsString("test_timer_seconds_bucket{stage=\"one\",repository=\"repo\",outcome=\"success\",le=\"2.5E-4\"} 1\n"));
+        assertThat(text, containsString("test_timer_seconds_bucket{stage=\"one\",repository=\"repo\",outcome=\"success\",le=\"+Inf\"} 2\n"));
+        assertThat(text, containsString("test_timer_seconds_count{stage=\"one\",repository=\"repo\",outcome=\"success\"} 2\n"));
+        assertThat(text, containsString("test_timer_seconds_count{stage=\"one\",repository=\"none\",outcome=\"error\"} 1\n"));
+    }
+
+    @Test
+    public void testRegistrationIsShared() {
+        Metrics.Counter<Outcome> counter = Metrics.counter("test_shared_total", "A test counter", Outcome.class);
+        counter.increment("repo", Outcome.FAILURE);
+        Metrics.Counter<Outcome> again = Metrics.counter("test_shared_total", "A test counter", Outcome.class);
+        assertThat(again, sameInstance(counter));
+        assertThat(again.getCount("repo", Outcome.FAILURE), equalTo(1L));
+        assertThat(Metrics.scrape(), containsString("test_shared_total{repository=\"repo\",outcome=\"failure\"} 1\n"));
+    }
+
+    @Test
+    public void testRepositoriesAreLimited() {
+        Metrics.Counter<Outcome> counter = Metrics.counter("test_limited_total", "A test counter", Outcome.class);
+        for (int i = 0; i < Metrics.MAX_REPOSITORIES + 10; i++) counter.increment("repo\"" + i, Outcome.SUCCESS);
+        assertThat(counter.getCount(Metrics.OTHER_REPOSITORY, Outcome.SUCCESS), equalTo(10L));
+        assertThat(Metrics.scrape(), containsString("test_limited_total{repository=\"repo\\\"0\",outcome=\"success\"} 1\n"));
+    }
+
+    @Test
+    public void testUnknownRepositoriesAreNotTracked() {
+        AuthenticationServiceFactory factory = mock(AuthenticationServiceFactory.class);
+        when(factory.getService("tmp")).thenReturn(new AuthenticationService());
+        assertThat(RequestMetricsFilter.getRepositoryTag(factory, "tmp"), equalTo("tmp"));
+        assertThat(RequestMetricsFilter.getRepositoryTag(factory, "made-up"), equalTo(Metrics.UNKNOWN_REPOSITORY));
+        assertThat(RequestMetricsFilter.getRepositoryTag(factory, null), nullValue());
+    }
+
+    @Test
+    public void testUnknownRepositoriesAreNotTrackedForExceptions() {
+        AuthenticationServiceFactory factory = mock(AuthenticationServiceFactory.class);
+        when(factory.getService("tmp")).thenReturn(new AuthenticationService());
+        assertThat(CoreExceptionMapper.getRepositoryTag(factory, "tmp", CoreExceptions.Type.AUTHORIZATION_ERROR), equalTo("tmp"));
+        assertThat(CoreExceptionMapper.getRepositoryTag(factory, "made-up", CoreExceptions.Type.AUTHORIZATION_ERROR), equalTo(Metrics.UNKNOWN_REPOSITORY));
+        assertThat(CoreExceptionMapper.getRepositoryTag(null, "made-up", CoreExceptions.Type.INVALID_SERVICE), equalTo(Metrics.UNKNOWN_REPOSITORY));
+        assertThat(CoreExceptionMapper.getRepositoryTag(factory, null, CoreExceptions.Type.INVALID_SERVICE), nullValue());
+    }
+}
@@ -0,0 +1,92 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import com.softwareplumbers.rest.server.util.OneTimeUseCache;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.opensaml.saml.saml2.core.Response;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class OneTimeUseCacheTest {
+
+    private static String response(String assertionId, DateTime issueInstant) {
+        String xml = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+            + " ID=\"_response\" Version=\"2.0\" IssueInstant=\"" + issueInstant + "\">"
+            + "<saml:Assertion ID=\"" + assertionId + "\" Version=\"2.0\" IssueInstant=\"" + issueInstant + "\">"
+            + "<saml:Subject><saml:NameID>jonathan</saml:NameID></saml:Subject>"
+            + "</saml:Assertion>"
+            + "</samlp:Response>";
+        return Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testIdUsedOnce() {
+        OneTimeUseCache cache = new OneTimeUseCache(10);
+        assertThat(cache.contains("a", 1000), equalTo(false));
+        assertThat(cache.add("a", 2000, 1000), equalTo(true));
+        assertThat(cache.contains("a", 1500), equalTo(true));
+        assertThat(cache.add("a", 2000, 1500), equalTo(false));
+        assertThat(cache.getReplays(), equalTo(2L));
+        assertThat(cache.add("a", 3000, 2000), equalTo(true));
+    }
+
+    @Test
+    public void testFullCacheRefusesNewIds() {
+        OneTimeUseCache cache = new OneTimeUseCache(2);
+        assertThat(cache.add("a", 2000, 1000), equalTo(true));
+        assertThat(cache.add("b", 3000, 1000), equalTo(true));
+        assertThat(cache.add("c", 3000, 1000), equalTo(false));
+        assertThat(cache.getOverflows(), equalTo(1L));
+        assertThat(cache.contains("a", 1500), equalTo(true));
+        assertThat(cache.add("c", 3000, 2000), equalTo(true));
+        assertThat(cache.size(), equalTo(2));
+    }
+
+    @Test
+    public void testConcurrentUseOfSameId() throws Exception {
+        OneTimeUseCache cache = new OneTimeUseCache(10);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) results.add(threads.submit(() -> { start.await(); return cache.add("a", 2000, 1000); }));
+        start.countDown();
+        int accepted = 0;
+        for (Future<Boolean> result : results) if (result.get()) accepted++;
+        threads.shutdown();
+        assertThat(accepted, equalTo(1));
+    }
+
+    @Test
+    public void testAssertionsUsedOnce() throws Exception {
+        SAMLProtocolHandlerService service = new SAMLProtocolHandlerService();
+        Response response = service.parseSamlResponse(response("_assertion1", DateTime.now(DateTimeZone.UTC)));
+        assertThat(service.isReplayed(response), equalTo(false));
+        assertThat(service.useAssertions(response), equalTo(true));
+        Response replayed = service.parseSamlResponse(response("_assertion1", DateTime.now(DateTimeZone.UTC)));
+        assertThat(service.isReplayed(replayed), equalTo(true));
+        assertThat(service.useAssertions(replayed), equalTo(false));
+        assertThat(service.getAssertionCache().getReplays(), equalTo(2L));
+    }
+
+    @Test
+    public void testExpiredAssertionsRefused() throws Exception {
+        SAMLProtocolHandlerService service = new SAMLProtocolHandlerService();
+        Response response = service.parseSamlResponse(response("_assertion2", DateTime.now(DateTimeZone.UTC).minusHours(1)));
+        assertThat(service.useAssertions(response), equalTo(false));
+        assertThat(service.getExpiredAssertions(), equalTo(1L));
+    }
+}
@@ -0,0 +1,86 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.RefreshingCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class RefreshingCacheTest {
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        RefreshingCache<String,String> cache = new RefreshingCache<>(100, 60000, 60000, 60000);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        RefreshingCache.Loader<String,String> loader = key -> {
+            calls.incrementAndGet();
+            release.await();
+            return key + "-value";
+        };
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) results.add(threads.submit(() -> cache.get("user", loader)));
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<String> result : results) assertThat(result.get(), equalTo("user-value"));
+        threads.shutdown();
+        assertThat(calls.get(), equalTo(1));
+    }
+
+    @Test
+    public void testStaleValueServedWhenLoaderFails() throws Exception {
+        RefreshingCache<String,String> cache = new RefreshingCache<>(100, 50, 50, 60000);
+        assertThat(cache.get("user", key -> "first"), equalTo("first"));
+        Thread.sleep(100);
+        assertThat(cache.get("user", key -> { throw new IllegalStateException("backend down"); }), equalTo("first"));
+        assertThat(cache.getStaleHits(), equalTo(1L));
+    }
+
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        RefreshingCache<String,String> cache = new RefreshingCache<>(100, 60000, 50, 0);
+        cache.setExecutor(Runnable::run);
+        assertThat(cache.get("user", key -> "first"), equalTo("first"));
+        Thread.sleep(100);
+        assertThat(cache.get("user", key -> "second"), equalTo("first"));
+        assertThat(cache.get("user", key -> "third"), equalTo("second"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailurePropagatesWithoutStaleValue() {
+        RefreshingCache<String,String> cache = new RefreshingCache<>(100, 60000, 60000, 60000);
+        cache.get("user", key -> { throw new IllegalStateException("backend down"); });
+    }
+
+    @Test
+    public void testFailedLoadIsNotRetriedImmediately() throws Exception {
+        RefreshingCache<String,String> cache = new RefreshingCache<>(100, 60000, 60000, 60000);
+        AtomicInteger calls = new AtomicInteger();
+        RefreshingCache.Loader<String,String> failing = key -> { 
+            calls.incrementAndGet(); 
+            throw new IllegalStateException("backend down"); 
+        };
+        for (int i = 0; i < 5; i++) {
+            try {
+                cache.get("user", failing);
+            } catch (IllegalStateException e) {
+                assertThat(e.getMessage(), equalTo("backend down"));
+            }
+        }
+        assertThat(calls.get(), equalTo(1));
+        assertThat(cache.getFailFast(), equalTo(4L));
+        Thread.sleep(RefreshingCache.RETRY_INTERVAL_MILLIS + 100);
+        assertThat(cache.get("user", key -> "recovered"), equalTo("recovered"));
+    }
+}
@@ -3,6 +3,7 @@ package com.softwareplumbers.rest.server.core;
 import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
 import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService.SAMLInitialisationError;
 import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService.SAMLOutputError;
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService.SAMLParsingError;
 import static org.junit.Assert.assertEquals;
 
 import org.junit.Test;
@@ -12,8 +13,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Optional;
+import java.util.UUID;
 import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.saml.saml2.core.Response;
 import static org.junit.Assert.assertTrue;
 
 public class SAMLProtocolHandlerTest {
@@ -56,6 +63,74 @@ public class SAMLProtocolHandlerTest {
         encodingStream.close();
         assertEquals("K0gtSS1SKMgsAJPJ2akpCokKBanJ2Qr5aWCBHKBIQWoBUL4YAA==", out.toString());
     }
-
-
-}
\ No newline at end of file
+    
+    private static final String RESPONSE = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+        + " ID=\"_response\" Version=\"2.0\" IssueInstant=\"2020-01-01T00:00:00Z\">"
+        + "<saml:Issuer>https://auth.softwareplumbers.com/auth/realms/doctane-test</saml:Issuer>"
+        + "<saml:Assertion ID=\"_assertion\" Version=\"2.0\" IssueInstant=\"2020-01-01T00:00:00Z\">"
+        + "<saml:Issuer>https://auth.softwareplumbers.com/auth/realms/doctane-test</saml:Issuer>"
+        + "<saml:Subject><saml:NameID>jonathan</saml:NameID></saml:Subject>"
+        + "</saml:Assertion>"
+        + "</samlp:Response>";
+    
+    @Test
+    public void testParseSamlResponse() throws SAMLInitialisationError, SAMLParsingError {
+        SAMLProtocolHandlerService samlHandler = new SAMLProtocolHandlerService();
+        String encoded = Base64.getMimeEncoder().encodeToString(RESPONSE.getBytes(StandardCharsets.UTF_8));
+        assertTrue("encoded response is line wrapped", encoded.contains("\r\n"));
+        Response response = samlHandler.parseSamlResponse(encoded);
+        assertEquals("_response", response.getID());
+        assertEquals("jonathan", SAMLProtocolHandlerService.getName(response));
+    }
+    
+    @Test
+    public void testParseSamlResponseWithParserPoolSize() throws SAMLInitialisationError, SAMLParsingError {
+        SAMLProtocolHandlerService samlHandler = new SAMLProtocolHandlerService();
+        samlHandler.setParserPoolSize(2);
+        assertEquals(2, samlHandler.getParserPoolSize());
+        for (int i = 0; i < 3; i++) {
+            Response response = samlHandler.parseSamlResponse(Base64.getEncoder().encodeToString(RESPONSE.getBytes(StandardCharsets.UTF_8)));
+            assertEquals("jonathan", SAMLProtocolHandlerService.getName(response));
+        }
+    }
+    
+    @Test(expected = SAMLParsingError.class)
+    public void testParseSamlResponseRejectsDoctype() throws SAMLInitialisationError, SAMLParsingError {
+        SAMLProtocolHandlerService samlHandler = new SAMLProtocolHandlerService();
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE samlp:Response [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>" 
+            + RESPONSE.replace("jonathan", "&xxe;");
+        samlHandler.parseSamlResponse(Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    private static String decodeRequest(String request) throws IOException {
+        return IOUtils.toString(SAMLProtocolHandlerService.decode(new ByteArrayInputStream(request.getBytes())), StandardCharsets.UTF_8);
+    }
+    
+    @Test
+    public void testTemplatedRequestMatchesMarshalledRequest() throws SAMLInitialisationError, SAMLOutputError, IOException {
+        SAMLProtocolHandlerService marshalled = new SAMLProtocolHandlerService();
+        SAMLProtocolHandlerService templated = new SAMLProtocolHandlerService();
+        templated.setTemplateRequests(true);
+        for (int i = 0; i < 3; i++) {
+            String id = SAMLProtocolHandlerService.generateId();
+            DateTime issueInstant = new DateTime(1577836800123L + i * 1000L, DateTimeZone.forOffsetHours(2));
+            String expected = decodeRequest(marshalled.formatRequest("https://api.doctane.com/auth/tmp/saml", Optional.of("doctane-api-saml2"), id, issueInstant));
+            String actual = decodeRequest(templated.formatRequest("https://api.doctane.com/auth/tmp/saml", Optional.of("doctane-api-saml2"), id, issueInstant));
+            assertEquals(expected, actual);
+            assertTrue(actual.contains("ID=\"" + id + "\""));
+        }
+        String other = decodeRequest(templated.formatRequest("https://api.doctane.com/auth/other/saml", Optional.empty()));
+        assertTrue(other.contains("AssertionConsumerServiceURL=\"https://api.doctane.com/auth/other/saml\""));
+        assertTrue(other.contains(">https://auth.softwareplumbers.com/auth/realms/doctane-test</saml2:Issuer>"));
+    }
+    
+    @Test
+    public void testGenerateId() {
+        String id = SAMLProtocolHandlerService.generateId();
+        UUID uuid = UUID.fromString(id);
+        assertEquals(4, uuid.version());
+        assertEquals(2, uuid.variant());
+        assertEquals(id, uuid.toString());
+        assertTrue(!id.equals(SAMLProtocolHandlerService.generateId()));
+    }
+}
@@ -0,0 +1,184 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService;
+import com.softwareplumbers.rest.server.model.SAMLProtocolHandlerService.SAMLInitialisationError;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.ClassPathResource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/** Check that IdP metadata can be reloaded without blocking or disturbing readers.
+ *
+ * @author jonathan.local
+ */
+public class SAMLProviderDataTest {
+
+    private static final String ENTITY_ID = "https://auth.softwareplumbers.com/auth/realms/doctane-test";
+    private static final String ENDPOINT_A = "https://auth.softwareplumbers.com/auth/realms/doctane-test/protocol/saml";
+    private static final String ENDPOINT_B = "https://auth.softwareplumbers.com/auth/realms/doctane-test/protocol/saml-b";
+
+    /** Metadata resource whose content can be changed, and whose reads can be held up. */
+    private static class MutableResource extends AbstractResource {
+        private volatile byte[] content;
+        private volatile long lastModified = 1;
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private final CountDownLatch reading = new CountDownLatch(1);
+
+        public void update(String content) {
+            this.content = content.getBytes(StandardCharsets.UTF_8);
+            this.lastModified++;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return content.length;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            reading.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public String getDescription() {
+            return "mutable test metadata";
+        }
+    }
+
+    private String metadataA;
+    private String metadataB;
+    private MutableResource resource;
+    private SAMLProtocolHandlerService service;
+
+    @Before
+    public void setup() throws IOException, SAMLInitialisationError {
+        metadataA = IOUtils.toString(new ClassPathResource("/config/idp-metadata.xml").getInputStream(), StandardCharsets.UTF_8);
+        metadataB = metadataA.replace(ENDPOINT_A, ENDPOINT_B);
+        resource = new MutableResource();
+        resource.update(metadataA);
+        service = new SAMLProtocolHandlerService(ENTITY_ID, resource);
+    }
+
+    @Test
+    public void testReadersDoNotBlockDuringReload() throws Exception {
+        assertEquals(ENDPOINT_A, service.getIDPEndpoint());
+        resource.gate = new CountDownLatch(1);
+        resource.update(metadataB);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            Future<Boolean> reload = executor.submit(service::refreshMetadata);
+            assertTrue("reload started", resource.reading.await(10, TimeUnit.SECONDS));
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                readers.add(executor.submit(() -> {
+                    int reads = 0;
+                    for (; reads < 10000; reads++) {
+                        assertEquals(ENDPOINT_A, service.getIDPEndpoint());
+                        assertNotNull(service.getIDPCredential());
+                    }
+                    return reads;
+                }));
+            }
+            for (Future<Integer> reader : readers) assertEquals(10000, (int)reader.get(10, TimeUnit.SECONDS));
+            assertFalse("reload still in progress", reload.isDone());
+            resource.gate.countDown();
+            assertTrue(reload.get(10, TimeUnit.SECONDS));
+            assertEquals(ENDPOINT_B, service.getIDPEndpoint());
+        } finally {
+            resource.gate.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReadersSeeCompleteSnapshots() throws Exception {
+        assertEquals(ENDPOINT_A, service.getIDPEndpoint());
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            Future<Integer> writer = executor.submit(() -> {
+                int reloads = 0;
+                while (running.get()) {
+                    resource.update(reloads % 2 == 0 ? metadataB : metadataA);
+                    assertTrue(service.refreshMetadata());
+                    reloads++;
+                }
+                return reloads;
+            });
+            List<Future<?>> readers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                readers.add(executor.submit(() -> {
+                    for (int reads = 0; reads < 20000; reads++) {
+                        String endpoint = service.getIDPEndpoint();
+                        assertTrue(endpoint, ENDPOINT_A.equals(endpoint) || ENDPOINT_B.equals(endpoint));
+                        assertEquals(ENTITY_ID, service.getIDPCredential().getEntityId());
+                    }
+                }));
+            }
+            for (Future<?> reader : readers) reader.get(60, TimeUnit.SECONDS);
+            running.set(false);
+            assertTrue(writer.get(60, TimeUnit.SECONDS) > 0);
+            assertEquals(0, service.getMetadataReloadFailures());
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedReloadKeepsPreviousMetadata() {
+        assertEquals(ENDPOINT_A, service.getIDPEndpoint());
+        resource.update("<EntityDescriptor");
+        assertFalse(service.refreshMetadata());
+        assertEquals(ENDPOINT_A, service.getIDPEndpoint());
+        assertEquals(1, service.getMetadataReloadFailures());
+    }
+
+    @Test
+    public void testReloadOnModification() throws InterruptedException {
+        assertEquals(ENDPOINT_A, service.getIDPEndpoint());
+        service.setMetadataCheckMillis(20);
+        try {
+            resource.update(metadataB);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!ENDPOINT_B.equals(service.getIDPEndpoint()) && System.currentTimeMillis() < deadline) Thread.sleep(20);
+            assertEquals(ENDPOINT_B, service.getIDPEndpoint());
+            assertEquals(1, service.getMetadataReloads());
+        } finally {
+            service.close();
+        }
+    }
+}
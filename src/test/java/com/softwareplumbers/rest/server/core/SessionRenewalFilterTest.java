@@ -0,0 +1,127 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import com.softwareplumbers.rest.server.util.HS256JwsCodec;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import java.security.Key;
+import java.security.Principal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class SessionRenewalFilterTest {
+    
+    private static final long HOUR = 3600000L;
+    private static final long DAY = 24 * HOUR;
+    
+    @Test
+    public void testNoRenewalBeforeFraction() {
+        assertThat(SessionRenewalFilter.shouldRenew(0, DAY, 0, 11 * HOUR, 0.5, 7 * DAY), equalTo(false));
+    }
+    
+    @Test
+    public void testRenewalAfterFraction() {
+        assertThat(SessionRenewalFilter.shouldRenew(0, DAY, 0, 13 * HOUR, 0.5, 7 * DAY), equalTo(true));
+    }
+    
+    @Test
+    public void testNoRenewalWhenDisabled() {
+        assertThat(SessionRenewalFilter.shouldRenew(0, DAY, 0, 23 * HOUR, 0, 7 * DAY), equalTo(false));
+    }
+    
+    @Test
+    public void testNoRenewalBeyondMaxSessionAge() {
+        long issued = 6 * DAY;
+        assertThat(SessionRenewalFilter.shouldRenew(issued, issued + DAY, 0, issued + 13 * HOUR, 0.5, 7 * DAY), equalTo(false));
+        assertThat(SessionRenewalFilter.shouldRenew(issued, issued + DAY, 0, issued + 13 * HOUR, 0.5, 8 * DAY), equalTo(true));
+    }
+    
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFilterRenewsTokenWithSnapshot() throws Exception {
+        Key key = Keys.secretKeyFor(SignatureAlgorithm.HS256);
+        KeyManager<SystemSecretKeys,SystemKeyPairs> kmgr = mock(KeyManager.class);
+        when(kmgr.getKey(SystemSecretKeys.JWT_SIGNING_KEY)).thenReturn(key);
+        AuthenticationService authService = new AuthenticationService();
+        authService.setRequestValidationService(new CookieRequestValidationService(kmgr, "tmp"));
+        authService.setSessionRenewalFraction(0.5);
+        authService.setMaxSessionAgeMillis(7 * DAY);
+        AuthenticationServiceFactory factory = mock(AuthenticationServiceFactory.class);
+        when(factory.getService("tmp")).thenReturn(authService);
+        SessionRenewalFilter filter = new SessionRenewalFilter();
+        filter.setRepositoryServiceFactory(factory);
+        
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        JsonObject snapshot = Json.createObjectBuilder().add("role", "admin").build();
+        Map<String,Object> properties = new HashMap<>();
+        properties.put("validFrom", new Date(now - 13 * HOUR));
+        properties.put("validUntil", new Date(now + 11 * HOUR));
+        properties.put("authTime", new Date(now - 2 * DAY));
+        properties.put("userMetadataSnapshot", snapshot);
+        properties.put("userMetadataTime", new Date(now - HOUR));
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        when(request.getProperty(anyString())).thenAnswer(invocation -> properties.get((String)invocation.getArguments()[0]));
+        UriInfo uriInfo = mock(UriInfo.class);
+        MultivaluedHashMap<String,String> pathParameters = new MultivaluedHashMap<>();
+        pathParameters.add("repository", "tmp");
+        when(uriInfo.getPathParameters()).thenReturn(pathParameters);
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        SecurityContext securityContext = mock(SecurityContext.class);
+        Principal principal = () -> "testuser";
+        when(securityContext.getUserPrincipal()).thenReturn(principal);
+        when(request.getSecurityContext()).thenReturn(securityContext);
+        MultivaluedMap<String,Object> headers = new MultivaluedHashMap<>();
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        when(response.getStatus()).thenReturn(200);
+        when(response.getHeaders()).thenReturn(headers);
+        
+        filter.filter(request, response);
+        
+        List<Object> cookies = headers.get(HttpHeaders.SET_COOKIE);
+        assertThat(cookies, hasSize(1));
+        String cookie = cookies.get(0).toString();
+        assertThat(cookie, org.hamcrest.Matchers.startsWith("DoctaneUserToken/tmp="));
+        String token = cookie.substring(cookie.indexOf('=') + 1, cookie.indexOf(';'));
+        Claims claims = Jwts.parser().setSigningKey(key).parseClaimsJws(token).getBody();
+        assertThat(claims.getSubject(), equalTo("testuser"));
+        assertThat(((Number)claims.get(HS256JwsCodec.AUTH_TIME)).longValue(), equalTo((now - 2 * DAY) / 1000));
+        assertThat(claims.get(HS256JwsCodec.USER_METADATA), equalTo(snapshot.toString()));
+        assertThat(((Number)claims.get(HS256JwsCodec.USER_METADATA_TIME)).longValue(), equalTo((now - HOUR) / 1000));
+        assertThat(claims.getExpiration().getTime(), greaterThan(now + 11 * HOUR));
+    }
+    
+    @Test
+    public void testFilterDoesNotRenewFailedRequest() throws Exception {
+        SessionRenewalFilter filter = new SessionRenewalFilter();
+        filter.setRepositoryServiceFactory(mock(AuthenticationServiceFactory.class));
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        when(request.getProperty("validFrom")).thenReturn(new Date(System.currentTimeMillis() - 13 * HOUR));
+        when(request.getProperty("validUntil")).thenReturn(new Date(System.currentTimeMillis() + 11 * HOUR));
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        when(response.getStatus()).thenReturn(403);
+        filter.filter(request, response);
+        verify(response, never()).getHeaders();
+    }
+}
@@ -0,0 +1,123 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.keymanager.KeyManager;
+import com.softwareplumbers.rest.server.model.SignedRequestValidationService;
+import com.softwareplumbers.rest.server.util.ReplayGuard;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class SignedRequestValidationServiceTest {
+
+    private KeyManager<SystemSecretKeys,SystemKeyPairs> kmgr;
+    private KeyPair keyPair;
+    private SignedRequestValidationService service;
+    private final byte[] request = "{\"account\":\"service\",\"instant\":0}".getBytes(StandardCharsets.UTF_8);
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        kmgr = mock(KeyManager.class);
+        when(kmgr.getKey("service")).thenReturn(keyPair.getPublic());
+        service = new SignedRequestValidationService(kmgr);
+    }
+
+    private byte[] sign(byte[] data) throws Exception {
+        Signature signer = Signature.getInstance(KeyManager.PUBLIC_KEY_SIGNATURE_ALGORITHM, "SUN");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(data);
+        return signer.sign();
+    }
+
+    @Test
+    public void testPublicKeyIsCached() throws Exception {
+        byte[] signature = sign(request);
+        assertThat(service.validateSignature(request, signature, "service"), equalTo(true));
+        assertThat(service.validateSignature(request, signature, "service"), equalTo(true));
+        verify(kmgr, times(1)).getKey("service");
+    }
+
+    @Test
+    public void testVerifierIsReusedAfterFailure() throws Exception {
+        byte[] other = "{\"account\":\"service\",\"instant\":1}".getBytes(StandardCharsets.UTF_8);
+        assertThat(service.validateSignature(request, sign(other), "service"), equalTo(false));
+        assertThat(service.validateSignature(other, sign(other), "service"), equalTo(true));
+    }
+
+    @Test
+    public void testUnknownAccountIsCached() throws Exception {
+        byte[] signature = sign(request);
+        assertThat(service.validateSignature(request, signature, "unknown"), equalTo(false));
+        assertThat(service.validateSignature(request, signature, "unknown"), equalTo(false));
+        verify(kmgr, times(1)).getKey("unknown");
+    }
+
+    @Test
+    public void testReplayIsRejectedBeforeVerification() throws Exception {
+        byte[] fresh = ("{\"account\":\"service\",\"instant\":" + System.currentTimeMillis() + "}").getBytes(StandardCharsets.UTF_8);
+        String encodedRequest = Base64.getUrlEncoder().encodeToString(fresh);
+        String encodedSignature = Base64.getUrlEncoder().encodeToString(sign(fresh));
+        assertThat(service.validateSignature(encodedRequest, encodedSignature), equalTo(Optional.of("service")));
+        assertThat(service.validateSignature(encodedRequest, encodedSignature), equalTo(Optional.empty()));
+        assertThat(service.getVerifications(), equalTo(1L));
+        assertThat(service.getReplayGuard().getReplays(), equalTo(1L));
+    }
+
+    @Test
+    public void testConcurrentRequestsWithDifferentNoncesAreAccepted() throws Exception {
+        long instant = System.currentTimeMillis();
+        List<CompletableFuture<Optional<String>>> results = new ArrayList<>();
+        for (int nonce = 0; nonce < 2; nonce++) {
+            byte[] fresh = ("{\"account\":\"service\",\"instant\":" + instant + ",\"nonce\":" + nonce + "}").getBytes(StandardCharsets.UTF_8);
+            String encodedRequest = Base64.getUrlEncoder().encodeToString(fresh);
+            String encodedSignature = Base64.getUrlEncoder().encodeToString(sign(fresh));
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return service.validateSignature(encodedRequest, encodedSignature);
+                } catch (SignedRequestValidationService.RequestValidationError e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<Optional<String>> result : results) assertThat(result.join(), equalTo(Optional.of("service")));
+        assertThat(service.getReplayGuard().getReplays(), equalTo(0L));
+    }
+
+    @Test
+    public void testForgedRequestDoesNotBlockGenuineRequest() throws Exception {
+        byte[] fresh = ("{\"account\":\"service\",\"instant\":" + System.currentTimeMillis() + "}").getBytes(StandardCharsets.UTF_8);
+        String encodedRequest = Base64.getUrlEncoder().encodeToString(fresh);
+        assertThat(service.validateSignature(encodedRequest, Base64.getUrlEncoder().encodeToString(sign(request))), equalTo(Optional.empty()));
+        assertThat(service.validateSignature(encodedRequest, Base64.getUrlEncoder().encodeToString(sign(fresh))), equalTo(Optional.of("service")));
+    }
+
+    @Test
+    public void testReplayGuardForgetsAfterWindow() {
+        ReplayGuard guard = new ReplayGuard(1000, 3);
+        ByteBuffer key = ReplayGuard.key(request);
+        assertThat(guard.add(key, 0), equalTo(true));
+        assertThat(guard.add(key, 999), equalTo(false));
+        assertThat(guard.contains(key, 1499), equalTo(true));
+        assertThat(guard.add(key, 1500), equalTo(true));
+    }
+}
@@ -39,8 +39,34 @@ public class TestCoreServerMBean {
     
     @Test
     public void testGetAccessToken() {
-        String token = manager.getAccessToken("testuser");
+        String token = manager.getAccessToken("tmp", "testuser");
         System.out.println(token);
         assertThat(token, not(isEmptyOrNullString()));        
     }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetAccessTokenUnknownRepository() {
+        manager.getAccessToken("made-up", "testuser");
+    }
+    
+    @Test
+    public void testCacheOperations() {
+        manager.resizeTokenCache("tmp", 50);
+        assertThat(manager.cookieRequestValidationServices.get(0).getTokenCache().getCapacity(), equalTo(50));
+        manager.setUserMetadataCacheCapacity(20);
+        assertThat(manager.getUserMetadataCacheCapacity(), equalTo(20));
+        manager.flushAllCaches();
+        assertThat(manager.getRepositoryStatistics(), containsString("tmp: token cache hit rate"));
+        assertThat(manager.reloadKeys(), containsString("JWT_SIGNING_KEY"));
+    }
+    
+    @Test
+    public void testTraceLogging() {
+        org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CoreServerMBean.class);
+        boolean initial = logger.isTraceEnabled();
+        manager.setTraceLogging(true);
+        assertThat(logger.isTraceEnabled(), equalTo(true));
+        manager.setTraceLogging(false);
+        assertThat(logger.isTraceEnabled(), equalTo(initial));
+    }
 }
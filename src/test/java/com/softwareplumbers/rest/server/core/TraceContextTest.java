@@ -0,0 +1,114 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.rest.server.util.Span;
+import com.softwareplumbers.rest.server.util.TraceContext;
+import com.softwareplumbers.rest.server.util.Tracer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.UriInfo;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class TraceContextTest {
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String PARENT = "00-" + TRACE_ID + "-00f067aa0ba902b7-01";
+
+    @Test
+    public void testParse() {
+        TraceContext context = TraceContext.parse(PARENT, "vendor=value");
+        assertThat(context.getTraceId(), equalTo(TRACE_ID));
+        assertThat(context.getSpanId(), equalTo("00f067aa0ba902b7"));
+        assertThat(context.isSampled(), equalTo(true));
+        assertThat(context.getTraceState(), equalTo("vendor=value"));
+        assertThat(context.toTraceparent(), equalTo(PARENT));
+        assertThat(TraceContext.parse("00-" + TRACE_ID + "-00f067aa0ba902b7-00", null).isSampled(), equalTo(false));
+        assertThat(TraceContext.parse("01-" + TRACE_ID + "-00f067aa0ba902b7-01-future", null), notNullValue());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        assertThat(TraceContext.parse(null, null), nullValue());
+        assertThat(TraceContext.parse("00-" + TRACE_ID + "-00f067aa0ba902b7-01-extra", null), nullValue());
+        assertThat(TraceContext.parse("ff-" + TRACE_ID + "-00f067aa0ba902b7-01", null), nullValue());
+        assertThat(TraceContext.parse("00-" + TRACE_ID.toUpperCase() + "-00f067aa0ba902b7-01", null), nullValue());
+        assertThat(TraceContext.parse("00-00000000000000000000000000000000-00f067aa0ba902b7-01", null), nullValue());
+        assertThat(TraceContext.parse("00-" + TRACE_ID + "-0000000000000000-01", null), nullValue());
+    }
+
+    @Test
+    public void testNewIds() {
+        assertThat(TraceContext.newTraceId().matches("[0-9a-f]{32}"), equalTo(true));
+        assertThat(TraceContext.newSpanId().matches("[0-9a-f]{16}"), equalTo(true));
+    }
+
+    private static ContainerRequestContext request(String traceparent) {
+        Map<String, Object> properties = new HashMap<>();
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        UriInfo uriInfo = mock(UriInfo.class);
+        when(uriInfo.getPath()).thenReturn("auth/tmp/token");
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeaderString(TraceContext.TRACEPARENT)).thenReturn(traceparent);
+        when(request.getProperty(anyString())).thenAnswer(invocation -> properties.get((String)invocation.getArguments()[0]));
+        doAnswer(invocation -> properties.put((String)invocation.getArguments()[0], invocation.getArguments()[1]))
+            .when(request).setProperty(anyString(), any());
+        return request;
+    }
+
+    @Test
+    public void testFilterPropagatesSampledTrace() throws Exception {
+        List<Span> exported = new ArrayList<>();
+        Tracer tracer = new Tracer();
+        tracer.setExporter(exported::add);
+        TraceContextFilter filter = new TraceContextFilter();
+        filter.setTracer(tracer);
+
+        ContainerRequestContext request = request(PARENT);
+        filter.filter(request);
+        Span.of(request).child("token validation").end();
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+        when(response.getHeaders()).thenReturn(headers);
+        when(response.getStatus()).thenReturn(200);
+        filter.filter(request, response);
+
+        assertThat(exported, hasSize(2));
+        Span child = exported.get(0);
+        Span server = exported.get(1);
+        assertThat(server.getContext().getTraceId(), equalTo(TRACE_ID));
+        assertThat(server.getParentSpanId(), equalTo("00f067aa0ba902b7"));
+        assertThat(server.getName(), equalTo("GET auth/tmp/token"));
+        assertThat(server.getAttributes().get("http.status_code"), equalTo("200"));
+        assertThat(child.getParentSpanId(), equalTo(server.getContext().getSpanId()));
+        assertThat(headers.getFirst(TraceContext.TRACEPARENT), equalTo("00-" + TRACE_ID + "-" + server.getContext().getSpanId() + "-01"));
+    }
+
+    @Test
+    public void testFilterIgnoresUnsampledTrace() throws Exception {
+        List<Span> exported = new ArrayList<>();
+        Tracer tracer = new Tracer();
+        tracer.setExporter(exported::add);
+        TraceContextFilter filter = new TraceContextFilter();
+        filter.setTracer(tracer);
+
+        ContainerRequestContext request = request("00-" + TRACE_ID + "-00f067aa0ba902b7-00");
+        filter.filter(request);
+        assertThat(Span.of(request), sameInstance(Span.NOOP));
+        assertThat(Span.of(request).child("token validation"), sameInstance(Span.NOOP));
+        filter.filter(request, mock(ContainerResponseContext.class));
+        assertThat(exported, empty());
+    }
+}
@@ -0,0 +1,186 @@
+package com.softwareplumbers.rest.server.core;
+
+import com.softwareplumbers.authz.AuthorizationService;
+import com.softwareplumbers.authz.AuthorizationServiceFactory;
+import com.softwareplumbers.rest.server.model.AuthenticationService;
+import java.security.Principal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author jonat
+ */
+public class UserMetadataFilterTest {
+
+    private static final JsonObject METADATA = Json.createObjectBuilder().add("role", "admin").build();
+
+    private AuthorizationService authzService;
+    private AuthenticationService authnService;
+    private UserMetadataFilter filter;
+
+    @Before
+    public void setup() {
+        authzService = mock(AuthorizationService.class);
+        when(authzService.getUserMetadata("user")).thenReturn(METADATA);
+        AuthorizationServiceFactory authzFactory = mock(AuthorizationServiceFactory.class);
+        when(authzFactory.getService("tmp")).thenReturn(authzService);
+        authnService = new AuthenticationService();
+        AuthenticationServiceFactory authnFactory = mock(AuthenticationServiceFactory.class);
+        when(authnFactory.getService("tmp")).thenReturn(authnService);
+        filter = new UserMetadataFilter();
+        filter.setRepositoryServiceFactory(authzFactory);
+        filter.setAuthenticationServiceFactory(authnFactory);
+    }
+
+    private static ContainerRequestContext request() {
+        Map<String,Object> properties = new HashMap<>();
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        UriInfo uriInfo = mock(UriInfo.class);
+        MultivaluedHashMap<String,String> pathParameters = new MultivaluedHashMap<>();
+        pathParameters.add("repository", "tmp");
+        when(uriInfo.getPathParameters()).thenReturn(pathParameters);
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        SecurityContext securityContext = mock(SecurityContext.class);
+        Principal principal = () -> "user";
+        when(securityContext.getUserPrincipal()).thenReturn(principal);
+        when(request.getSecurityContext()).thenReturn(securityContext);
+        doAnswer(invocation -> properties.put((String)invocation.getArguments()[0], invocation.getArguments()[1]))
+            .when(request).setProperty(anyString(), any());
+        doAnswer(invocation -> properties.get((String)invocation.getArguments()[0]))
+            .when(request).getProperty(anyString());
+        return request;
+    }
+
+    @Test
+    public void testEagerLookup() throws Exception {
+        ContainerRequestContext request = request();
+        filter.filter(request);
+        verify(authzService, times(1)).getUserMetadata("user");
+        assertThat(request.getProperty("userMetadata"), equalTo(METADATA));
+        assertThat(filter.getStatistics("tmp").getEagerLookups(), equalTo(1L));
+    }
+
+    @Test
+    public void testMissingMetadataIsEmptyWhetherEagerOrLazy() throws Exception {
+        when(authzService.getUserMetadata("user")).thenReturn(null);
+        ContainerRequestContext eager = request();
+        filter.filter(eager);
+        assertThat(eager.getProperty("userMetadata"), equalTo(JsonValue.EMPTY_JSON_OBJECT));
+        authnService.setLazyUserMetadata(true);
+        ContainerRequestContext lazy = request();
+        filter.filter(lazy);
+        assertThat(lazy.getProperty("userMetadata"), equalTo(JsonValue.EMPTY_JSON_OBJECT));
+    }
+
+    @Test
+    public void testLazyLookupAvoided() throws Exception {
+        authnService.setLazyUserMetadata(true);
+        ContainerRequestContext request = request();
+        filter.filter(request);
+        filter.filter(request, mock(ContainerResponseContext.class));
+        verify(authzService, never()).getUserMetadata(anyString());
+        assertThat(filter.getStatistics("tmp").getAvoidedLookups(), equalTo(1L));
+        assertThat(filter.getStatistics("tmp").getLazyLookups(), equalTo(0L));
+    }
+
+    @Test
+    public void testLazyLookupOnRead() throws Exception {
+        authnService.setLazyUserMetadata(true);
+        ContainerRequestContext request = request();
+        filter.filter(request);
+        JsonObject userMetadata = (JsonObject)request.getProperty("userMetadata");
+        assertThat(userMetadata.getString("role"), equalTo("admin"));
+        assertThat(userMetadata, equalTo(METADATA));
+        filter.filter(request, mock(ContainerResponseContext.class));
+        verify(authzService, times(1)).getUserMetadata("user");
+        assertThat(filter.getStatistics("tmp").getAvoidedLookups(), equalTo(0L));
+        assertThat(filter.getStatistics("tmp").getLazyLookups(), equalTo(1L));
+    }
+
+    @Test
+    public void testAsyncLookup() throws Exception {
+        CompletableFuture<JsonObject> pending = new CompletableFuture<>();
+        authnService.setAsyncUserMetadataService(userId -> pending);
+        ContainerRequestContext request = request();
+        filter.filter(request);
+        CompletionStage<?> stage = (CompletionStage<?>)request.getProperty("userMetadataStage");
+        assertThat(stage.toCompletableFuture().isDone(), equalTo(false));
+        pending.complete(METADATA);
+        assertThat(((JsonObject)request.getProperty("userMetadata")).getString("role"), equalTo("admin"));
+        verify(authzService, never()).getUserMetadata(anyString());
+        assertThat(filter.getStatistics("tmp").getAsyncLookups(), equalTo(1L));
+    }
+
+    @Test
+    public void testAsyncLookupThroughCache() throws Exception {
+        CompletableFuture<JsonObject> pending = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        authnService.setAsyncUserMetadataService(userId -> { calls.incrementAndGet(); return pending; });
+        filter.setUserMetadataCache(new UserMetadataCache());
+        ContainerRequestContext first = request();
+        ContainerRequestContext second = request();
+        filter.filter(first);
+        filter.filter(second);
+        assertThat(calls.get(), equalTo(1));
+        pending.complete(METADATA);
+        assertThat(((JsonObject)first.getProperty("userMetadata")).getString("role"), equalTo("admin"));
+        assertThat(((JsonObject)second.getProperty("userMetadata")).getString("role"), equalTo("admin"));
+        ContainerRequestContext third = request();
+        filter.filter(third);
+        assertThat(calls.get(), equalTo(1));
+        assertThat(third.getProperty("userMetadata"), sameInstance((Object)METADATA));
+        assertThat(((CompletionStage<?>)third.getProperty("userMetadataStage")).toCompletableFuture().isDone(), equalTo(true));
+    }
+
+    @Test(expected = ServiceUnavailableException.class)
+    public void testAsyncLookupTimeout() throws Exception {
+        authnService.setAsyncUserMetadataService(userId -> new CompletableFuture<>());
+        authnService.setUserMetadataTimeoutMillis(50);
+        ContainerRequestContext request = request();
+        filter.filter(request);
+        ((JsonObject)request.getProperty("userMetadata")).getString("role");
+    }
+
+    @Test
+    public void testSnapshotFromToken() throws Exception {
+        authnService.setEmbedUserMetadata(true);
+        ContainerRequestContext request = request();
+        request.setProperty("userMetadataSnapshot", METADATA);
+        request.setProperty("userMetadataTime", new Date());
+        filter.filter(request);
+        verify(authzService, never()).getUserMetadata(anyString());
+        assertThat(request.getProperty("userMetadata"), equalTo(METADATA));
+        assertThat(filter.getStatistics("tmp").getTokenSnapshots(), equalTo(1L));
+    }
+
+    @Test
+    public void testStaleSnapshotFallsBackToLookup() throws Exception {
+        authnService.setEmbedUserMetadata(true);
+        authnService.setMaxUserMetadataStalenessMillis(60000);
+        ContainerRequestContext request = request();
+        request.setProperty("userMetadataSnapshot", Json.createObjectBuilder().add("role", "stale").build());
+        request.setProperty("userMetadataTime", new Date(System.currentTimeMillis() - 120000));
+        filter.filter(request);
+        verify(authzService, times(1)).getUserMetadata("user");
+        assertThat(request.getProperty("userMetadata"), equalTo(METADATA));
+    }
+}